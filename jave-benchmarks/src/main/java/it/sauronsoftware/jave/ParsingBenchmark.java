@@ -0,0 +1,116 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the parsing of recorded ffmpeg outputs, without any process:
+ * the <em>ffmpeg -i</em> description of a file, the lines of an encoding
+ * output, the progress lines and the machine-readable progress channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    /**
+     * A progress line of the encoding output.
+     */
+    private static final String PROGRESS_LINE = "frame= 7200 fps= 96 q=28.0 "
+            + "size=   57000kB time=00:05:00.00 bitrate=1520.3kbits/s speed=4.01x";
+
+    private String info;
+
+    private String encode;
+
+    private byte[] progress;
+
+    private MultimediaObject multimediaObject;
+
+    private Encoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        StubFFMPEGLocator locator = new StubFFMPEGLocator();
+        info = read(locator.getCannedOutput("info.txt"));
+        encode = read(locator.getCannedOutput("encode.txt"));
+        progress = Files.readAllBytes(locator.getCannedOutput("progress.txt").toPath());
+        multimediaObject = new MultimediaObject(new File("input.mp4"), locator);
+        encoder = new Encoder(locator);
+    }
+
+    @Benchmark
+    public MultimediaInfo parseInfo() throws EncoderException {
+        return multimediaObject.parseMultimediaInfo(new File("input.mp4"),
+                new RBufferedReader(new StringReader(info)));
+    }
+
+    @Benchmark
+    public int readEncodingLines() throws IOException {
+        RBufferedReader reader = new RBufferedReader(new StringReader(encode));
+        int length = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            length += line.length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public HashMap<String, String> parseProgressLine() {
+        return encoder.parseProgressInfoLine(PROGRESS_LINE);
+    }
+
+    @Benchmark
+    public void parseProgressChannel(final Blackhole blackhole) throws IOException {
+        ProgressParser parser = new ProgressParser(new ProgressSnapshot());
+        parser.parse(new ByteArrayInputStream(progress), new ProgressSnapshotListener() {
+            public void progress(ProgressSnapshot snapshot) {
+                blackhole.consume(snapshot.getOutTimeMicros());
+            }
+        });
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the calls spawning ffmpeg, run against the stub ffmpeg: the
+ * bare process spawn (cold and on warm workers), a probe, an encoding
+ * (argument building, spawn and output parsing) and a capability query. The
+ * stub delays are parameters, so the Java overhead can be compared with a
+ * realistic ffmpeg start cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+
+    /**
+     * The time slept by the stub before any output, in millis.
+     */
+    @Param({ "0", "20" })
+    public long startDelay;
+
+    private StubFFMPEGLocator locator;
+
+    private StubFFMPEGLocator warmLocator;
+
+    private File source;
+
+    private File target;
+
+    private EncodingAttributes attributes;
+
+    private MultimediaInfoCache defaultInfoCache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        locator = new StubFFMPEGLocator(startDelay, 0);
+        warmLocator = new StubFFMPEGLocator(startDelay, 0);
+        warmLocator.setWarmWorkers(4);
+        // The source never changes: with the shared cache every probe after
+        // the first would be a hit.
+        defaultInfoCache = MultimediaObject.getDefaultInfoCache();
+        MultimediaObject.setDefaultInfoCache(null);
+        source = File.createTempFile("jave-bench", ".mp4");
+        target = File.createTempFile("jave-bench", ".mp4");
+        VideoAttributes video = new VideoAttributes();
+        video.setCodec("libx264");
+        video.setSize(new VideoSize(1280, 720));
+        AudioAttributes audio = new AudioAttributes();
+        audio.setCodec("aac");
+        audio.setBitRate(Integer.valueOf(128000));
+        attributes = new EncodingAttributes();
+        attributes.setFormat("mp4");
+        attributes.setVideoAttributes(video);
+        attributes.setAudioAttributes(audio);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        warmLocator.setWarmWorkers(0);
+        MultimediaObject.setDefaultInfoCache(defaultInfoCache);
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public int spawn() throws Exception {
+        return version(locator);
+    }
+
+    @Benchmark
+    public int spawnWarm() throws Exception {
+        return version(warmLocator);
+    }
+
+    @Benchmark
+    public MultimediaInfo probe() throws EncoderException {
+        return new MultimediaObject(source, locator).getInfo();
+    }
+
+    @Benchmark
+    public void encode() throws EncoderException {
+        new Encoder(locator).encode(new MultimediaObject(source, locator), target,
+                attributes);
+    }
+
+    @Benchmark
+    public CodecCapabilities capabilities() throws EncoderException {
+        CodecCapabilities.invalidateAll();
+        return locator.getCapabilities();
+    }
+
+    private static int version(FFMPEGLocator locator) throws Exception {
+        FFMPEGExecutor ffmpeg = locator.createShortExecutor();
+        ffmpeg.addArgument("-version");
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        try {
+            ffmpeg.execute();
+            return ffmpeg.waitFor();
+        } finally {
+            ffmpeg.destroy();
+        }
+    }
+
+}
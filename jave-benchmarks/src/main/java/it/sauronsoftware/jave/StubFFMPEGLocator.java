@@ -0,0 +1,124 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A locator of the stub ffmpeg used by the benchmarks: a shell script
+ * replaying canned ffmpeg outputs, recorded from a real ffmpeg, with
+ * configurable delays. The stub and its outputs are exported in a new
+ * temporary directory. There is no stub ffprobe, so informations are
+ * gathered parsing the <em>ffmpeg -i</em> output.
+ */
+public class StubFFMPEGLocator extends FFMPEGLocator {
+
+    /**
+     * The files of the stub.
+     */
+    private static final String[] FILES = { "ffmpeg", "version.txt", "info.txt",
+        "encode.txt", "progress.txt", "formats.txt", "codecs.txt",
+        "encoders.txt", "decoders.txt", "filters.txt" };
+
+    /**
+     * The directory of the stub.
+     */
+    private final File directory;
+
+    /**
+     * It builds the locator, exporting a stub answering without delays.
+     *
+     * @throws IOException If the stub cannot be exported.
+     */
+    public StubFFMPEGLocator() throws IOException {
+        this(0, 0);
+    }
+
+    /**
+     * It builds the locator, exporting the stub.
+     *
+     * @param startDelay The time slept by the stub before any output, in
+     * millis, simulating the ffmpeg start cost.
+     * @param lineDelay The time slept by the stub after every line of an
+     * encoding output, in millis.
+     * @throws IOException If the stub cannot be exported.
+     */
+    public StubFFMPEGLocator(long startDelay, long lineDelay) throws IOException {
+        directory = Files.createTempDirectory("jave-stub").toFile();
+        for (String name : FILES) {
+            File file = new File(directory, name);
+            InputStream input = StubFFMPEGLocator.class.getResourceAsStream("stub/" + name);
+            if (input == null) {
+                throw new IOException("Missing stub resource " + name);
+            }
+            try {
+                Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                input.close();
+            }
+            file.deleteOnExit();
+        }
+        new File(directory, "ffmpeg").setExecutable(true);
+        File conf = new File(directory, "stub.conf");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(conf), "UTF-8");
+        try {
+            writer.write("START_DELAY=" + seconds(startDelay) + "\n");
+            writer.write("LINE_DELAY=" + seconds(lineDelay) + "\n");
+        } finally {
+            writer.close();
+        }
+        conf.deleteOnExit();
+        directory.deleteOnExit();
+    }
+
+    /**
+     * Returns a canned output of the stub.
+     *
+     * @param name The name of the output, for example <em>info.txt</em>.
+     * @return The file of the output.
+     */
+    public File getCannedOutput(String name) {
+        return new File(directory, name);
+    }
+
+    @Override
+    protected String getFFMPEGExecutablePath() {
+        return new File(directory, "ffmpeg").getAbsolutePath();
+    }
+
+    @Override
+    protected String getFFProbeExecutablePath() {
+        return null;
+    }
+
+    /**
+     * Private utility. It formats a delay for sleep(1).
+     */
+    private static String seconds(long millis) {
+        return millis <= 0 ? "0" : String.valueOf(millis / 1000d);
+    }
+
+}
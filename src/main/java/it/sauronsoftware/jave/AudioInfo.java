@@ -18,13 +18,17 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.Serializable;
+
 /**
  * Instances of this class report informations about an audio stream that can be
  * decoded.
  * 
  * @author Carlo Pelliccia
  */
-public class AudioInfo {
+public class AudioInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The audio stream decoder name.
@@ -0,0 +1,499 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A stream of raw PCM audio samples decoded by ffmpeg, for in-process audio
+ * processing without intermediate files. ffmpeg decodes the first audio
+ * stream of the source to interleaved little-endian samples
+ * (<em>-f s16le</em> or <em>-f f32le</em>) on its standard output, applying
+ * the sampling rate, channel count and volume of an {@link AudioAttributes}
+ * instance.
+ *
+ * Samples are read through a single direct buffer into caller-provided
+ * primitive arrays ({@link AudioSampleStream#read(short[], int, int)},
+ * {@link AudioSampleStream#read(float[], int, int)}), or exposed as a view of
+ * that buffer ({@link AudioSampleStream#readShorts()},
+ * {@link AudioSampleStream#readFloats()}): nothing is allocated while
+ * reading. The stream must be closed, which stops the process if the
+ * samples have not all been read.
+ */
+public class AudioSampleStream implements Closeable {
+
+    /**
+     * The sample formats.
+     */
+    public enum SampleFormat {
+
+        /**
+         * Signed 16-bit integer samples.
+         */
+        S16LE("s16le", 2),
+
+        /**
+         * 32-bit float samples, nominally between -1 and 1.
+         */
+        F32LE("f32le", 4);
+
+        /**
+         * The ffmpeg name of the format.
+         */
+        private final String name;
+
+        /**
+         * The size of a sample, in bytes.
+         */
+        private final int sampleSize;
+
+        private SampleFormat(String name, int sampleSize) {
+            this.name = name;
+            this.sampleSize = sampleSize;
+        }
+
+        /**
+         * Returns the ffmpeg name of the format.
+         *
+         * @return The ffmpeg name of the format.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the size of a sample, in bytes.
+         *
+         * @return The size of a sample.
+         */
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+    }
+
+    /**
+     * The number of sample frames (one sample per channel) of the buffer.
+     */
+    private static final int BLOCK_FRAMES = 8192;
+
+    /**
+     * The ffmpeg process.
+     */
+    private final FFMPEGExecutor ffmpeg;
+
+    /**
+     * The pump feeding a streaming source to the process. It can be null.
+     */
+    private final StreamPump pump;
+
+    /**
+     * The channel of the samples.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The sample format.
+     */
+    private final SampleFormat format;
+
+    /**
+     * The sampling rate.
+     */
+    private final int samplingRate;
+
+    /**
+     * The number of channels.
+     */
+    private final int channels;
+
+    /**
+     * The read buffer. Between two reads, its remaining bytes are samples not
+     * returned yet.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The 16-bit view of the buffer.
+     */
+    private final ShortBuffer shorts;
+
+    /**
+     * The float view of the buffer.
+     */
+    private final FloatBuffer floats;
+
+    /**
+     * Whether the end of the samples has been reached.
+     */
+    private boolean ended = false;
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Private constructor, used by the open methods.
+     */
+    private AudioSampleStream(FFMPEGExecutor ffmpeg, StreamPump pump,
+            SampleFormat format, int samplingRate, int channels) {
+        this.ffmpeg = ffmpeg;
+        this.pump = pump;
+        this.channel = Channels.newChannel(ffmpeg.getInputStream());
+        this.format = format;
+        this.samplingRate = samplingRate;
+        this.channels = channels;
+        buffer = ByteBuffer.allocateDirect(BLOCK_FRAMES * channels * format.getSampleSize())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        shorts = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        floats = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        buffer.limit(0);
+    }
+
+    /**
+     * Starts decoding the audio of a source, using a
+     * {@link DefaultFFMPEGLocator} instance to locate the ffmpeg executable.
+     *
+     * @param source The source.
+     * @param attributes The sampling rate, channels and volume of the
+     * samples. It can be null, and unset values are the source ones.
+     * @param format The sample format.
+     * @return The stream of the samples, to be closed by the caller.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs calling ffmpeg.
+     */
+    public static AudioSampleStream open(MultimediaObject source,
+            AudioAttributes attributes, SampleFormat format)
+            throws InputFormatException, EncoderException {
+        return open(DefaultFFMPEGLocator.getInstance(), source, attributes, format);
+    }
+
+    /**
+     * Starts decoding the audio of a source.
+     *
+     * @param locator The locator picking up the ffmpeg executable.
+     * @param source The source. A streaming source requires both the sampling
+     * rate and the channels to be set in the attributes.
+     * @param attributes The sampling rate, channels and volume of the
+     * samples. It can be null, and unset values are the source ones.
+     * @param format The sample format.
+     * @return The stream of the samples, to be closed by the caller.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs calling ffmpeg.
+     */
+    public static AudioSampleStream open(FFMPEGLocator locator,
+            MultimediaObject source, AudioAttributes attributes,
+            SampleFormat format) throws InputFormatException, EncoderException {
+        Integer samplingRate = attributes != null ? attributes.getSamplingRate() : null;
+        Integer channels = attributes != null ? attributes.getChannels() : null;
+        Integer volume = attributes != null ? attributes.getVolume() : null;
+        int rate = samplingRate != null ? samplingRate.intValue() : 0;
+        int count = channels != null ? channels.intValue() : 0;
+        if (rate <= 0 || count <= 0) {
+            if (source.isStream()) {
+                throw new EncoderException("The sampling rate and the channels"
+                        + " of a streaming source must be set");
+            }
+            AudioInfo audio = source.getInfo().getAudio();
+            if (audio == null) {
+                throw new EncoderException("The source has no audio stream");
+            }
+            if (rate <= 0) {
+                rate = audio.getSamplingRate();
+            }
+            if (count <= 0) {
+                count = audio.getChannels();
+            }
+            if (rate <= 0 || count <= 0) {
+                throw new EncoderException("Unknown audio sampling rate or channels");
+            }
+        }
+        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffmpeg.setTailSize(4);
+        ffmpeg.setSchedule(FFMPEGScheduler.PROBE_WEIGHT,
+                FFMPEGScheduler.Priority.NORMAL, null);
+        ffmpeg.setStdinCommands(!source.isStream());
+        ffmpeg.addArgument("-nostats");
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(source.getInputArgument());
+        ffmpeg.addArgument("-map");
+        ffmpeg.addArgument("0:a:0");
+        ffmpeg.addArgument("-ar");
+        ffmpeg.addArgument(String.valueOf(rate));
+        ffmpeg.addArgument("-ac");
+        ffmpeg.addArgument(String.valueOf(count));
+        if (volume != null) {
+            // -vol is relative to 256.
+            ffmpeg.addArgument("-af");
+            ffmpeg.addArgument("volume=" + (volume.intValue() / 256d));
+        }
+        ffmpeg.addArgument("-acodec");
+        ffmpeg.addArgument("pcm_" + format.getName());
+        ffmpeg.addArgument("-f");
+        ffmpeg.addArgument(format.getName());
+        ffmpeg.addArgument("pipe:1");
+        ReadableByteChannel input = null;
+        if (source.isStream()) {
+            input = source.takeChannel();
+        }
+        StreamPump pump = null;
+        try {
+            ffmpeg.execute();
+            if (input != null) {
+                pump = new StreamPump(input,
+                        Channels.newChannel(ffmpeg.getOutputStream()), true);
+                pump.start("jave-sample-input");
+            }
+        } catch (IOException e) {
+            ffmpeg.destroy();
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e2) {
+                    ; // Silent ignore
+                }
+            }
+            throw new EncoderException(e);
+        }
+        return new AudioSampleStream(ffmpeg, pump, format, rate, count);
+    }
+
+    /**
+     * Returns the sample format.
+     *
+     * @return The sample format.
+     */
+    public SampleFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the sampling rate, in Hz.
+     *
+     * @return The sampling rate.
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns the number of channels. Samples are interleaved: a sample
+     * frame holds a sample for each channel.
+     *
+     * @return The number of channels.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Reads interleaved samples into an array. The stream must be in the
+     * {@link SampleFormat#S16LE} format.
+     *
+     * @param samples The array.
+     * @param offset The array index of the first sample.
+     * @param length The maximum number of samples.
+     * @return The number of samples read, or -1 if there are no more samples.
+     * @throws EncoderException If the samples cannot be read, or ffmpeg
+     * fails.
+     */
+    public int read(short[] samples, int offset, int length) throws EncoderException {
+        if (format != SampleFormat.S16LE) {
+            throw new IllegalStateException("The samples are not 16-bit integers");
+        }
+        int available = fill();
+        if (available < 0) {
+            return -1;
+        }
+        int count = Math.min(available, length);
+        shorts.limit(shorts.position() + count);
+        shorts.get(samples, offset, count);
+        buffer.position(buffer.position() + count * 2);
+        return count;
+    }
+
+    /**
+     * Reads interleaved samples into an array. 16-bit samples are converted
+     * to floats between -1 and 1.
+     *
+     * @param samples The array.
+     * @param offset The array index of the first sample.
+     * @param length The maximum number of samples.
+     * @return The number of samples read, or -1 if there are no more samples.
+     * @throws EncoderException If the samples cannot be read, or ffmpeg
+     * fails.
+     */
+    public int read(float[] samples, int offset, int length) throws EncoderException {
+        int available = fill();
+        if (available < 0) {
+            return -1;
+        }
+        int count = Math.min(available, length);
+        if (format == SampleFormat.F32LE) {
+            floats.limit(floats.position() + count);
+            floats.get(samples, offset, count);
+            buffer.position(buffer.position() + count * 4);
+        } else {
+            for (int i = 0; i < count; i++) {
+                samples[offset + i] = buffer.getShort() / 32768f;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next block of samples as a view of the internal buffer. The
+     * view is valid until the next read. The stream must be in the
+     * {@link SampleFormat#S16LE} format.
+     *
+     * @return The samples, or null if there are no more samples.
+     * @throws EncoderException If the samples cannot be read, or ffmpeg
+     * fails.
+     */
+    public ShortBuffer readShorts() throws EncoderException {
+        if (format != SampleFormat.S16LE) {
+            throw new IllegalStateException("The samples are not 16-bit integers");
+        }
+        int available = fill();
+        if (available < 0) {
+            return null;
+        }
+        shorts.limit(shorts.position() + available);
+        // The bytes of a trailing split sample stay for the next fill.
+        buffer.position(buffer.position() + available * 2);
+        return shorts;
+    }
+
+    /**
+     * Reads the next block of samples as a view of the internal buffer. The
+     * view is valid until the next read. The stream must be in the
+     * {@link SampleFormat#F32LE} format.
+     *
+     * @return The samples, or null if there are no more samples.
+     * @throws EncoderException If the samples cannot be read, or ffmpeg
+     * fails.
+     */
+    public FloatBuffer readFloats() throws EncoderException {
+        if (format != SampleFormat.F32LE) {
+            throw new IllegalStateException("The samples are not floats");
+        }
+        int available = fill();
+        if (available < 0) {
+            return null;
+        }
+        floats.limit(floats.position() + available);
+        // The bytes of a trailing split sample stay for the next fill.
+        buffer.position(buffer.position() + available * 4);
+        return floats;
+    }
+
+    /**
+     * Closes the stream, stopping the ffmpeg process if it is still running.
+     */
+    public void close() {
+        closed = true;
+        ffmpeg.destroy();
+    }
+
+    /**
+     * Private utility. It refills the buffer if it has no whole sample left,
+     * and positions the views on the first unread sample.
+     *
+     * @return The number of unread samples, or -1 at the end.
+     */
+    private int fill() throws EncoderException {
+        int sampleSize = format.getSampleSize();
+        if (buffer.remaining() < sampleSize) {
+            if (ended) {
+                return -1;
+            }
+            if (closed) {
+                throw new EncoderException("The sample stream is closed");
+            }
+            // Keep the bytes of a split sample, at most sampleSize - 1.
+            buffer.compact();
+            try {
+                while (buffer.position() < sampleSize && !ended) {
+                    if (channel.read(buffer) < 0) {
+                        finish();
+                    }
+                }
+            } catch (IOException e) {
+                if (closed) {
+                    throw new EncoderException("The sample stream is closed", e);
+                }
+                throw new EncoderException(e);
+            } finally {
+                buffer.flip();
+            }
+            if (buffer.remaining() < sampleSize) {
+                return -1;
+            }
+        }
+        // Samples are consumed whole, so the position is always aligned.
+        int index = buffer.position() / sampleSize;
+        int available = buffer.remaining() / sampleSize;
+        shorts.clear();
+        floats.clear();
+        if (format == SampleFormat.F32LE) {
+            floats.position(index);
+        } else {
+            shorts.position(index);
+        }
+        return available;
+    }
+
+    /**
+     * Private utility. It waits for the end of the process, once all the
+     * samples have been read, and checks its exit code.
+     */
+    private void finish() throws EncoderException {
+        ended = true;
+        try {
+            int exitCode = ffmpeg.waitFor();
+            if (pump != null) {
+                pump.join();
+                if (pump.getReadFailure() != null) {
+                    throw new EncoderException(pump.getReadFailure());
+                }
+            }
+            if (exitCode != 0 && !closed) {
+                throw new EncoderException("Cannot decode the audio: "
+                        + ffmpeg.getTailMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Decoding cancelled", e);
+        } finally {
+            ffmpeg.destroy();
+        }
+    }
+
+}
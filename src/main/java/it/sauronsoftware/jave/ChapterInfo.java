@@ -0,0 +1,109 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.Serializable;
+
+/**
+ * Instances of this class report informations about a chapter of a
+ * multimedia file.
+ */
+public class ChapterInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The chapter id.
+     */
+    private long id = -1;
+
+    /**
+     * The chapter start time in millis.
+     */
+    private long startTime = -1;
+
+    /**
+     * The chapter end time in millis.
+     */
+    private long endTime = -1;
+
+    /**
+     * The chapter title, or null.
+     */
+    private String title = null;
+
+    /**
+     * Returns the chapter id.
+     *
+     * @return The chapter id.
+     */
+    public long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the chapter start time in millis.
+     *
+     * @return The chapter start time in millis.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * Returns the chapter end time in millis.
+     *
+     * @return The chapter end time in millis.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+    /**
+     * Returns the chapter title, or null.
+     *
+     * @return The chapter title.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    void setTitle(String title) {
+        this.title = title;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (id=" + id + ", startTime=" + startTime
+                + ", endTime=" + endTime + ", title=" + title + ")";
+    }
+
+}
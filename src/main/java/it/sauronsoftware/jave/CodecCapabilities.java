@@ -0,0 +1,522 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable snapshot of the codecs, formats and filters supported by a
+ * ffmpeg executable. It is built once from the output of the
+ * <em>-formats</em>, <em>-codecs</em>, <em>-encoders</em>, <em>-decoders</em>
+ * and <em>-filters</em> calls, and indexed for constant time lookups.
+ *
+ * Snapshots are cached per executable: see
+ * {@link CodecCapabilities#of(FFMPEGLocator)}. A cached snapshot is rebuilt
+ * only when the executable path or its last modification time changes.
+ */
+public class CodecCapabilities {
+
+    /**
+     * This regexp is used to parse the legacy ffmpeg output about the
+     * supported formats (the "File formats:" section of <em>-formats</em>).
+     */
+    private static final Pattern LEGACY_FORMAT_PATTERN = Pattern
+            .compile("^\\s*([D ])([E ])\\s+([\\w,]+)\\s+.+$");
+    /**
+     * This regexp is used to parse the ffmpeg output about the included
+     * codecs (the "Codecs:" section of the legacy <em>-formats</em>, or the
+     * <em>-codecs</em> output).
+     */
+    private static final Pattern CODEC_PATTERN = Pattern.compile(
+            "^\\s*([D. ])([E. ])([AVSDT])[\\w. ]{3}\\s+(\\S+).*$");
+    /**
+     * This regexp is used to parse the ffmpeg output about the included
+     * encoders or decoders (<em>-encoders</em> and <em>-decoders</em>).
+     */
+    private static final Pattern CODER_PATTERN = Pattern.compile(
+            "^\\s*([VAS])[\\w.]{5}\\s+(\\S+).*$");
+    /**
+     * This regexp is used to parse the ffmpeg output about the supported
+     * formats (<em>-formats</em>).
+     */
+    private static final Pattern FORMAT_PATTERN = Pattern.compile(
+            "^\\s?([D. ])([E. ])([d. ]?)\\s+(\\S+).*$");
+    /**
+     * This regexp is used to parse the ffmpeg output about the included
+     * filters (<em>-filters</em>).
+     */
+    private static final Pattern FILTER_PATTERN = Pattern.compile(
+            "^\\s*(?:[T.][S.][C.]?\\s+)?(\\S+)\\s+[AVN|]+->[AVN|]+\\s.*$");
+    /**
+     * This regexp matches the line separating the legend from the entries in
+     * the modern ffmpeg listings.
+     */
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("^\\s*-+\\s*$");
+
+    /**
+     * The snapshots already built, keyed by executable path.
+     */
+    private static final ConcurrentMap<String, CodecCapabilities> CACHE =
+            new ConcurrentHashMap<String, CodecCapabilities>();
+
+    /**
+     * The path of the probed executable.
+     */
+    private final String executablePath;
+
+    /**
+     * The last modification time of the probed executable.
+     */
+    private final long executableLastModified;
+
+    private final Set<String> audioDecoders;
+    private final Set<String> audioEncoders;
+    private final Set<String> videoDecoders;
+    private final Set<String> videoEncoders;
+    private final Set<String> subtitleDecoders;
+    private final Set<String> subtitleEncoders;
+    private final Set<String> decodingFormats;
+    private final Set<String> encodingFormats;
+    private final Set<String> filters;
+
+    /**
+     * Private constructor. It freezes the sets collected by a builder.
+     */
+    private CodecCapabilities(Builder builder) {
+        this.executablePath = builder.executablePath;
+        this.executableLastModified = builder.executableLastModified;
+        this.audioDecoders = Collections.unmodifiableSet(builder.audioDecoders);
+        this.audioEncoders = Collections.unmodifiableSet(builder.audioEncoders);
+        this.videoDecoders = Collections.unmodifiableSet(builder.videoDecoders);
+        this.videoEncoders = Collections.unmodifiableSet(builder.videoEncoders);
+        this.subtitleDecoders = Collections.unmodifiableSet(builder.subtitleDecoders);
+        this.subtitleEncoders = Collections.unmodifiableSet(builder.subtitleEncoders);
+        this.decodingFormats = Collections.unmodifiableSet(builder.decodingFormats);
+        this.encodingFormats = Collections.unmodifiableSet(builder.encodingFormats);
+        this.filters = Collections.unmodifiableSet(builder.filters);
+    }
+
+    /**
+     * Returns the capabilities of the ffmpeg executable picked up by the given
+     * locator. The executable is probed at the first call only; later calls
+     * return the cached snapshot, unless the executable path or its last
+     * modification time has changed.
+     *
+     * @param locator The locator picking up the ffmpeg executable.
+     * @return The capabilities of the executable.
+     * @throws EncoderException If a problem occurs calling the underlying
+     * ffmpeg executable.
+     */
+    public static CodecCapabilities of(FFMPEGLocator locator) throws EncoderException {
+        String path = locator.getFFMPEGExecutablePath();
+        long lastModified = new File(path).lastModified();
+        CodecCapabilities cached = CACHE.get(path);
+        if (cached != null && cached.executableLastModified == lastModified) {
+            return cached;
+        }
+        synchronized (CACHE) {
+            cached = CACHE.get(path);
+            if (cached != null && cached.executableLastModified == lastModified) {
+                return cached;
+            }
+            Builder builder = new Builder(path, lastModified);
+            builder.probe(locator, "-formats");
+            builder.probe(locator, "-codecs");
+            builder.probe(locator, "-encoders");
+            builder.probe(locator, "-decoders");
+            builder.probe(locator, "-filters");
+            CodecCapabilities capabilities = new CodecCapabilities(builder);
+            CACHE.put(path, capabilities);
+            return capabilities;
+        }
+    }
+
+    /**
+     * Drops every cached snapshot, so that the next
+     * {@link CodecCapabilities#of(FFMPEGLocator)} call probes the executable
+     * again.
+     */
+    public static void invalidateAll() {
+        CACHE.clear();
+    }
+
+    /**
+     * Returns the path of the probed ffmpeg executable.
+     *
+     * @return The path of the probed ffmpeg executable.
+     */
+    public String getExecutablePath() {
+        return executablePath;
+    }
+
+    /**
+     * Returns true if the given encoder (audio, video or subtitle) is
+     * available, for example <em>libx264</em> or <em>aac</em>.
+     *
+     * @param encoder The encoder name.
+     * @return true if the encoder is available.
+     */
+    public boolean canEncode(String encoder) {
+        return audioEncoders.contains(encoder) || videoEncoders.contains(encoder)
+                || subtitleEncoders.contains(encoder);
+    }
+
+    /**
+     * Returns true if the given decoder (audio, video or subtitle) is
+     * available.
+     *
+     * @param decoder The decoder name.
+     * @return true if the decoder is available.
+     */
+    public boolean canDecode(String decoder) {
+        return audioDecoders.contains(decoder) || videoDecoders.contains(decoder)
+                || subtitleDecoders.contains(decoder);
+    }
+
+    /**
+     * Returns true if a multimedia file can be generated in the given format.
+     *
+     * @param format The format name.
+     * @return true if the format is supported at encoding time.
+     */
+    public boolean canMux(String format) {
+        return encodingFormats.contains(format);
+    }
+
+    /**
+     * Returns true if a multimedia file in the given format can be decoded.
+     *
+     * @param format The format name.
+     * @return true if the format is supported at decoding time.
+     */
+    public boolean canDemux(String format) {
+        return decodingFormats.contains(format);
+    }
+
+    /**
+     * Returns true if the given filter is available.
+     *
+     * @param filter The filter name.
+     * @return true if the filter is available.
+     */
+    public boolean hasFilter(String filter) {
+        return filters.contains(filter);
+    }
+
+    /**
+     * Returns the names of the audio decoders.
+     *
+     * @return An unmodifiable set with the names of the audio decoders.
+     */
+    public Set<String> getAudioDecoders() {
+        return audioDecoders;
+    }
+
+    /**
+     * Returns the names of the audio encoders.
+     *
+     * @return An unmodifiable set with the names of the audio encoders.
+     */
+    public Set<String> getAudioEncoders() {
+        return audioEncoders;
+    }
+
+    /**
+     * Returns the names of the video decoders.
+     *
+     * @return An unmodifiable set with the names of the video decoders.
+     */
+    public Set<String> getVideoDecoders() {
+        return videoDecoders;
+    }
+
+    /**
+     * Returns the names of the video encoders.
+     *
+     * @return An unmodifiable set with the names of the video encoders.
+     */
+    public Set<String> getVideoEncoders() {
+        return videoEncoders;
+    }
+
+    /**
+     * Returns the names of the subtitle decoders.
+     *
+     * @return An unmodifiable set with the names of the subtitle decoders.
+     */
+    public Set<String> getSubtitleDecoders() {
+        return subtitleDecoders;
+    }
+
+    /**
+     * Returns the names of the subtitle encoders.
+     *
+     * @return An unmodifiable set with the names of the subtitle encoders.
+     */
+    public Set<String> getSubtitleEncoders() {
+        return subtitleEncoders;
+    }
+
+    /**
+     * Returns the names of the formats supported at decoding time.
+     *
+     * @return An unmodifiable set with the names of the formats supported at
+     * decoding time.
+     */
+    public Set<String> getDecodingFormats() {
+        return decodingFormats;
+    }
+
+    /**
+     * Returns the names of the formats supported at encoding time.
+     *
+     * @return An unmodifiable set with the names of the formats supported at
+     * encoding time.
+     */
+    public Set<String> getEncodingFormats() {
+        return encodingFormats;
+    }
+
+    /**
+     * Returns the names of the available filters.
+     *
+     * @return An unmodifiable set with the names of the available filters.
+     */
+    public Set<String> getFilters() {
+        return filters;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (executablePath=" + executablePath
+                + ", audioDecoders=" + audioDecoders.size() + ", audioEncoders="
+                + audioEncoders.size() + ", videoDecoders=" + videoDecoders.size()
+                + ", videoEncoders=" + videoEncoders.size() + ", decodingFormats="
+                + decodingFormats.size() + ", encodingFormats="
+                + encodingFormats.size() + ", filters=" + filters.size() + ")";
+    }
+
+    /**
+     * Collects the capabilities while parsing the ffmpeg listings.
+     */
+    private static class Builder {
+
+        private final String executablePath;
+        private final long executableLastModified;
+        private final Set<String> audioDecoders = new LinkedHashSet<String>();
+        private final Set<String> audioEncoders = new LinkedHashSet<String>();
+        private final Set<String> videoDecoders = new LinkedHashSet<String>();
+        private final Set<String> videoEncoders = new LinkedHashSet<String>();
+        private final Set<String> subtitleDecoders = new LinkedHashSet<String>();
+        private final Set<String> subtitleEncoders = new LinkedHashSet<String>();
+        private final Set<String> decodingFormats = new LinkedHashSet<String>();
+        private final Set<String> encodingFormats = new LinkedHashSet<String>();
+        private final Set<String> filters = new LinkedHashSet<String>();
+
+        Builder(String executablePath, long executableLastModified) {
+            this.executablePath = executablePath;
+            this.executableLastModified = executableLastModified;
+        }
+
+        /**
+         * Calls ffmpeg with the given listing option and parses its output.
+         * Executables not supporting the option print nothing on the
+         * standard output, and contribute nothing.
+         *
+         * @param locator The locator picking up the ffmpeg executable.
+         * @param option The listing option.
+         * @throws EncoderException If a problem occurs calling the underlying
+         * ffmpeg executable.
+         */
+        void probe(FFMPEGLocator locator, String option) throws EncoderException {
+            FFMPEGExecutor ffmpeg = locator.createExecutor();
+            ffmpeg.addArgument(option);
+            ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+            ffmpeg.setSchedule(FFMPEGScheduler.PROBE_WEIGHT,
+                    FFMPEGScheduler.Priority.INTERACTIVE, null);
+            try {
+                ffmpeg.execute();
+                RBufferedReader reader = new RBufferedReader(new InputStreamReader(ffmpeg
+                        .getInputStream()));
+                if ("-formats".equals(option)) {
+                    parseFormats(reader);
+                } else if ("-codecs".equals(option)) {
+                    parseCodecs(reader, false);
+                } else if ("-filters".equals(option)) {
+                    parseFilters(reader);
+                } else {
+                    parseCoders(reader, "-encoders".equals(option));
+                }
+            } catch (IOException e) {
+                throw new EncoderException(e);
+            } finally {
+                ffmpeg.destroy();
+            }
+        }
+
+        /**
+         * Parses the <em>-formats</em> output. Legacy executables list both
+         * the formats (in a "File formats:" section) and the codecs (in a
+         * "Codecs:" section); modern ones list the formats only, after a
+         * legend.
+         */
+        private void parseFormats(RBufferedReader reader) throws IOException {
+            String line;
+            boolean evaluate = false;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.length() == 0) {
+                    continue;
+                }
+                if (trimmed.equals("Codecs:")) {
+                    parseCodecs(reader, true);
+                    evaluate = false;
+                } else if (trimmed.equals("File formats:")) {
+                    Matcher matcher;
+                    while ((line = reader.readLine()) != null
+                            && (matcher = LEGACY_FORMAT_PATTERN.matcher(line)).matches()) {
+                        addFormats(matcher.group(1).indexOf('D') >= 0,
+                                matcher.group(2).indexOf('E') >= 0, matcher.group(3));
+                    }
+                    if (line != null) {
+                        reader.reinsertLine(line);
+                    }
+                } else if (SEPARATOR_PATTERN.matcher(line).matches()) {
+                    evaluate = true;
+                } else if (evaluate) {
+                    Matcher matcher = FORMAT_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        addFormats("D".equals(matcher.group(1)),
+                                "E".equals(matcher.group(2)), matcher.group(4));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Parses a codec listing, either the "Codecs:" section of the legacy
+         * <em>-formats</em> output, or the modern <em>-codecs</em> output.
+         *
+         * @param legacySection true if parsing the legacy section, which
+         * starts immediately and ends at the first unmatched line.
+         */
+        private void parseCodecs(RBufferedReader reader, boolean legacySection)
+                throws IOException {
+            String line;
+            boolean evaluate = legacySection;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                if (evaluate) {
+                    Matcher matcher = CODEC_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        boolean decoder = "D".equals(matcher.group(1));
+                        boolean encoder = "E".equals(matcher.group(2));
+                        addCoder(matcher.group(3).charAt(0), matcher.group(4),
+                                decoder, encoder);
+                    } else if (legacySection) {
+                        reader.reinsertLine(line);
+                        break;
+                    }
+                } else if (SEPARATOR_PATTERN.matcher(line).matches()) {
+                    evaluate = true;
+                }
+            }
+        }
+
+        /**
+         * Parses the <em>-encoders</em> or <em>-decoders</em> output.
+         */
+        private void parseCoders(RBufferedReader reader, boolean encoders)
+                throws IOException {
+            String line;
+            boolean evaluate = false;
+            while ((line = reader.readLine()) != null) {
+                if (evaluate) {
+                    Matcher matcher = CODER_PATTERN.matcher(line);
+                    if (matcher.matches()) {
+                        addCoder(matcher.group(1).charAt(0), matcher.group(2),
+                                !encoders, encoders);
+                    }
+                } else if (SEPARATOR_PATTERN.matcher(line).matches()) {
+                    evaluate = true;
+                }
+            }
+        }
+
+        /**
+         * Parses the <em>-filters</em> output.
+         */
+        private void parseFilters(RBufferedReader reader) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = FILTER_PATTERN.matcher(line);
+                if (matcher.matches()) {
+                    filters.add(matcher.group(1));
+                }
+            }
+        }
+
+        private void addFormats(boolean decoding, boolean encoding, String names) {
+            StringTokenizer st = new StringTokenizer(names, ",");
+            while (st.hasMoreTokens()) {
+                String token = st.nextToken().trim();
+                if (decoding) {
+                    decodingFormats.add(token);
+                }
+                if (encoding) {
+                    encodingFormats.add(token);
+                }
+            }
+        }
+
+        private void addCoder(char type, String name, boolean decoder, boolean encoder) {
+            if (type == 'A') {
+                add(audioDecoders, audioEncoders, name, decoder, encoder);
+            } else if (type == 'V') {
+                add(videoDecoders, videoEncoders, name, decoder, encoder);
+            } else if (type == 'S') {
+                add(subtitleDecoders, subtitleEncoders, name, decoder, encoder);
+            }
+        }
+
+        private static void add(Set<String> decoders, Set<String> encoders,
+                String name, boolean decoder, boolean encoder) {
+            if (decoder) {
+                decoders.add(name);
+            }
+            if (encoder) {
+                encoders.add(name);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A package-private utility computing SHA-256 digests of files, whole or
+ * sampled, used to identify identical encoding jobs and outputs.
+ */
+class ContentHasher {
+
+    /**
+     * The size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The hexadecimal digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * It cannot be instantiated.
+     */
+    private ContentHasher() {
+    }
+
+    /**
+     * Returns a new SHA-256 digest.
+     *
+     * @return The digest.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the whole content of a file to a digest.
+     *
+     * @param digest The digest.
+     * @param file The file.
+     * @throws IOException If the file cannot be read.
+     */
+    static void update(MessageDigest digest, File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            try {
+                input.close();
+            } catch (Throwable t) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+    /**
+     * Adds a sample of the content of a file to a digest: its length and a
+     * number of evenly spaced chunks, including the first and the last one.
+     * The cost does not depend on the file size, but files differing only
+     * between the chunks have the same digest.
+     *
+     * @param digest The digest.
+     * @param file The file.
+     * @param samples The number of chunks, at least 2.
+     * @param sampleSize The size of a chunk, in bytes.
+     * @throws IOException If the file cannot be read.
+     */
+    static void updateSampled(MessageDigest digest, File file, int samples,
+            int sampleSize) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(8, sampleSize));
+            buffer.putLong(length);
+            buffer.flip();
+            digest.update(buffer);
+            long span = Math.max(0, length - sampleSize);
+            for (int i = 0; i < samples; i++) {
+                long position = span * i / (samples - 1);
+                buffer.clear();
+                buffer.limit(sampleSize);
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                digest.update(buffer);
+            }
+        } finally {
+            try {
+                input.close();
+            } catch (Throwable t) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-256 digest of a file, in hexadecimal form.
+     *
+     * @param file The file.
+     * @return The digest.
+     * @throws IOException If the file cannot be read.
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file);
+        return hex(digest.digest());
+    }
+
+    /**
+     * Returns the hexadecimal form of a digest.
+     *
+     * @param digest The digest.
+     * @return The hexadecimal form.
+     */
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return hex.toString();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+
+/**
+ * Attributes for a DASH (Dynamic Adaptive Streaming over HTTP) encoding
+ * process. The target file is the manifest (.mpd); the initialization and
+ * media segments of every representation are written next to it. With
+ * {@link StreamVariant}s, every variant becomes a representation of the
+ * video and audio adaptation sets.
+ */
+public class DashAttributes extends StreamingAttributes {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether the manifest lists the segments with a timeline, rather than
+     * with their number only.
+     */
+    private boolean useTimeline = true;
+
+    /**
+     * It builds the attributes of a DASH encoding process.
+     */
+    public DashAttributes() {
+        setFormat("dash");
+    }
+
+    /**
+     * Returns true if the manifest lists the segments with a timeline.
+     *
+     * @return true if the manifest lists the segments with a timeline.
+     */
+    public boolean isUseTimeline() {
+        return useTimeline;
+    }
+
+    /**
+     * Sets whether the manifest lists the segments with a timeline
+     * (SegmentTimeline), rather than with their number only.
+     *
+     * @param useTimeline true to list the segments with a timeline.
+     */
+    public void setUseTimeline(boolean useTimeline) {
+        this.useTimeline = useTimeline;
+    }
+
+    @Override
+    void addMuxerArguments(FFMPEGExecutor ffmpeg, File target, boolean video) {
+        String base = getBaseName(target);
+        if (video) {
+            addKeyFrameArguments(ffmpeg);
+        }
+        ffmpeg.addArgument("-seg_duration");
+        ffmpeg.addArgument(String.valueOf(getSegmentDuration()));
+        ffmpeg.addArgument("-use_template");
+        ffmpeg.addArgument("1");
+        ffmpeg.addArgument("-use_timeline");
+        ffmpeg.addArgument(useTimeline ? "1" : "0");
+        ffmpeg.addArgument("-init_seg_name");
+        ffmpeg.addArgument(base + "_init-$RepresentationID$.$ext$");
+        ffmpeg.addArgument("-media_seg_name");
+        ffmpeg.addArgument(base + "_chunk-$RepresentationID$-$Number%05d$.$ext$");
+        if (!getVariants().isEmpty()) {
+            boolean hasVideo = false;
+            boolean hasAudio = false;
+            for (StreamVariant variant : getVariants()) {
+                hasVideo |= variant.getVideoAttributes() != null;
+                hasAudio |= variant.getAudioAttributes() != null;
+            }
+            StringBuilder sets = new StringBuilder();
+            if (hasVideo) {
+                sets.append("id=0,streams=v");
+            }
+            if (hasAudio) {
+                if (sets.length() > 0) {
+                    sets.append(' ');
+                }
+                sets.append("id=").append(hasVideo ? 1 : 0).append(",streams=a");
+            }
+            ffmpeg.addArgument("-adaptation_sets");
+            ffmpeg.addArgument(sets.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "(useTimeline=" + useTimeline + ")";
+    }
+
+}
@@ -19,16 +19,42 @@
 package it.sauronsoftware.jave;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * The default ffmpeg executable locator, which exports on disk the ffmpeg
  * executable bundled with the library distributions. It should work both for
  * windows and many linux distributions. If it doesn't, try compiling your own
  * ffmpeg executable and plug it in JAVE with a custom {@link FFMPEGLocator}.
+ * 
+ * The executable is located once per JVM, the first time a locator is
+ * needed, and shared by every instance. It is exported only if it is missing
+ * or if its SHA-256 digest does not match the bundled one; the export writes
+ * a temporary file which is then atomically renamed, so concurrent JVMs
+ * never run a partially written executable. The lookup can be tuned with
+ * these system properties:
+ * <ul>
+ * <li><em>jave.ffmpeg.path</em>: the path of the ffmpeg executable to use,
+ * skipping the export;</li>
+ * <li><em>jave.ffmpeg.preferSystem</em>: if true, a ffmpeg executable found
+ * on the PATH is preferred to the bundled one;</li>
+ * <li><em>jave.ffmpeg.dir</em>: the directory the bundled executables are
+ * exported to, instead of a <em>jave-N</em> directory in the temp
+ * directory.</li>
+ * </ul>
  * @author Carlo Pelliccia
  */
 public class DefaultFFMPEGLocator extends FFMPEGLocator {
@@ -44,16 +70,95 @@ public class DefaultFFMPEGLocator extends FFMPEGLocator {
     private final String path;
 
     /**
-     * It builds the default FFMPEGLocator, exporting the ffmpeg executable on a
-     * temp file.
+     * The ffmpeg executable file path, set by the first successful lookup.
+     */
+    private static volatile String locatedPath = null;
+
+    /**
+     * The shared instance, built on first use.
+     */
+    private static volatile DefaultFFMPEGLocator instance = null;
+
+    /**
+     * It builds the default FFMPEGLocator. The ffmpeg executable is located,
+     * and exported on a temp file if needed, by the first instance built in
+     * the JVM. A failed lookup is tried again by the next instance.
+     * 
+     * @throws RuntimeException If the bundled executable cannot be exported.
      */
     public DefaultFFMPEGLocator() {
-        // Windows?
-        boolean isWindows = false;
-        String suffix = "";
+        this.path = locatedPath();
+    }
+
+    /**
+     * Returns the shared instance, used by the classes of the library built
+     * without a custom locator. Since it is shared, a scheduler set on it
+     * (see {@link FFMPEGLocator#setScheduler(FFMPEGScheduler)}) applies to
+     * all of them.
+     * 
+     * @return The shared instance.
+     * @throws RuntimeException If the bundled executable cannot be exported.
+     */
+    public static DefaultFFMPEGLocator getInstance() {
+        DefaultFFMPEGLocator result = instance;
+        if (result == null) {
+            synchronized (DefaultFFMPEGLocator.class) {
+                result = instance;
+                if (result == null) {
+                    result = new DefaultFFMPEGLocator();
+                    instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Private utility. It returns the located ffmpeg executable path,
+     * locating it if no lookup has succeeded yet. Only a success is cached,
+     * so a failure (a full disk, a race with another JVM...) does not break
+     * the locator until the JVM restarts.
+     */
+    private static String locatedPath() {
+        String result = locatedPath;
+        if (result == null) {
+            synchronized (DefaultFFMPEGLocator.class) {
+                result = locatedPath;
+                if (result == null) {
+                    result = locate();
+                    locatedPath = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected String getFFMPEGExecutablePath() {
+        return path;
+    }
+
+    /**
+     * Private utility. It locates the ffmpeg executable, exporting the
+     * bundled one if needed.
+     * 
+     * @return The path of the ffmpeg executable.
+     */
+    private static String locate() {
+        String configured = System.getProperty("jave.ffmpeg.path");
+        if (configured != null && configured.length() > 0) {
+            return configured;
+        }
         String os = System.getProperty("os.name").toLowerCase();
-        if (os.contains("windows")) {
-            isWindows = true;
+        boolean isWindows = os.contains("windows");
+        if (Boolean.getBoolean("jave.ffmpeg.preferSystem")) {
+            File system = findOnPath(isWindows ? "ffmpeg.exe" : "ffmpeg");
+            if (system != null) {
+                return system.getAbsolutePath();
+            }
+        }
+        String suffix;
+        if (isWindows) {
             suffix = ".exe";
         } else if (os.contains("mac")) {
             suffix = ".mac";
@@ -61,73 +166,266 @@ public class DefaultFFMPEGLocator extends FFMPEGLocator {
             suffix = ".linux";
         }
         // Temp dir?
-        File temp = new File(System.getProperty("java.io.tmpdir"), "jave-" + myEXEversion);
-        if (!temp.exists()) {
-            temp.mkdirs();
-            temp.deleteOnExit();
+        String dir = System.getProperty("jave.ffmpeg.dir");
+        File temp = dir != null && dir.length() > 0 ? new File(dir)
+                : new File(System.getProperty("java.io.tmpdir"), "jave-" + myEXEversion);
+        try {
+            Files.createDirectories(temp.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create directory " + temp.getAbsolutePath(), e);
         }
         // ffmpeg executable export on disk.
         File exe = new File(temp, "ffmpeg" + suffix);
-        if (!exe.exists()) {
-            copyFile("ffmpeg" + suffix, exe);
-        }
-        // Need a chmod?
-        if (!isWindows) {
-            Runtime runtime = Runtime.getRuntime();
-            try {
-                runtime.exec(new String[]{"/bin/chmod", "755", exe.getAbsolutePath()});
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        export("ffmpeg" + suffix, exe.toPath());
+        // ffprobe executable export on disk, if bundled.
+        if (DefaultFFMPEGLocator.class.getResource("/native/ffprobe" + suffix) != null) {
+            export("ffprobe" + suffix, new File(temp, "ffprobe" + suffix).toPath());
         }
         // Ok.
-        this.path = exe.getAbsolutePath();
+        return exe.getAbsolutePath();
     }
 
-    @Override
-    protected String getFFMPEGExecutablePath() {
-        return path;
+    /**
+     * Private utility. It looks for an executable in the directories of the
+     * PATH.
+     * 
+     * @param name The name of the executable.
+     * @return The executable, or null if it is not found.
+     */
+    private static File findOnPath(String name) {
+        String value = System.getenv("PATH");
+        if (value == null) {
+            return null;
+        }
+        for (String directory : value.split(File.pathSeparator)) {
+            if (directory.length() > 0) {
+                File candidate = new File(directory, name);
+                if (candidate.isFile() && candidate.canExecute()) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
     }
 
     /**
-     * Copies a file bundled in the package to the supplied destination.
-     * @param path The name of the bundled file.
+     * Private utility. It exports a bundled file to the supplied destination,
+     * unless the destination already has the expected content.
+     * 
+     * @param name The name of the bundled file.
      * @param dest The destination.
-     * @throws RuntimeException If aun unexpected error occurs.
+     * @throws RuntimeException If an unexpected error occurs.
      */
-    private void copyFile(String path, File dest) throws RuntimeException {
-        InputStream input = null;
-        OutputStream output = null;
-        try {
-            input = getClass().getResourceAsStream("/native/" + path);
-            if (input != null) {
-                output = new FileOutputStream(dest);
-                byte[] buffer = new byte[1024];
-                int l;
-                while ((l = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, l);
+    private static void export(String name, Path dest) throws RuntimeException {
+        byte[] expected = storedDigest(name);
+        if (Files.isRegularFile(dest)) {
+            try {
+                // Without a stored digest the bundled file must be read to
+                // compute it: a different size avoids it.
+                long size = expected == null ? bundledSize(name) : -1;
+                if (expected != null || size < 0 || Files.size(dest) == size) {
+                    if (expected == null) {
+                        expected = bundledDigest(name);
+                    }
+                    if (Arrays.equals(expected, digest(Files.newInputStream(dest)))) {
+                        return;
+                    }
                 }
-            } else {
-                throw new RuntimeException("Cannot retrieve native file " + path);
+            } catch (IOException e) {
+                ; // Export it again.
             }
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dest.getParent(), name, ".tmp");
+            InputStream input = DefaultFFMPEGLocator.class
+                    .getResourceAsStream("/native/" + name);
+            if (input == null) {
+                throw new RuntimeException("Cannot retrieve native file " + name);
+            }
+            DigestInputStream digestInput = new DigestInputStream(input, sha256());
+            try {
+                Files.copy(digestInput, temp, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                digestInput.close();
+            }
+            byte[] copied = digestInput.getMessageDigest().digest();
+            if (expected == null) {
+                // The copy is the reference.
+                expected = copied;
+            } else if (!Arrays.equals(expected, copied)) {
+                throw new RuntimeException("Corrupted native file " + name);
+            }
+            setExecutable(temp);
+            try {
+                Files.move(temp, dest, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
         } catch (IOException e) {
-            throw new RuntimeException("Cannot write file " + dest.getAbsolutePath());
-        } finally {
-            if (output != null) {
-                try {
-                    output.close();
-                } catch (Throwable t) {
-                    ; // Silent ignore
+            // Another JVM may have exported it meanwhile (on windows a running
+            // executable cannot be replaced).
+            try {
+                if (expected == null) {
+                    expected = bundledDigest(name);
+                }
+                if (Files.isRegularFile(dest)
+                        && Arrays.equals(expected, digest(Files.newInputStream(dest)))) {
+                    return;
                 }
+            } catch (IOException e2) {
+                ; // Silent ignore
             }
-            if (input != null) {
+            throw new RuntimeException("Cannot write file " + dest.toAbsolutePath(), e);
+        } finally {
+            if (temp != null) {
                 try {
-                    input.close();
-                } catch (Throwable t) {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
                     ; // Silent ignore
                 }
             }
         }
     }
 
+    /**
+     * Private utility. It returns the SHA-256 digest of a bundled file stored
+     * in the <em>.sha256</em> resource next to it, generated by the build.
+     * 
+     * @param name The name of the bundled file.
+     * @return The digest, or null if it is not stored.
+     */
+    private static byte[] storedDigest(String name) {
+        InputStream stored = DefaultFFMPEGLocator.class
+                .getResourceAsStream("/native/" + name + ".sha256");
+        if (stored == null) {
+            return null;
+        }
+        try {
+            return parseHex(stored);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Private utility. It returns the size of a bundled file, without reading
+     * it.
+     * 
+     * @param name The name of the bundled file.
+     * @return The size, or -1 if it is not known.
+     */
+    private static long bundledSize(String name) {
+        URL url = DefaultFFMPEGLocator.class.getResource("/native/" + name);
+        if (url == null) {
+            return -1;
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            long size = connection.getContentLengthLong();
+            connection.getInputStream().close();
+            return size;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Private utility. It computes the SHA-256 digest of a bundled file,
+     * reading it.
+     * 
+     * @param name The name of the bundled file.
+     * @return The digest.
+     * @throws RuntimeException If the bundled file cannot be read.
+     */
+    private static byte[] bundledDigest(String name) throws RuntimeException {
+        InputStream input = DefaultFFMPEGLocator.class
+                .getResourceAsStream("/native/" + name);
+        if (input == null) {
+            throw new RuntimeException("Cannot retrieve native file " + name);
+        }
+        try {
+            return digest(input);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read native file " + name, e);
+        }
+    }
+
+    /**
+     * Private utility. It parses a digest written in hex, as by sha256sum,
+     * and closes the stream.
+     * 
+     * @return The digest, or null if the content is not a SHA-256 digest.
+     */
+    private static byte[] parseHex(InputStream input) throws IOException {
+        byte[] text = new byte[64];
+        int length = 0;
+        try {
+            int read;
+            while (length < text.length
+                    && (read = input.read(text, length, text.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            input.close();
+        }
+        if (length < text.length) {
+            return null;
+        }
+        byte[] digest = new byte[32];
+        for (int i = 0; i < digest.length; i++) {
+            int high = Character.digit(text[i * 2], 16);
+            int low = Character.digit(text[i * 2 + 1], 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
+
+    /**
+     * Private utility. It computes the SHA-256 digest of a stream, and closes
+     * it.
+     */
+    private static byte[] digest(InputStream input) throws IOException {
+        MessageDigest digest = sha256();
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int l;
+            while ((l = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, l);
+            }
+        } finally {
+            input.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Private utility. It returns a new SHA-256 digest.
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Private utility. It makes a file executable (rwxr-xr-x) without forking
+     * a chmod process.
+     */
+    private static void setExecutable(Path file) throws IOException {
+        if (Files.getFileAttributeView(file, PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+        } else {
+            file.toFile().setExecutable(true, false);
+        }
+    }
+
 }
@@ -0,0 +1,389 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent {@link MultimediaInfoCache}, storing one small file per entry
+ * in a directory, so that probe results survive JVM restarts. It is meant to
+ * be used as the second level of a {@link LruMultimediaInfoCache}.
+ *
+ * Entry files are named after the path of the source file only: the length
+ * and the last modification time are stored inside, so the entry of a
+ * modified file is overwritten instead of being left behind. The directory
+ * is bounded by a maximum number of entries and by a time to live: entries
+ * older than the time to live are dropped, and when there are too many
+ * entries the oldest ones are deleted. Unreadable entry files are silently
+ * ignored and deleted.
+ */
+public class DiskMultimediaInfoCache implements MultimediaInfoCache {
+
+    /**
+     * The entry files extension.
+     */
+    private static final String EXTENSION = ".info";
+
+    /**
+     * The hexadecimal digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * The classes an entry file can contain. Anything else is rejected
+     * before it is instantiated, so that a file planted in the cache
+     * directory cannot run deserialization gadgets.
+     */
+    private static final Set<String> ENTRY_CLASSES = new HashSet<String>(
+            Arrays.asList(MultimediaInfoCache.Key.class.getName(),
+                    MultimediaInfo.class.getName(),
+                    AudioInfo.class.getName(),
+                    VideoInfo.class.getName(),
+                    VideoSize.class.getName(),
+                    StreamInfo.class.getName(),
+                    ChapterInfo.class.getName(),
+                    String.class.getName(),
+                    ArrayList.class.getName(),
+                    HashMap.class.getName(),
+                    LinkedHashMap.class.getName()));
+
+    /**
+     * The default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The default time to live of the entries, in millis (30 days).
+     */
+    public static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The directory holding the entries.
+     */
+    private final File directory;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int maxEntries;
+
+    /**
+     * The time to live of the entries, in millis, or 0 for none.
+     */
+    private final long ttl;
+
+    /**
+     * The approximate number of entries, counted on open and incremented by
+     * every new entry.
+     */
+    private final AtomicInteger entryCount = new AtomicInteger();
+
+    /**
+     * It builds the cache, holding up to {@link #DEFAULT_MAX_ENTRIES} entries
+     * for up to {@link #DEFAULT_TTL} millis. The directory is created if it
+     * does not exist.
+     *
+     * @param directory The directory holding the entries.
+     * @throws IOException If the directory cannot be created.
+     */
+    public DiskMultimediaInfoCache(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * It builds the cache. The directory is created if it does not exist,
+     * otherwise the expired and exceeding entries are pruned.
+     *
+     * @param directory The directory holding the entries.
+     * @param maxEntries The maximum number of entries.
+     * @param ttl The time to live of the entries, in millis, or 0 for none.
+     * @throws IOException If the directory cannot be created.
+     */
+    public DiskMultimediaInfoCache(File directory, int maxEntries, long ttl)
+            throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory "
+                    + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        prune();
+    }
+
+    /**
+     * Returns the directory holding the entries.
+     *
+     * @return The directory holding the entries.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return The maximum number of entries.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the time to live of the entries, in millis.
+     *
+     * @return The time to live, or 0 for none.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    @Override
+    public MultimediaInfo get(Key key) {
+        File file = fileFor(key);
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        if (isExpired(lastModified)) {
+            if (file.delete()) {
+                entryCount.decrementAndGet();
+            }
+            return null;
+        }
+        ObjectInputStream input = null;
+        try {
+            input = new EntryInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            Object storedKey = input.readObject();
+            Object info = input.readObject();
+            if (!key.equals(storedKey)) {
+                // Stale: overwritten by the next put.
+                return null;
+            }
+            if (info instanceof MultimediaInfo) {
+                return (MultimediaInfo) info;
+            }
+        } catch (IOException e) {
+            ; // Unreadable entry, dropped below.
+        } catch (ClassNotFoundException e) {
+            ; // Entry written by an incompatible version, dropped below.
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (Throwable t) {
+                    ; // Silent ignore
+                }
+            }
+        }
+        if (file.delete()) {
+            entryCount.decrementAndGet();
+        }
+        return null;
+    }
+
+    @Override
+    public void put(Key key, MultimediaInfo info) {
+        File file = fileFor(key);
+        boolean added = !file.isFile();
+        File temp = null;
+        ObjectOutputStream output = null;
+        try {
+            temp = File.createTempFile("entry", ".tmp", directory);
+            output = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            output.writeObject(key);
+            output.writeObject(info);
+            output.close();
+            output = null;
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            if (added && entryCount.incrementAndGet() > maxEntries) {
+                prune();
+            }
+        } catch (IOException e) {
+            ; // The cache is best effort.
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (Throwable t) {
+                    ; // Silent ignore
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    @Override
+    public void remove(Key key) {
+        if (fileFor(key).delete()) {
+            entryCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(EXTENSION)) {
+                    file.delete();
+                }
+            }
+        }
+        entryCount.set(0);
+    }
+
+    /**
+     * Private utility. It deletes the expired entries and, if there are more
+     * entries than the maximum, the oldest ones, leaving room for a tenth of
+     * the maximum so that pruning does not happen on every put.
+     */
+    private synchronized void prune() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        ArrayList<File> entries = new ArrayList<File>(files.length);
+        final HashMap<File, Long> times = new HashMap<File, Long>();
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            long lastModified = file.lastModified();
+            if (isExpired(lastModified)) {
+                file.delete();
+            } else {
+                entries.add(file);
+                times.put(file, lastModified);
+            }
+        }
+        int count = entries.size();
+        if (count > maxEntries) {
+            Collections.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(times.get(a), times.get(b));
+                }
+            });
+            int target = maxEntries - maxEntries / 10;
+            for (int i = 0; count > target; i++) {
+                entries.get(i).delete();
+                count--;
+            }
+        }
+        entryCount.set(count);
+    }
+
+    /**
+     * Private utility. It checks whether an entry written at the given time
+     * is expired.
+     */
+    private boolean isExpired(long lastModified) {
+        return ttl > 0 && System.currentTimeMillis() - lastModified > ttl;
+    }
+
+    /**
+     * Private utility. It returns the file storing the entry for the given
+     * key, named after a digest of the path of the source file.
+     */
+    private File fileFor(Key key) {
+        String id = key.getPath();
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(
+                    id.getBytes(Charset.forName("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder name = new StringBuilder(digest.length * 2 + EXTENSION.length());
+        for (byte b : digest) {
+            name.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        name.append(EXTENSION);
+        return new File(directory, name.toString());
+    }
+
+    /**
+     * An object input stream reading only the classes of an entry.
+     */
+    private static class EntryInputStream extends ObjectInputStream {
+
+        EntryInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            if (!ENTRY_CLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(),
+                        "Not allowed in a cache entry");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces)
+                throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("Proxies are not allowed in a cache entry");
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (directory=" + directory
+                + ", maxEntries=" + maxEntries + ", ttl=" + ttl + ")";
+    }
+
+}
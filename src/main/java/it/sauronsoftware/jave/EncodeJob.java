@@ -0,0 +1,120 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * A package-private handle on a single encoding run. It tracks the ffmpeg
+ * process currently working for the job, so that another thread can abort the
+ * job by killing the process.
+ */
+class EncodeJob {
+
+    /**
+     * The ffmpeg process currently attached to the job, if any.
+     */
+    private FFMPEGExecutor ffmpeg = null;
+
+    /**
+     * Whether the job has been cancelled.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * The thread running the job, if it is interrupted on cancellation.
+     */
+    private Thread worker = null;
+
+    /**
+     * Attaches a started ffmpeg process to the job. If the job has already
+     * been cancelled the process is destroyed immediately.
+     *
+     * @param ffmpeg The started ffmpeg process.
+     * @return true if the process has been attached, false if the job was
+     * already cancelled.
+     */
+    synchronized boolean attach(FFMPEGExecutor ffmpeg) {
+        if (cancelled) {
+            ffmpeg.destroy();
+            return false;
+        }
+        this.ffmpeg = ffmpeg;
+        return true;
+    }
+
+    /**
+     * Detaches the given ffmpeg process from the job.
+     *
+     * @param ffmpeg The process to detach.
+     */
+    synchronized void detach(FFMPEGExecutor ffmpeg) {
+        if (this.ffmpeg == ffmpeg) {
+            this.ffmpeg = null;
+        }
+    }
+
+    /**
+     * Sets the thread running the job, to be interrupted on cancellation: a
+     * job still waiting for the {@link FFMPEGScheduler} has no process to
+     * kill. With a null thread the current one is unregistered, and an
+     * interrupt left over by a late cancellation is cleared, so that it does
+     * not reach the next task of a pooled thread.
+     *
+     * @param worker The thread running the job, or null when it is done.
+     */
+    void setWorker(Thread worker) {
+        synchronized (this) {
+            this.worker = worker;
+            if (worker != null && cancelled) {
+                worker.interrupt();
+            }
+        }
+        if (worker == null) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Cancels the job, killing the attached ffmpeg process if there is one,
+     * and interrupting the thread running it.
+     */
+    void cancel() {
+        FFMPEGExecutor victim;
+        synchronized (this) {
+            cancelled = true;
+            victim = ffmpeg;
+            ffmpeg = null;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+        if (victim != null) {
+            victim.destroy();
+        }
+    }
+
+    /**
+     * Returns true if the job has been cancelled.
+     *
+     * @return true if the job has been cancelled.
+     */
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+}
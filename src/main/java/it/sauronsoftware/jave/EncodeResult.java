@@ -0,0 +1,110 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+
+/**
+ * Instances of this class report the outcome of a completed encoding process.
+ */
+public class EncodeResult {
+
+    /**
+     * The encoded target file.
+     */
+    private final File target;
+
+    /**
+     * Informations about the source multimedia file.
+     */
+    private final MultimediaInfo sourceInfo;
+
+    /**
+     * The streams copied instead of being re-encoded, or null if the
+     * automatic stream copy was not enabled.
+     */
+    private final RemuxPlan remuxPlan;
+
+    /**
+     * The time spent in the encoding process, in millis.
+     */
+    private final long elapsedTime;
+
+    /**
+     * It builds the bean.
+     *
+     * @param target The encoded target file.
+     * @param sourceInfo Informations about the source multimedia file.
+     * @param remuxPlan The streams copied instead of being re-encoded, or
+     * null if the automatic stream copy was not enabled.
+     * @param elapsedTime The time spent in the encoding process, in millis.
+     */
+    EncodeResult(File target, MultimediaInfo sourceInfo, RemuxPlan remuxPlan,
+            long elapsedTime) {
+        this.target = target;
+        this.sourceInfo = sourceInfo;
+        this.remuxPlan = remuxPlan;
+        this.elapsedTime = elapsedTime;
+    }
+
+    /**
+     * Returns the encoded target file.
+     *
+     * @return The encoded target file.
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns informations about the source multimedia file.
+     *
+     * @return Informations about the source multimedia file.
+     */
+    public MultimediaInfo getSourceInfo() {
+        return sourceInfo;
+    }
+
+    /**
+     * Returns the decision about the streams copied instead of being
+     * re-encoded (see {@link Encoder#setAutoStreamCopy(boolean)}).
+     *
+     * @return The plan, or null if the automatic stream copy was not
+     * enabled.
+     */
+    public RemuxPlan getRemuxPlan() {
+        return remuxPlan;
+    }
+
+    /**
+     * Returns the time spent in the encoding process, in millis.
+     *
+     * @return The time spent in the encoding process, in millis.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (target=" + target + ", sourceInfo="
+                + sourceInfo + ", remuxPlan=" + remuxPlan + ", elapsedTime=" + elapsedTime + ")";
+    }
+
+}
@@ -21,9 +21,22 @@ package it.sauronsoftware.jave;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.StringTokenizer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,18 +47,6 @@ import java.util.regex.Pattern;
  */
 public class Encoder {
 
-    /**
-     * This regexp is used to parse the ffmpeg output about the supported
-     * formats.
-     */
-    private static final Pattern FORMAT_PATTERN = Pattern
-            .compile("^\\s*([D ])([E ])\\s+([\\w,]+)\\s+.+$");
-    /**
-     * This regexp is used to parse the ffmpeg output about the included
-     * encoders/decoders.
-     */
-    private static final Pattern ENCODER_DECODER_PATTERN = Pattern.compile(
-            "^\\s*([D ])([E ])([AVS]).{3}\\s+(.+)$", Pattern.CASE_INSENSITIVE);
     /**
      * This regexp is used to parse the ffmpeg output about the ongoing encoding
      * process.
@@ -89,17 +90,41 @@ public class Encoder {
     private static final Pattern SUCCESS_PATTERN = Pattern.compile(
             "^\\s*video\\:\\S+\\s+audio\\:\\S+\\s+subtitle\\:\\S+\\s+global headers\\:\\S+.*$",
             Pattern.CASE_INSENSITIVE);
+    /**
+     * The formats whose muxer seeks back in the output (to write the index
+     * at the end), which therefore cannot be encoded to a stream.
+     */
+    private static final Set<String> SEEKABLE_FORMATS = new HashSet<String>(
+            Arrays.asList("mp4", "mov", "3gp", "3g2", "ipod", "psp", "f4v"));
     /**
      * The locator of the ffmpeg executable used by this encoder.
      */
     private final FFMPEGLocator locator;
 
+    /**
+     * The executor running the asynchronous encoding jobs. If null the shared
+     * {@link EncodingExecutor#getDefault()} is used.
+     */
+    private Executor asyncExecutor = null;
+
+    /**
+     * The minimum interval, in millis, between two notifications of the
+     * machine-readable progress channel.
+     */
+    private long progressInterval = 500;
+
+    /**
+     * Whether the streams already matching the requested attributes are
+     * copied instead of being re-encoded.
+     */
+    private boolean autoStreamCopy = false;
+
     /**
      * It builds an encoder using a {@link DefaultFFMPEGLocator} instance to
      * locate the ffmpeg executable to use.
      */
     public Encoder() {
-        this.locator = new DefaultFFMPEGLocator();
+        this.locator = DefaultFFMPEGLocator.getInstance();
     }
 
     /**
@@ -112,6 +137,96 @@ public class Encoder {
         this.locator = locator;
     }
 
+    /**
+     * Returns the locator of the ffmpeg executable used by this encoder.
+     *
+     * @return The locator.
+     */
+    FFMPEGLocator getLocator() {
+        return locator;
+    }
+
+    /**
+     * Returns the executor running the asynchronous encoding jobs.
+     *
+     * @return The executor running the asynchronous encoding jobs.
+     */
+    public Executor getAsyncExecutor() {
+        return asyncExecutor != null ? asyncExecutor : EncodingExecutor.getDefault();
+    }
+
+    /**
+     * Sets the executor running the asynchronous encoding jobs. A bounded
+     * {@link EncodingExecutor} is recommended, since every job keeps a ffmpeg
+     * process busy. If null or not specified the shared
+     * {@link EncodingExecutor#getDefault()} is used.
+     *
+     * @param asyncExecutor The executor running the asynchronous encoding jobs.
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Returns the minimum interval, in millis, between two notifications sent
+     * to a {@link ProgressSnapshotListener}.
+     *
+     * @return The minimum interval between two progress notifications.
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Sets the minimum interval, in millis, between two notifications sent to
+     * a {@link ProgressSnapshotListener}. The last notification of an
+     * encoding process is always sent. Default is 500.
+     *
+     * @param progressInterval The minimum interval between two progress
+     * notifications.
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Returns true if the streams already matching the requested attributes
+     * are copied instead of being re-encoded.
+     *
+     * @return true if the automatic stream copy is enabled.
+     */
+    public boolean isAutoStreamCopy() {
+        return autoStreamCopy;
+    }
+
+    /**
+     * Enables the automatic stream copy. When enabled, the source of a file
+     * encoding process is compared with the requested attributes by a
+     * {@link RemuxPlanner}, and every stream whose output would be
+     * equivalent is copied (<em>-c copy</em>) instead of being re-encoded.
+     * The decision is reported by {@link EncodeResult#getRemuxPlan()}. It
+     * does not apply to stream sources, to multi-output processes and to
+     * streaming attributes. Default is false.
+     *
+     * @param autoStreamCopy true to enable the automatic stream copy.
+     */
+    public void setAutoStreamCopy(boolean autoStreamCopy) {
+        this.autoStreamCopy = autoStreamCopy;
+    }
+
+    /**
+     * Returns the capabilities of the ffmpeg executable in use. The executable
+     * is probed once, and the result is cached (see
+     * {@link CodecCapabilities#of(FFMPEGLocator)}).
+     *
+     * @return The capabilities of the ffmpeg executable in use.
+     * @throws EncoderException If a problem occurs calling the underlying
+     * ffmpeg executable.
+     */
+    public CodecCapabilities getCapabilities() throws EncoderException {
+        return locator.getCapabilities();
+    }
+
     /**
      * Returns a list with the names of all the audio decoders bundled with the
      * ffmpeg distribution in use. An audio stream can be decoded only if a
@@ -122,48 +237,7 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getAudioDecoders() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = ENCODER_DECODER_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String decoderFlag = matcher.group(1);
-                        String audioVideoFlag = matcher.group(3);
-                        if ("D".equals(decoderFlag)
-                                && "A".equals(audioVideoFlag)) {
-                            String name = matcher.group(4);
-                            res.add(name);
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("Codecs:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getAudioDecoders());
     }
 
     /**
@@ -176,48 +250,7 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getAudioEncoders() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = ENCODER_DECODER_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String encoderFlag = matcher.group(2);
-                        String audioVideoFlag = matcher.group(3);
-                        if ("E".equals(encoderFlag)
-                                && "A".equals(audioVideoFlag)) {
-                            String name = matcher.group(4);
-                            res.add(name);
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("Codecs:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getAudioEncoders());
     }
 
     /**
@@ -230,48 +263,7 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getVideoDecoders() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = ENCODER_DECODER_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String decoderFlag = matcher.group(1);
-                        String audioVideoFlag = matcher.group(3);
-                        if ("D".equals(decoderFlag)
-                                && "V".equals(audioVideoFlag)) {
-                            String name = matcher.group(4);
-                            res.add(name);
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("Codecs:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getVideoDecoders());
     }
 
     /**
@@ -284,48 +276,7 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getVideoEncoders() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = ENCODER_DECODER_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String encoderFlag = matcher.group(2);
-                        String audioVideoFlag = matcher.group(3);
-                        if ("E".equals(encoderFlag)
-                                && "V".equals(audioVideoFlag)) {
-                            String name = matcher.group(4);
-                            res.add(name);
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("Codecs:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getVideoEncoders());
     }
 
     /**
@@ -340,52 +291,7 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getSupportedEncodingFormats() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = FORMAT_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String encoderFlag = matcher.group(2);
-                        if ("E".equals(encoderFlag)) {
-                            String aux = matcher.group(3);
-                            StringTokenizer st = new StringTokenizer(aux, ",");
-                            while (st.hasMoreTokens()) {
-                                String token = st.nextToken().trim();
-                                if (!res.contains(token)) {
-                                    res.add(token);
-                                }
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("File formats:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getEncodingFormats());
     }
 
     /**
@@ -399,65 +305,30 @@ public class Encoder {
      * ffmpeg executable.
      */
     public String[] getSupportedDecodingFormats() throws EncoderException {
-        ArrayList<String> res = new ArrayList<String>();
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
-        ffmpeg.addArgument("-formats");
-        try {
-            ffmpeg.execute();
-            RBufferedReader reader = null;
-            reader = new RBufferedReader(new InputStreamReader(ffmpeg
-                    .getInputStream()));
-            String line;
-            boolean evaluate = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().length() == 0) {
-                    continue;
-                }
-                if (evaluate) {
-                    Matcher matcher = FORMAT_PATTERN.matcher(line);
-                    if (matcher.matches()) {
-                        String decoderFlag = matcher.group(1);
-                        if ("D".equals(decoderFlag)) {
-                            String aux = matcher.group(3);
-                            StringTokenizer st = new StringTokenizer(aux, ",");
-                            while (st.hasMoreTokens()) {
-                                String token = st.nextToken().trim();
-                                if (!res.contains(token)) {
-                                    res.add(token);
-                                }
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                } else if (line.trim().equals("File formats:")) {
-                    evaluate = true;
-                }
-            }
-        } catch (IOException e) {
-            throw new EncoderException(e);
-        } finally {
-            ffmpeg.destroy();
-        }
-        int size = res.size();
-        String[] ret = new String[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = res.get(i);
-        }
-        return ret;
+        return toArray(getCapabilities().getDecodingFormats());
     }
 
     /**
-     * Private utility. Parse a line and try to match its contents against the
-     * {@link Encoder#PROGRESS_INFO_PATTERN} pattern. It the line can be parsed,
-     * it returns a hashtable with progress informations, otherwise it returns
-     * null.
+     * Private utility. It copies a set of names in a new array.
+     *
+     * @param names The names.
+     * @return A new array with the names.
+     */
+    private static String[] toArray(Set<String> names) {
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Parses a line and tries to match its contents against the
+     * {@link Encoder#PROGRESS_INFO_PATTERN} pattern. If the line can be
+     * parsed, it returns a hashtable with progress informations, otherwise it
+     * returns null. It is package-private for the benchmarks.
      *
      * @param line The line from the ffmpeg output.
      * @return A hashtable with the value reported in the line, or null if the
      * given line can not be parsed.
      */
-    private HashMap<String, String> parseProgressInfoLine(String line) {
+    HashMap<String, String> parseProgressInfoLine(CharSequence line) {
         HashMap<String, String> table = null;
         Matcher m = PROGRESS_INFO_PATTERN.matcher(line);
         while (m.find()) {
@@ -471,6 +342,255 @@ public class Encoder {
         return table;
     }
 
+    /**
+     * Private utility. It adds the arguments of the video encoder to the
+     * ffmpeg command line.
+     *
+     * @param ffmpeg The ffmpeg command line.
+     * @param videoAttributes The video attributes.
+     * @param filtered true if the size and the filters are already applied
+     * by a filter graph (<em>-filter_complex</em>), in which case they are
+     * not added again.
+     */
+    private static void addVideoArguments(FFMPEGExecutor ffmpeg,
+            VideoAttributes videoAttributes, boolean filtered) {
+        String codec = videoAttributes.getCodec();
+        if (codec != null) {
+            ffmpeg.addArgument("-vcodec");
+            ffmpeg.addArgument(codec);
+        }
+        String tag = videoAttributes.getTag();
+        if (tag != null) {
+            ffmpeg.addArgument("-vtag");
+            ffmpeg.addArgument(tag);
+        }
+        Integer bitRate = videoAttributes.getBitRate();
+        if (bitRate != null) {
+            ffmpeg.addArgument("-vb");
+            ffmpeg.addArgument(String.valueOf(bitRate.intValue()));
+        }
+        Integer frameRate = videoAttributes.getFrameRate();
+        if (frameRate != null) {
+            ffmpeg.addArgument("-r");
+            ffmpeg.addArgument(String.valueOf(frameRate.intValue()));
+        }
+        VideoSize size = videoAttributes.getSize();
+        if (size != null && !filtered) {
+            ffmpeg.addArgument("-s");
+            ffmpeg.addArgument(String.valueOf(size.getWidth()) + "x"
+                    + String.valueOf(size.getHeight()));
+        }
+
+        if (videoAttributes.isFaststart())
+        {
+            ffmpeg.addArgument("-movflags");
+            ffmpeg.addArgument("faststart");
+        }
+
+        if (videoAttributes.getX264Profile() != null)
+        {
+            ffmpeg.addArgument("-profile:v");
+            ffmpeg.addArgument(videoAttributes.getX264Profile().getModeName());
+        }
+
+        if (videoAttributes.getVideoFilters().size() > 0 && !filtered)
+        {
+            for (VideoFilter videoFilter : videoAttributes.getVideoFilters())
+            {
+                ffmpeg.addArgument("-vf");
+                ffmpeg.addArgument(videoFilter.getExpression());
+            }
+        }
+    }
+
+    /**
+     * Private utility. It adds the arguments of the audio encoder to the
+     * ffmpeg command line.
+     *
+     * @param ffmpeg The ffmpeg command line.
+     * @param audioAttributes The audio attributes.
+     */
+    private static void addAudioArguments(FFMPEGExecutor ffmpeg,
+            AudioAttributes audioAttributes) {
+        String codec = audioAttributes.getCodec();
+        if (codec != null) {
+            if (codec.equals("aac")) {
+                codec = "libvo_aacenc";
+            }
+            ffmpeg.addArgument("-acodec");
+            ffmpeg.addArgument(codec);
+        }
+        Integer bitRate = audioAttributes.getBitRate();
+        if (bitRate != null) {
+            ffmpeg.addArgument("-ab");
+            ffmpeg.addArgument(String.valueOf(bitRate.intValue()));
+        }
+        Integer channels = audioAttributes.getChannels();
+        if (channels != null) {
+            ffmpeg.addArgument("-ac");
+            ffmpeg.addArgument(String.valueOf(channels.intValue()));
+        }
+        Integer samplingRate = audioAttributes.getSamplingRate();
+        if (samplingRate != null) {
+            ffmpeg.addArgument("-ar");
+            ffmpeg.addArgument(String.valueOf(samplingRate.intValue()));
+        }
+        Integer volume = audioAttributes.getVolume();
+        if (volume != null) {
+            ffmpeg.addArgument("-vol");
+            ffmpeg.addArgument(String.valueOf(volume.intValue()));
+        }
+    }
+
+    /**
+     * Private utility. It adds the arguments encoding the variants of a
+     * multi-variant HLS or DASH process: the decoded video is split in a
+     * branch for each variant, and every encoded stream gets its own options
+     * through a stream specifier (<em>-c:v:1</em>, <em>-b:a:0</em>...).
+     *
+     * @param ffmpeg The ffmpeg command line.
+     * @param variants The variants.
+     * @return true if at least one variant has video.
+     */
+    private static boolean addVariantArguments(FFMPEGExecutor ffmpeg,
+            List<StreamVariant> variants) {
+        List<VideoAttributes> branches = new ArrayList<VideoAttributes>();
+        int videoOutputs = 0;
+        for (StreamVariant variant : variants) {
+            branches.add(variant.getVideoAttributes());
+            if (variant.getVideoAttributes() != null) {
+                videoOutputs++;
+            }
+        }
+        if (videoOutputs > 0) {
+            ffmpeg.addArgument("-filter_complex");
+            ffmpeg.addArgument(buildSplitGraph(branches, videoOutputs));
+        }
+        int videoStream = 0;
+        int audioStream = 0;
+        for (StreamVariant variant : variants) {
+            VideoAttributes videoAttributes = variant.getVideoAttributes();
+            if (videoAttributes != null) {
+                String spec = ":v:" + videoStream;
+                ffmpeg.addArgument("-map");
+                ffmpeg.addArgument("[v" + videoStream + "]");
+                addStreamArgument(ffmpeg, "-c" + spec, videoAttributes.getCodec());
+                addStreamArgument(ffmpeg, "-tag" + spec, videoAttributes.getTag());
+                addStreamArgument(ffmpeg, "-b" + spec, videoAttributes.getBitRate());
+                addStreamArgument(ffmpeg, "-r" + spec, videoAttributes.getFrameRate());
+                if (videoAttributes.getX264Profile() != null) {
+                    addStreamArgument(ffmpeg, "-profile" + spec,
+                            videoAttributes.getX264Profile().getModeName());
+                }
+                videoStream++;
+            }
+            AudioAttributes audioAttributes = variant.getAudioAttributes();
+            if (audioAttributes != null) {
+                String spec = ":a:" + audioStream;
+                String codec = audioAttributes.getCodec();
+                if ("aac".equals(codec)) {
+                    codec = "libvo_aacenc";
+                }
+                ffmpeg.addArgument("-map");
+                ffmpeg.addArgument("0:a:0");
+                addStreamArgument(ffmpeg, "-c" + spec, codec);
+                addStreamArgument(ffmpeg, "-b" + spec, audioAttributes.getBitRate());
+                addStreamArgument(ffmpeg, "-ac" + spec, audioAttributes.getChannels());
+                addStreamArgument(ffmpeg, "-ar" + spec, audioAttributes.getSamplingRate());
+                audioStream++;
+            }
+        }
+        return videoOutputs > 0;
+    }
+
+    /**
+     * Private utility. It adds an option and its value to the ffmpeg command
+     * line, if the value is not null.
+     */
+    private static void addStreamArgument(FFMPEGExecutor ffmpeg, String option,
+            Object value) {
+        if (value != null) {
+            ffmpeg.addArgument(option);
+            ffmpeg.addArgument(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Private utility. It checks that the output format can be written to a
+     * stream, which ffmpeg cannot seek back into.
+     *
+     * @param attributes The attributes of the encoding process.
+     * @throws IllegalArgumentException If the format is not set, or if it
+     * needs a seekable output.
+     */
+    private static void checkStreamable(EncodingAttributes attributes) {
+        String format = attributes.getFormat();
+        if (format == null) {
+            throw new IllegalArgumentException(
+                    "The format must be set when encoding to a stream");
+        }
+        if (attributes instanceof StreamingAttributes) {
+            throw new IllegalArgumentException("The " + format
+                    + " format writes many files and cannot be encoded to a stream");
+        }
+        if (SEEKABLE_FORMATS.contains(format)) {
+            throw new IllegalArgumentException("The " + format
+                    + " format needs a seekable output and cannot be encoded to a stream;"
+                    + " use a streamable container such as matroska, mpegts or ismv");
+        }
+        VideoAttributes videoAttributes = attributes.getVideoAttributes();
+        if (videoAttributes != null && videoAttributes.isFaststart()) {
+            throw new IllegalArgumentException(
+                    "faststart needs a seekable output and cannot be used with a stream");
+        }
+    }
+
+    /**
+     * Private utility. It checks whether a line is made of whitespaces only.
+     */
+    private static boolean isBlank(CharSequence line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Private utility. It closes a channel, ignoring any error.
+     *
+     * @param channel The channel. It can be null.
+     */
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+    /**
+     * Private utility. It parses a time reported in the ffmpeg statistics.
+     *
+     * @param time The time, as HH:MM:SS.xx (hours and minutes are optional).
+     * @return The time in seconds.
+     * @throws NumberFormatException If the time cannot be parsed.
+     */
+    private static double parseTime(String time) {
+        String dParts[] = time.split(":");
+        double seconds = Double.parseDouble(dParts[dParts.length - 1]);
+        if (dParts.length > 1) {
+            seconds += Double.parseDouble(dParts[dParts.length - 2]) * 60;
+            if (dParts.length > 2) {
+                seconds += Double.parseDouble(dParts[dParts.length - 3]) * 60 * 60;
+            }
+        }
+        return seconds;
+    }
+
     /**
      * Re-encode a multimedia file.
      *
@@ -516,132 +636,690 @@ public class Encoder {
     public void encode(MultimediaObject multimediaObject, File target, EncodingAttributes attributes,
             EncoderProgressListener listener) throws IllegalArgumentException,
             InputFormatException, EncoderException {
-        String formatAttribute = attributes.getFormat();
-        Float offsetAttribute = attributes.getOffset();
-        Float durationAttribute = attributes.getDuration();
-        AudioAttributes audioAttributes = attributes.getAudioAttributes();
-        VideoAttributes videoAttributes = attributes.getVideoAttributes();
-        if (audioAttributes == null && videoAttributes == null) {
-            throw new IllegalArgumentException(
-                    "Both audio and video attributes are null");
+        encode(new EncodeJob(), multimediaObject, target, attributes, listener, null);
+    }
+
+    /**
+     * Re-encode a multimedia file, reporting the progress through the ffmpeg
+     * machine-readable progress channel (<em>-progress pipe:1 -nostats</em>)
+     * instead of parsing the human-readable statistics. The channel reports
+     * typed values (see {@link ProgressSnapshot}), and is parsed without
+     * allocating, at a rate throttled by
+     * {@link Encoder#setProgressInterval(long)}.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null. Its permil notifications are derived from the progress
+     * channel, and sent from the thread reading it.
+     * @param snapshotListener An optional listener of the progress channel.
+     * If null the progress is parsed from the human-readable statistics.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public void encode(MultimediaObject multimediaObject, File target, EncodingAttributes attributes,
+            EncoderProgressListener listener, ProgressSnapshotListener snapshotListener)
+            throws IllegalArgumentException, InputFormatException, EncoderException {
+        encode(new EncodeJob(), multimediaObject, target, attributes, listener,
+                snapshotListener);
+    }
+
+    /**
+     * Re-encode a multimedia file or stream to a stream. The encoded data is
+     * written by ffmpeg to its standard output (<em>pipe:1</em>) and copied
+     * to the given stream by a dedicated thread, so there is no need to
+     * stage the target on disk.
+     *
+     * The format must be set, and it must be writable sequentially: formats
+     * seeking back into the output to write an index (mp4, mov, 3gp...) are
+     * rejected, as well as the faststart option.
+     *
+     * @param multimediaObject The source multimedia file or stream. It cannot
+     * be null.
+     * @param target The target stream. It is not closed.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null, if the format is not set or if it cannot be written to a stream.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public void encode(MultimediaObject multimediaObject, OutputStream target,
+            EncodingAttributes attributes, EncoderProgressListener listener)
+            throws IllegalArgumentException, InputFormatException,
+            EncoderException {
+        encode(multimediaObject, Channels.newChannel(target), attributes,
+                listener);
+    }
+
+    /**
+     * Re-encode a multimedia file or stream to a channel. See
+     * {@link Encoder#encode(MultimediaObject, OutputStream, EncodingAttributes, EncoderProgressListener)}.
+     *
+     * @param multimediaObject The source multimedia file or stream. It cannot
+     * be null.
+     * @param target The target channel. It is not closed.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null, if the format is not set or if it cannot be written to a stream.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public void encode(MultimediaObject multimediaObject,
+            WritableByteChannel target, EncodingAttributes attributes,
+            EncoderProgressListener listener) throws IllegalArgumentException,
+            InputFormatException, EncoderException {
+        if (target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        encode(new EncodeJob(), multimediaObject, null, target, attributes,
+                listener, null);
+    }
+
+    /**
+     * Re-encode a multimedia file in many outputs at once (for example the
+     * renditions of an adaptive bit rate ladder), in a single ffmpeg process.
+     * The source is decoded once: the decoded video is split with a filter
+     * graph (<em>-filter_complex split</em>), and every branch is filtered and
+     * scaled on its own before being encoded.
+     *
+     * All the targets must share the same offset, since the source is read
+     * once. The duration can be different for every target. Since a single
+     * process writes every output, it is bounded by the longest timeout and
+     * stall timeout set on the targets.
+     *
+     * @param multimediaObject The source multimedia file or stream. It cannot
+     * be null.
+     * @param targets The outputs of the encoding process. If a target file
+     * already exists, it will be overwrited.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null. The aggregate progress is weighted by the duration of
+     * the outputs. If it is a {@link MultiOutputProgressListener}, it is
+     * notified about the progress of every output too.
+     * @throws IllegalArgumentException If the list of targets is empty, if
+     * both audio and video parameters of a target are null, or if the targets
+     * have different offsets.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process, or an {@link EncoderTimeoutException} if the process is
+     * stopped by a timeout.
+     */
+    public void encode(MultimediaObject multimediaObject,
+            List<EncodingTarget> targets, EncoderProgressListener listener)
+            throws IllegalArgumentException, InputFormatException,
+            EncoderException {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No targets");
+        }
+        Float offsetAttribute = targets.get(0).getAttributes().getOffset();
+        int videoOutputs = 0;
+        for (EncodingTarget target : targets) {
+            EncodingAttributes attributes = target.getAttributes();
+            if (attributes.getAudioAttributes() == null
+                    && attributes.getVideoAttributes() == null) {
+                throw new IllegalArgumentException(
+                        "Both audio and video attributes are null");
+            }
+            Float offset = attributes.getOffset();
+            if (offset == null ? offsetAttribute != null
+                    : !offset.equals(offsetAttribute)) {
+                throw new IllegalArgumentException(
+                        "The targets have different offsets");
+            }
+            if (attributes.getVideoAttributes() != null) {
+                videoOutputs++;
+            }
+        }
+        MultimediaInfo info = null;
+        if (!multimediaObject.isStream()) {
+            info = multimediaObject.getInfo();
+        }
+        if (listener != null && info != null) {
+            listener.sourceInfo(info);
+        }
+        long[] durations = new long[targets.size()];
+        long totalDuration = 0;
+        for (int i = 0; i < durations.length; i++) {
+            Float durationAttribute = targets.get(i).getAttributes().getDuration();
+            if (durationAttribute != null) {
+                durations[i] = Math.round(durationAttribute * 1000d);
+            } else if (info == null) {
+                // Unknown until the end of the stream.
+                durations[i] = 0;
+            } else {
+                durations[i] = info.getDuration();
+                if (offsetAttribute != null) {
+                    durations[i] -= Math.round(offsetAttribute * 1000d);
+                }
+            }
+            totalDuration += Math.max(0, durations[i]);
+        }
+        double totalWeight = 0;
+        double[] weights = new double[targets.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = FFMPEGScheduler.weigh(targets.get(i).getAttributes());
+            totalWeight += weights[i];
         }
-        target = target.getAbsoluteFile();
-        target.getParentFile().mkdirs();
         FFMPEGExecutor ffmpeg = locator.createExecutor();
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        EncodingAttributes firstAttributes = targets.get(0).getAttributes();
+        ffmpeg.setSchedule(totalWeight, firstAttributes.getPriority(),
+                firstAttributes.getTenant());
+        ffmpeg.addArgument("-y");
         if (offsetAttribute != null) {
             ffmpeg.addArgument("-ss");
-            ffmpeg.addArgument(String.valueOf(offsetAttribute.floatValue()));
+            ffmpeg.addArgument(firstAttributes.getOffsetArgument());
         }
         ffmpeg.addArgument("-i");
-        ffmpeg.addArgument(multimediaObject.getFile().getAbsolutePath());
-        if (durationAttribute != null) {
-            ffmpeg.addArgument("-t");
-            ffmpeg.addArgument(String.valueOf(durationAttribute.floatValue()));
+        ffmpeg.addArgument(multimediaObject.getInputArgument());
+        ReadableByteChannel source = null;
+        if (multimediaObject.isStream()) {
+            source = multimediaObject.takeChannel();
         }
-        if (videoAttributes == null) {
-            ffmpeg.addArgument("-vn");
-        } else {
-            String codec = videoAttributes.getCodec();
-            if (codec != null) {
-                ffmpeg.addArgument("-vcodec");
-                ffmpeg.addArgument(codec);
-            }
-            String tag = videoAttributes.getTag();
-            if (tag != null) {
-                ffmpeg.addArgument("-vtag");
-                ffmpeg.addArgument(tag);
-            }
-            Integer bitRate = videoAttributes.getBitRate();
-            if (bitRate != null) {
-                ffmpeg.addArgument("-vb");
-                ffmpeg.addArgument(String.valueOf(bitRate.intValue()));
-            }
-            Integer frameRate = videoAttributes.getFrameRate();
-            if (frameRate != null) {
-                ffmpeg.addArgument("-r");
-                ffmpeg.addArgument(String.valueOf(frameRate.intValue()));
+        ffmpeg.setStdinCommands(source == null);
+        if (videoOutputs > 0) {
+            ffmpeg.addArgument("-filter_complex");
+            List<VideoAttributes> branches = new ArrayList<VideoAttributes>();
+            for (EncodingTarget target : targets) {
+                branches.add(target.getAttributes().getVideoAttributes());
             }
-            VideoSize size = videoAttributes.getSize();
-            if (size != null) {
-                ffmpeg.addArgument("-s");
-                ffmpeg.addArgument(String.valueOf(size.getWidth()) + "x"
-                        + String.valueOf(size.getHeight()));
+            ffmpeg.addArgument(buildSplitGraph(branches, videoOutputs));
+        }
+        int videoOutput = 0;
+        int output = 0;
+        for (EncodingTarget target : targets) {
+            EncodingAttributes attributes = target.getAttributes();
+            ffmpeg.addThreadsArgument(weights[output++] / totalWeight);
+            VideoAttributes videoAttributes = attributes.getVideoAttributes();
+            AudioAttributes audioAttributes = attributes.getAudioAttributes();
+            if (videoAttributes == null) {
+                ffmpeg.addArgument("-vn");
+            } else {
+                ffmpeg.addArgument("-map");
+                ffmpeg.addArgument("[v" + videoOutput++ + "]");
+                addVideoArguments(ffmpeg, videoAttributes, true);
             }
-
-            if (videoAttributes.isFaststart())
-            {
-                ffmpeg.addArgument("-movflags");
-                ffmpeg.addArgument("faststart");
+            if (audioAttributes == null) {
+                ffmpeg.addArgument("-an");
+            } else {
+                ffmpeg.addArgument("-map");
+                ffmpeg.addArgument("0:a:0?");
+                addAudioArguments(ffmpeg, audioAttributes);
             }
-
-            if (videoAttributes.getX264Profile() != null)
-            {
-                ffmpeg.addArgument("-profile:v");
-                ffmpeg.addArgument(videoAttributes.getX264Profile().getModeName());
+            if (attributes.getDuration() != null) {
+                ffmpeg.addArgument("-t");
+                ffmpeg.addArgument(attributes.getDurationArgument());
             }
-
-            if (videoAttributes.getVideoFilters().size() > 0)
-            {
-                for (VideoFilter videoFilter : videoAttributes.getVideoFilters())
-                {
-                    ffmpeg.addArgument("-vf");
-                    ffmpeg.addArgument(videoFilter.getExpression());
+            if (attributes.getFormat() != null) {
+                ffmpeg.addArgument("-f");
+                ffmpeg.addArgument(attributes.getFormat());
+            }
+            File file = target.getFile().getAbsoluteFile();
+            file.getParentFile().mkdirs();
+            ffmpeg.addArgument(file.getAbsolutePath());
+        }
+        // A single process writes every output: it is bounded by the most
+        // lenient limit set on the targets.
+        long timeout = 0;
+        long stallTimeout = 0;
+        for (EncodingTarget target : targets) {
+            timeout = Math.max(timeout, target.getAttributes().getTimeout());
+            stallTimeout = Math.max(stallTimeout,
+                    target.getAttributes().getStallTimeout());
+        }
+        EncodeJob job = new EncodeJob();
+        try {
+            ffmpeg.execute();
+        } catch (IOException e) {
+            closeQuietly(source);
+            throw new EncoderException(e);
+        }
+        if (!job.attach(ffmpeg)) {
+            closeQuietly(source);
+            throw new EncoderException("Encoding cancelled");
+        }
+        ProcessWatchdog.Watch watch = ProcessWatchdog.watch(ffmpeg, timeout,
+                stallTimeout);
+        MultiOutputProgressListener outputListener = null;
+        if (listener instanceof MultiOutputProgressListener) {
+            outputListener = (MultiOutputProgressListener) listener;
+        }
+        StreamPump inputPump = null;
+        try {
+            if (source != null) {
+                inputPump = new StreamPump(source,
+                        Channels.newChannel(ffmpeg.getOutputStream()), true);
+                inputPump.start("jave-input-pump");
+            }
+            String lastLine = null;
+            RBufferedReader reader = new RBufferedReader(
+                    new InputStreamReader(ffmpeg.getErrorStream()));
+            CharSequence line;
+            while ((line = reader.readLineView()) != null) {
+                if (isBlank(line)) {
+                    continue;
                 }
+                if (RBufferedReader.startsWith(line, "frame=")
+                        || RBufferedReader.startsWith(line, "size=")) {
+                    HashMap<String, String> table = parseProgressInfoLine(line);
+                    String time = table != null ? table.get("time") : null;
+                    if (time != null) {
+                        long millis;
+                        try {
+                            millis = Math.round(parseTime(time) * 1000);
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        if (watch != null) {
+                            watch.progress(millis * 1000L);
+                        }
+                        if (listener == null) {
+                            continue;
+                        }
+                        long done = 0;
+                        for (int i = 0; i < durations.length; i++) {
+                            long reached = Math.max(0, Math.min(millis, durations[i]));
+                            done += reached;
+                            if (outputListener != null && durations[i] > 0) {
+                                outputListener.outputProgress(i,
+                                        (int) (reached * 1000 / durations[i]));
+                            }
+                        }
+                        if (totalDuration > 0) {
+                            listener.progress((int) (done * 1000 / totalDuration));
+                        }
+                    }
+                } else {
+                    String text = line.toString().trim();
+                    if (text.startsWith("WARNING: ") && listener != null) {
+                        listener.message(text);
+                    }
+                    lastLine = text;
+                }
+            }
+            int exitCode = ffmpeg.waitFor();
+            if (watch != null && watch.isExpired()) {
+                throw watch.toException();
+            }
+            if (job.isCancelled()) {
+                throw new EncoderException("Encoding cancelled");
+            }
+            if (inputPump != null && inputPump.getReadFailure() != null) {
+                throw new EncoderException("Cannot read the source stream",
+                        inputPump.getReadFailure());
+            }
+            if (exitCode != 0) {
+                throw new EncoderException(lastLine);
+            }
+        } catch (IOException e) {
+            if (watch != null && watch.isExpired()) {
+                throw watch.toException();
+            }
+            throw new EncoderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Encoding cancelled", e);
+        } finally {
+            if (watch != null) {
+                watch.cancel();
             }
+            job.detach(ffmpeg);
+            ffmpeg.destroy();
+            closeQuietly(source);
         }
-        if (audioAttributes == null) {
-            ffmpeg.addArgument("-an");
-        } else {
-            String codec = audioAttributes.getCodec();
-            if (codec != null) {
-                if (codec.equals("aac")) {
-                    codec = "libvo_aacenc";
+    }
+
+    /**
+     * Private utility. It builds the filter graph splitting the decoded video
+     * in a branch for each output with video. Each branch applies the filters
+     * and the size of its output, and is labeled [v<em>n</em>].
+     *
+     * @param outputs The video attributes of every output, null for the
+     * outputs without video.
+     * @param videoOutputs The number of outputs with video.
+     */
+    private static String buildSplitGraph(List<VideoAttributes> outputs,
+            int videoOutputs) {
+        StringBuilder graph = new StringBuilder();
+        graph.append("[0:v]split=").append(videoOutputs);
+        for (int i = 0; i < videoOutputs; i++) {
+            graph.append("[s").append(i).append(']');
+        }
+        int branch = 0;
+        for (VideoAttributes videoAttributes : outputs) {
+            if (videoAttributes == null) {
+                continue;
+            }
+            graph.append(";[s").append(branch).append(']');
+            boolean empty = true;
+            for (VideoFilter videoFilter : videoAttributes.getVideoFilters()) {
+                if (!empty) {
+                    graph.append(',');
+                }
+                graph.append(videoFilter.getExpression());
+                empty = false;
+            }
+            VideoSize size = videoAttributes.getSize();
+            if (size != null) {
+                if (!empty) {
+                    graph.append(',');
                 }
-                ffmpeg.addArgument("-acodec");
-                ffmpeg.addArgument(codec);
+                graph.append("scale=").append(size.getWidth()).append(':')
+                        .append(size.getHeight());
+                empty = false;
             }
-            Integer bitRate = audioAttributes.getBitRate();
-            if (bitRate != null) {
-                ffmpeg.addArgument("-ab");
-                ffmpeg.addArgument(String.valueOf(bitRate.intValue()));
+            if (empty) {
+                graph.append("null");
             }
-            Integer channels = audioAttributes.getChannels();
-            if (channels != null) {
-                ffmpeg.addArgument("-ac");
-                ffmpeg.addArgument(String.valueOf(channels.intValue()));
+            graph.append("[v").append(branch++).append(']');
+        }
+        return graph.toString();
+    }
+
+    /**
+     * Re-encode a multimedia file asynchronously. See
+     * {@link Encoder#encodeAsync(MultimediaObject, File, EncodingAttributes, EncoderProgressListener)}.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process.
+     * @return A future completed when the encoding process ends.
+     */
+    public CompletableFuture<EncodeResult> encodeAsync(MultimediaObject multimediaObject,
+            File target, EncodingAttributes attributes) {
+        return encodeAsync(multimediaObject, target, attributes, null);
+    }
+
+    /**
+     * Re-encode a multimedia file asynchronously, on the executor returned by
+     * {@link Encoder#getAsyncExecutor()}. The returned future completes with
+     * the encoding outcome, or exceptionally with the same exceptions thrown
+     * by {@link Encoder#encode(MultimediaObject, File, EncodingAttributes, EncoderProgressListener)}.
+     * If the executor rejects the job (for example because its queue is full)
+     * the future completes exceptionally with a
+     * {@link RejectedExecutionException}.
+     *
+     * Cancelling the future kills the underlying ffmpeg process, if the job
+     * is already running, or discards the job if it is still queued.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null. It is notified from the thread running the job.
+     * @return A future completed when the encoding process ends.
+     */
+    public CompletableFuture<EncodeResult> encodeAsync(MultimediaObject multimediaObject,
+            File target, EncodingAttributes attributes,
+            EncoderProgressListener listener) {
+        return encodeAsync(multimediaObject, target, attributes, listener, null);
+    }
+
+    /**
+     * Re-encode a multimedia file asynchronously, optionally reporting the
+     * progress through the ffmpeg machine-readable progress channel. See
+     * {@link Encoder#encodeAsync(MultimediaObject, File, EncodingAttributes, EncoderProgressListener)}
+     * and
+     * {@link Encoder#encode(MultimediaObject, File, EncodingAttributes, EncoderProgressListener, ProgressSnapshotListener)}.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null.
+     * @param snapshotListener An optional listener of the progress channel.
+     * It can be null.
+     * @return A future completed when the encoding process ends.
+     */
+    public CompletableFuture<EncodeResult> encodeAsync(final MultimediaObject multimediaObject,
+            final File target, final EncodingAttributes attributes,
+            final EncoderProgressListener listener,
+            final ProgressSnapshotListener snapshotListener) {
+        final EncodeJob job = new EncodeJob();
+        final CompletableFuture<EncodeResult> future = new CompletableFuture<EncodeResult>();
+        future.whenComplete(new BiConsumer<EncodeResult, Throwable>() {
+            @Override
+            public void accept(EncodeResult result, Throwable failure) {
+                if (future.isCancelled()) {
+                    job.cancel();
+                }
             }
-            Integer samplingRate = audioAttributes.getSamplingRate();
-            if (samplingRate != null) {
-                ffmpeg.addArgument("-ar");
-                ffmpeg.addArgument(String.valueOf(samplingRate.intValue()));
+        });
+        try {
+            getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    job.setWorker(Thread.currentThread());
+                    try {
+                        future.complete(encode(job, multimediaObject, target,
+                                attributes, listener, snapshotListener));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        job.setWorker(null);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Re-encodes a multimedia file on behalf of the given job. This is the
+     * common implementation of the synchronous and asynchronous methods, and
+     * it is used by {@link SegmentedEncoder} to encode each segment.
+     *
+     * @param job The job, used to abort the encoding process.
+     * @param multimediaObject The source multimedia file.
+     * @param target The target multimedia re-encoded file.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * @param snapshotListener An optional listener of the machine-readable
+     * progress channel. If not null the channel is enabled.
+     * @return The encoding outcome.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process, or if the job is cancelled.
+     */
+    EncodeResult encode(EncodeJob job, MultimediaObject multimediaObject,
+            File target, EncodingAttributes attributes,
+            EncoderProgressListener listener, ProgressSnapshotListener snapshotListener)
+            throws IllegalArgumentException, InputFormatException, EncoderException {
+        return encode(job, multimediaObject, target, null, attributes, listener,
+                snapshotListener);
+    }
+
+    /**
+     * Private utility. It re-encodes a multimedia file or stream, to a file or
+     * to a streaming target.
+     *
+     * @param job The job, used to abort the encoding process.
+     * @param multimediaObject The source multimedia file or stream.
+     * @param target The target multimedia re-encoded file. It is ignored if
+     * the sink is not null.
+     * @param sink The streaming target, fed with the ffmpeg standard output.
+     * It can be null.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * @param snapshotListener An optional listener of the machine-readable
+     * progress channel.
+     * @return The encoding outcome.
+     */
+    private EncodeResult encode(EncodeJob job, MultimediaObject multimediaObject,
+            File target, WritableByteChannel sink, EncodingAttributes attributes,
+            EncoderProgressListener listener, ProgressSnapshotListener snapshotListener)
+            throws IllegalArgumentException, InputFormatException, EncoderException {
+        long startTime = System.currentTimeMillis();
+        String formatAttribute = attributes.getFormat();
+        Float offsetAttribute = attributes.getOffset();
+        Float durationAttribute = attributes.getDuration();
+        AudioAttributes audioAttributes = attributes.getAudioAttributes();
+        VideoAttributes videoAttributes = attributes.getVideoAttributes();
+        StreamingAttributes streamingAttributes = null;
+        List<StreamVariant> variants = Collections.emptyList();
+        if (attributes instanceof StreamingAttributes) {
+            streamingAttributes = (StreamingAttributes) attributes;
+            variants = streamingAttributes.getVariants();
+        }
+        if (audioAttributes == null && videoAttributes == null
+                && variants.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Both audio and video attributes are null");
+        }
+        // Probed before the encoding process is started: the probe needs a
+        // scheduler ticket of its own, which could never be admitted while
+        // the encoding process holds its ticket.
+        MultimediaInfo info = null;
+        if (!multimediaObject.isStream()) {
+            info = multimediaObject.getInfo();
+        }
+        RemuxPlan remuxPlan = null;
+        if (autoStreamCopy && streamingAttributes == null && info != null) {
+            remuxPlan = RemuxPlanner.plan(info, attributes, target);
+            attributes = remuxPlan.apply(attributes);
+            audioAttributes = attributes.getAudioAttributes();
+            videoAttributes = attributes.getVideoAttributes();
+        }
+        if (sink != null) {
+            checkStreamable(attributes);
+            target = null;
+        } else {
+            target = target.getAbsoluteFile();
+            target.getParentFile().mkdirs();
+        }
+        ReadableByteChannel source = null;
+        if (multimediaObject.isStream()) {
+            source = multimediaObject.takeChannel();
+        }
+        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        if (sink == null && snapshotListener == null) {
+            // Nothing is written on the standard output.
+            ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        }
+        if (snapshotListener != null) {
+            // With a streaming target the standard output carries the media.
+            ffmpeg.addArgument("-progress");
+            ffmpeg.addArgument(sink != null ? "pipe:2" : "pipe:1");
+            ffmpeg.addArgument("-nostats");
+        }
+        if (offsetAttribute != null) {
+            ffmpeg.addArgument("-ss");
+            ffmpeg.addArgument(attributes.getOffsetArgument());
+        }
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(multimediaObject.getInputArgument());
+        if (durationAttribute != null) {
+            ffmpeg.addArgument("-t");
+            ffmpeg.addArgument(attributes.getDurationArgument());
+        }
+        boolean video = videoAttributes != null;
+        if (!variants.isEmpty()) {
+            video = addVariantArguments(ffmpeg, variants);
+        } else {
+            if (videoAttributes == null) {
+                ffmpeg.addArgument("-vn");
+            } else {
+                addVideoArguments(ffmpeg, videoAttributes, false);
             }
-            Integer volume = audioAttributes.getVolume();
-            if (volume != null) {
-                ffmpeg.addArgument("-vol");
-                ffmpeg.addArgument(String.valueOf(volume.intValue()));
+            if (audioAttributes == null) {
+                ffmpeg.addArgument("-an");
+            } else {
+                addAudioArguments(ffmpeg, audioAttributes);
             }
         }
         if(formatAttribute != null) {
             ffmpeg.addArgument("-f");
             ffmpeg.addArgument(formatAttribute);
         }
+        ffmpeg.setSchedule(FFMPEGScheduler.weigh(attributes),
+                attributes.getPriority(), attributes.getTenant());
+        ffmpeg.setStdinCommands(source == null);
+        ffmpeg.addThreadsArgument();
+        SegmentTracker tracker = null;
+        if (streamingAttributes != null) {
+            streamingAttributes.addMuxerArguments(ffmpeg, target, video);
+            if (streamingAttributes.getSegmentListener() != null) {
+                tracker = new SegmentTracker(streamingAttributes.getSegmentListener());
+            }
+        }
         ffmpeg.addArgument("-y");
-        ffmpeg.addArgument(target.getAbsolutePath());
+        if (sink != null) {
+            ffmpeg.addArgument("pipe:1");
+        } else if (streamingAttributes != null) {
+            ffmpeg.addArgument(streamingAttributes.getOutputPath(target));
+        } else {
+            ffmpeg.addArgument(target.getAbsolutePath());
+        }
         try {
             ffmpeg.execute();
         } catch (IOException e) {
+            closeQuietly(source);
             throw new EncoderException(e);
         }
+        if (!job.attach(ffmpeg)) {
+            closeQuietly(source);
+            throw new EncoderException("Encoding cancelled");
+        }
+        ProcessWatchdog.Watch watch = ProcessWatchdog.watch(ffmpeg,
+                attributes.getTimeout(), attributes.getStallTimeout());
+        ProgressChannel channel = null;
+        StreamPump inputPump = null;
+        StreamPump outputPump = null;
         try {
+            if (source != null) {
+                inputPump = new StreamPump(source,
+                        Channels.newChannel(ffmpeg.getOutputStream()), true);
+                inputPump.start("jave-input-pump");
+            }
+            if (sink != null) {
+                outputPump = new StreamPump(
+                        Channels.newChannel(ffmpeg.getInputStream()), sink, false);
+                final FFMPEGExecutor process = ffmpeg;
+                outputPump.setWriteFailureAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Nobody reads the output any more.
+                        process.destroy();
+                    }
+                });
+                outputPump.start("jave-output-pump");
+            }
             String lastWarning = null;
             long duration;
             long progress = 0;
             RBufferedReader reader = new RBufferedReader(
                     new InputStreamReader(ffmpeg.getErrorStream()));
-            MultimediaInfo info = multimediaObject.getInfo();
             if (durationAttribute != null) {
                 duration = (long) Math
                         .round((durationAttribute * 1000L));
+            } else if (info == null) {
+                // Unknown until the end of the stream.
+                duration = 0;
             } else {
                 duration = info.getDuration();
                 if (offsetAttribute != null) {
@@ -649,90 +1327,98 @@ public class Encoder {
                             .round((offsetAttribute * 1000L));
                 }
             }
-            if (listener != null) {
+            if (listener != null && info != null) {
                 listener.sourceInfo(info);
             }
+            if (snapshotListener != null) {
+                if (sink != null) {
+                    // Mixed with the standard error, parsed line by line.
+                    channel = new ProgressChannel(null, snapshotListener,
+                            listener, duration, progressInterval);
+                } else {
+                    channel = new ProgressChannel(ffmpeg.getInputStream(),
+                            snapshotListener, listener, duration, progressInterval);
+                }
+                channel.setWatch(watch);
+                if (sink == null) {
+                    channel.start();
+                }
+            }
             int step = 0;
             int lineNR = 0;
-            String line;
-            while ((line = reader.readLine()) != null) {
+            CharSequence line;
+            while ((line = reader.readLineView()) != null) {
                 lineNR++;
+                if (tracker != null) {
+                    tracker.line(line);
+                }
+                if (channel != null && sink != null) {
+                    channel.line(line);
+                }
                 if (step == 0) {
-                    if (line.startsWith("WARNING: ")) {
+                    if (RBufferedReader.startsWith(line, "WARNING: ")) {
                         if (listener != null) {
-                            listener.message(line);
+                            listener.message(line.toString());
                         }
-                    } else if (!line.startsWith("Output #0")) {
+                    } else if (!RBufferedReader.startsWith(line, "Output #0")) {
                         // throw new EncoderException(line);
                     } else {
                         step++;
                     }
                 }
                 if (step == 1) {
-                    if (line.startsWith("WARNING: ")) {
+                    if (RBufferedReader.startsWith(line, "WARNING: ")) {
                         if (listener != null) {
-                            listener.message(line);
+                            listener.message(line.toString());
                         }
-                    } else if (!line.startsWith("Output #0")) {
+                    } else if (!RBufferedReader.startsWith(line, "Output #0")) {
                         // throw new EncoderException(line);
                     } else {
                         step++;
                     }
                 } else if (step == 2) {
-                    if (!line.startsWith("  ")) {
+                    if (!RBufferedReader.startsWith(line, "  ")) {
                         step++;
                     }
                 }
                 if (step == 3) {
-                    if (!line.startsWith("Stream mapping:")) {
-                        throw new EncoderException(line);
+                    if (!RBufferedReader.startsWith(line, "Stream mapping:")) {
+                        throw new EncoderException(line.toString());
                     } else {
                         step++;
                     }
                 } else if (step == 4) {
-                    if (!line.startsWith("  ")) {
+                    if (!RBufferedReader.startsWith(line, "  ")) {
                         step++;
                     }
                 }
-                if (line.startsWith("frame="))
+                if (RBufferedReader.startsWith(line, "frame="))
                 {
                     try
                     {
-                        line = line.trim();
-                        if (line.length() > 0) {
-                            HashMap<String, String> table = parseProgressInfoLine(line);
-                            if (table == null) {
-                                if (listener != null) {
-                                    listener.message(line);
+                        HashMap<String, String> table = parseProgressInfoLine(line);
+                        if (table == null) {
+                            if (listener != null) {
+                                listener.message(line.toString());
+                            }
+                            lastWarning = line.toString();
+                        } else {
+                            String time = table.get("time");
+                            if (time != null) {
+                                double seconds = parseTime(time);
+                                if (watch != null) {
+                                    watch.progress(Math.round(seconds * 1000L * 1000L));
                                 }
-                                lastWarning = line;
-                            } else {
-                                if (listener != null) {
-                                    String time = table.get("time");
-                                    if (time != null) {
-                                        String dParts[] = time.split(":");
-                                        // HH:MM:SS.xx
-
-                                        Double seconds = Double.parseDouble(dParts[dParts.length-1]);
-                                        if(dParts.length > 1)
-                                        {
-                                            seconds += Double.parseDouble(dParts[dParts.length-2]) * 60;
-                                            if(dParts.length > 2)
-                                            {
-                                                seconds += Double.parseDouble(dParts[dParts.length-3]) * 60 * 60;
-                                            }
-                                        }
-
-                                        int perm = (int) Math.round((seconds * 1000L * 1000L)
-                                                / (double) duration);
-                                        if (perm > 1000) {
-                                            perm = 1000;
-                                        }
-                                        listener.progress(perm);
+                                if (listener != null && duration > 0) {
+                                    int perm = (int) Math.round((seconds * 1000L * 1000L)
+                                            / (double) duration);
+                                    if (perm > 1000) {
+                                        perm = 1000;
                                     }
+                                    listener.progress(perm);
                                 }
-                                lastWarning = null;
                             }
+                            lastWarning = null;
                         }
                     }
                     catch (Exception ex)
@@ -740,15 +1426,70 @@ public class Encoder {
                     }
                 }
             }
+            if (channel != null) {
+                channel.join(1000);
+            }
+            if (outputPump != null) {
+                outputPump.join();
+            }
+            if (watch != null && watch.isExpired()) {
+                throw watch.toException();
+            }
+            if (job.isCancelled()) {
+                throw new EncoderException("Encoding cancelled");
+            }
+            if (inputPump != null && inputPump.getReadFailure() != null) {
+                throw new EncoderException("Cannot read the source stream",
+                        inputPump.getReadFailure());
+            }
+            if (outputPump != null && outputPump.getFailure() != null) {
+                throw new EncoderException("Cannot write the target stream",
+                        outputPump.getFailure());
+            }
             if (lastWarning != null) {
                 if (!SUCCESS_PATTERN.matcher(lastWarning).matches()) {
                     throw new EncoderException("No match for: " + SUCCESS_PATTERN + " in " + lastWarning);
                 }
             }
+            if (tracker != null) {
+                tracker.finish();
+            }
+        } catch (EncoderException e) {
+            if (watch != null && watch.isExpired()
+                    && !(e instanceof EncoderTimeoutException)) {
+                // The failure is a consequence of the process being stopped.
+                throw watch.toException();
+            }
+            if (outputPump != null && outputPump.getWriteFailure() != null) {
+                // The process has been stopped because of the target.
+                throw new EncoderException("Cannot write the target stream",
+                        outputPump.getWriteFailure());
+            }
+            throw e;
         } catch (IOException e) {
+            if (watch != null && watch.isExpired()) {
+                throw watch.toException();
+            }
+            if (outputPump != null && outputPump.getWriteFailure() != null) {
+                throw new EncoderException("Cannot write the target stream",
+                        outputPump.getWriteFailure());
+            }
+            if (job.isCancelled()) {
+                throw new EncoderException("Encoding cancelled", e);
+            }
             throw new EncoderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Encoding cancelled", e);
         } finally {
+            if (watch != null) {
+                watch.cancel();
+            }
+            job.detach(ffmpeg);
             ffmpeg.destroy();
+            closeQuietly(source);
         }
+        return new EncodeResult(target, info, remuxPlan,
+                System.currentTimeMillis() - startTime);
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * Encoding exception thrown when an ffmpeg process has been stopped because
+ * it exceeded its wall-clock timeout, or because it made no progress for too
+ * long (see {@link EncodingAttributes#setTimeout(long)} and
+ * {@link EncodingAttributes#setStallTimeout(long)}).
+ */
+public class EncoderTimeoutException extends EncoderException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Whether the process stalled, rather than exceeding its timeout.
+     */
+    private final boolean stalled;
+
+    /**
+     * The time the process ran, in millis.
+     */
+    private final long elapsedTime;
+
+    EncoderTimeoutException(String message, boolean stalled, long elapsedTime) {
+        super(message);
+        this.stalled = stalled;
+        this.elapsedTime = elapsedTime;
+    }
+
+    /**
+     * Returns true if the process has been stopped because it made no
+     * progress, false if it exceeded its wall-clock timeout.
+     *
+     * @return true if the process stalled.
+     */
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * Returns the time the process ran before being stopped.
+     *
+     * @return The time the process ran, in millis.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+}
@@ -18,6 +18,11 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -48,6 +53,17 @@ public class EncodingAttributes implements Serializable {
 	 */
 	private Float duration = null;
 
+	/**
+	 * The exact start offset time (millis), or -1. Set for the segments of a
+	 * {@link SegmentedEncoder}, whose joins cannot afford the float rounding.
+	 */
+	private long offsetMillis = -1;
+
+	/**
+	 * The exact duration (millis), or -1. Set along with offsetMillis.
+	 */
+	private long durationMillis = -1;
+
 	/**
 	 * The attributes for the encoding of the audio stream in the target
 	 * multimedia file. If null of not specified no audio stream will be
@@ -62,6 +78,30 @@ public class EncodingAttributes implements Serializable {
 	 */
 	private VideoAttributes videoAttributes = null;
 
+	/**
+	 * The priority class of the encoding process, used by the
+	 * {@link FFMPEGScheduler}.
+	 */
+	private FFMPEGScheduler.Priority priority = FFMPEGScheduler.Priority.NORMAL;
+
+	/**
+	 * The tenant key of the encoding process, used by the
+	 * {@link FFMPEGScheduler} to share the CPU budget fairly. It can be null.
+	 */
+	private String tenant = null;
+
+	/**
+	 * The wall-clock timeout of the encoding process, in millis. If 0 there is
+	 * no timeout.
+	 */
+	private long timeout = 0;
+
+	/**
+	 * The maximum time the encoding process can make no progress, in millis.
+	 * If 0 stalls are not detected.
+	 */
+	private long stallTimeout = 0;
+
 	/**
 	 * Returns the format name for the encoded target multimedia file.
 	 * 
@@ -100,6 +140,7 @@ public class EncodingAttributes implements Serializable {
 	 */
 	public void setOffset(Float offset) {
 		this.offset = offset;
+		this.offsetMillis = -1;
 	}
 
 	/**
@@ -121,6 +162,67 @@ public class EncodingAttributes implements Serializable {
 	 */
 	public void setDuration(Float duration) {
 		this.duration = duration;
+		this.durationMillis = -1;
+	}
+
+	/**
+	 * Sets the exact start offset time and duration, in millis. The seconds
+	 * returned by {@link EncodingAttributes#getOffset()} and
+	 * {@link EncodingAttributes#getDuration()} are rounded to floats, while
+	 * the ffmpeg arguments keep the exact values.
+	 * 
+	 * @param offsetMillis
+	 *            The start offset time (millis).
+	 * @param durationMillis
+	 *            The duration (millis).
+	 */
+	void setExactRange(long offsetMillis, long durationMillis) {
+		this.offset = Float.valueOf(offsetMillis / 1000f);
+		this.duration = Float.valueOf(durationMillis / 1000f);
+		this.offsetMillis = offsetMillis;
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Returns the start offset time as an ffmpeg argument (seconds), or null
+	 * if no start offset is set.
+	 * 
+	 * @return The start offset time argument.
+	 */
+	String getOffsetArgument() {
+		if (offsetMillis >= 0) {
+			return secondsArgument(offsetMillis);
+		}
+		return offset != null ? String.valueOf(offset.floatValue()) : null;
+	}
+
+	/**
+	 * Returns the duration as an ffmpeg argument (seconds), or null if no
+	 * duration is set.
+	 * 
+	 * @return The duration argument.
+	 */
+	String getDurationArgument() {
+		if (durationMillis >= 0) {
+			return secondsArgument(durationMillis);
+		}
+		return duration != null ? String.valueOf(duration.floatValue()) : null;
+	}
+
+	/**
+	 * Private utility. It formats a time in millis as exact seconds.
+	 */
+	private static String secondsArgument(long millis) {
+		StringBuilder argument = new StringBuilder();
+		argument.append(millis / 1000).append('.');
+		long fraction = millis % 1000;
+		if (fraction < 100) {
+			argument.append('0');
+		}
+		if (fraction < 10) {
+			argument.append('0');
+		}
+		return argument.append(fraction).toString();
 	}
 
 	/**
@@ -171,11 +273,119 @@ public class EncodingAttributes implements Serializable {
 		this.videoAttributes = videoAttributes;
 	}
 
+	/**
+	 * Returns the priority class of the encoding process.
+	 * 
+	 * @return The priority class of the encoding process.
+	 */
+	FFMPEGScheduler.Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority class of the encoding process. It matters only if an
+	 * {@link FFMPEGScheduler} is in use.
+	 * 
+	 * @param priority
+	 *            The priority class of the encoding process.
+	 */
+	public void setPriority(FFMPEGScheduler.Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns the tenant key of the encoding process.
+	 * 
+	 * @return The tenant key of the encoding process, or null.
+	 */
+	String getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * Sets the tenant key of the encoding process (for example a customer
+	 * id). An {@link FFMPEGScheduler} admits the waiting processes of the
+	 * different tenants in turn. It matters only if a scheduler is in use.
+	 * 
+	 * @param tenant
+	 *            The tenant key of the encoding process, or null.
+	 */
+	public void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * Returns the wall-clock timeout of the encoding process.
+	 * 
+	 * @return The timeout in millis, or 0 if there is none.
+	 */
+	long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the wall-clock timeout of the encoding process. When it expires,
+	 * the process is stopped and the encoder throws an
+	 * {@link EncoderTimeoutException}.
+	 * 
+	 * @param timeout
+	 *            The timeout in millis, or 0 for none.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns the maximum time the encoding process can make no progress.
+	 * 
+	 * @return The stall timeout in millis, or 0 if stalls are not detected.
+	 */
+	long getStallTimeout() {
+		return stallTimeout;
+	}
+
+	/**
+	 * Sets the maximum time the encoding process can make no progress, that
+	 * is without its output position moving forward (for example on a broken
+	 * input). When it expires, the process is stopped and the encoder throws
+	 * an {@link EncoderTimeoutException}.
+	 * 
+	 * @param stallTimeout
+	 *            The stall timeout in millis, or 0 to disable the detection.
+	 */
+	public void setStallTimeout(long stallTimeout) {
+		this.stallTimeout = stallTimeout;
+	}
+
+	/**
+	 * Returns a deep copy of these attributes, including the audio and video
+	 * attributes. The copy keeps the runtime type of this object.
+	 * 
+	 * @return A deep copy of these attributes.
+	 */
+	EncodingAttributes copy() {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream output = new ObjectOutputStream(buffer);
+			output.writeObject(this);
+			output.close();
+			ObjectInputStream input = new ObjectInputStream(
+					new ByteArrayInputStream(buffer.toByteArray()));
+			return (EncodingAttributes) input.readObject();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot copy " + this, e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Cannot copy " + this, e);
+		}
+	}
+
         @Override
 	public String toString() {
 		return getClass().getName() + "(format=" + format + ", offset="
 				+ offset + ", duration=" + duration + ", audioAttributes="
 				+ audioAttributes + ", videoAttributes=" + videoAttributes
+				+ ", priority=" + priority + ", tenant=" + tenant
+				+ ", timeout=" + timeout + ", stallTimeout=" + stallTimeout
 				+ ")";
 	}
 
@@ -0,0 +1,313 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded executor for the asynchronous encoding methods of
+ * {@link Encoder}. At most a fixed number of jobs run at the same time and at
+ * most a fixed number of jobs wait in the queue; what happens to a job
+ * submitted when the queue is full is decided by the {@link Backpressure}
+ * policy of the executor.
+ *
+ * Jobs run either on a pool of platform threads or, on JDK 21 and later, on
+ * virtual threads (see {@link EncodingExecutor#newVirtual(int, int,
+ * Backpressure)}).
+ */
+public class EncodingExecutor implements Executor {
+
+    /**
+     * The behaviour of the executor when a job is submitted and the queue is
+     * full.
+     */
+    public enum Backpressure {
+        /**
+         * The submitting thread waits until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * The job is rejected with a
+         * {@link java.util.concurrent.RejectedExecutionException}. The
+         * future returned by {@link Encoder#encodeAsync(MultimediaObject,
+         * java.io.File, EncodingAttributes)} completes exceptionally.
+         */
+        ABORT,
+        /**
+         * The job is run by the submitting thread.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * Counter used to name the pool threads.
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The underlying executor.
+     */
+    private final ExecutorService delegate;
+
+    /**
+     * Limits the running jobs when the underlying executor is unbounded
+     * (virtual threads). It is null for the platform thread pool, whose size
+     * is already the limit.
+     */
+    private final Semaphore running;
+
+    /**
+     * Limits the running plus queued jobs.
+     */
+    private final Semaphore capacity;
+
+    /**
+     * The policy applied when the queue is full.
+     */
+    private final Backpressure backpressure;
+
+    /**
+     * The maximum number of jobs running at the same time.
+     */
+    private final int maxConcurrent;
+
+    /**
+     * The maximum number of jobs waiting in the queue.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Private constructor. Use the static factory methods.
+     */
+    private EncodingExecutor(ExecutorService delegate, Semaphore running,
+            int maxConcurrent, int queueCapacity, Backpressure backpressure) {
+        if (backpressure == null) {
+            throw new IllegalArgumentException("backpressure cannot be null");
+        }
+        this.delegate = delegate;
+        this.running = running;
+        this.maxConcurrent = maxConcurrent;
+        this.queueCapacity = queueCapacity;
+        this.capacity = new Semaphore(maxConcurrent + queueCapacity);
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Builds an executor running jobs on a pool of platform daemon threads.
+     *
+     * @param threads The number of pool threads, that is the maximum number of
+     * jobs running at the same time.
+     * @param queueCapacity The maximum number of jobs waiting in the queue.
+     * @param backpressure The policy applied when the queue is full.
+     * @return The executor.
+     */
+    public static EncodingExecutor newBounded(int threads, int queueCapacity,
+            Backpressure backpressure) {
+        checkSizes(threads, queueCapacity);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jave-encoder-"
+                                + THREAD_COUNTER.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return new EncodingExecutor(pool, null, threads, queueCapacity,
+                backpressure);
+    }
+
+    /**
+     * Builds an executor running each job on its own virtual thread. This
+     * requires JDK 21 or later (see {@link EncodingExecutor#isVirtualSupported()}).
+     *
+     * @param maxConcurrent The maximum number of jobs running at the same
+     * time.
+     * @param queueCapacity The maximum number of jobs waiting in the queue.
+     * @param backpressure The policy applied when the queue is full.
+     * @return The executor.
+     * @throws UnsupportedOperationException If the running JVM does not
+     * support virtual threads.
+     */
+    public static EncodingExecutor newVirtual(int maxConcurrent,
+            int queueCapacity, Backpressure backpressure) {
+        checkSizes(maxConcurrent, queueCapacity);
+        return new EncodingExecutor(VirtualThreads.newPerTaskExecutor(),
+                new Semaphore(maxConcurrent), maxConcurrent, queueCapacity,
+                backpressure);
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads, and so
+     * {@link EncodingExecutor#newVirtual(int, int, Backpressure)} can be used.
+     *
+     * @return true if virtual threads are supported.
+     */
+    public static boolean isVirtualSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    /**
+     * Returns the executor shared by the encoders with no executor of their
+     * own. It runs as many jobs as the available processors, queues up to
+     * four times as many, and rejects the exceeding ones.
+     *
+     * @return The shared executor.
+     */
+    public static EncodingExecutor getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Private utility. It validates the sizes of an executor.
+     */
+    private static void checkSizes(int maxConcurrent, int queueCapacity) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException(
+                    "At least one concurrent job is required");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "The queue capacity cannot be negative");
+        }
+    }
+
+    /**
+     * Submits a job. If the queue is full the {@link Backpressure} policy of
+     * the executor is applied.
+     *
+     * @param task The job.
+     * @throws RejectedExecutionException If the job is rejected, because the
+     * queue is full under the {@link Backpressure#ABORT} policy, because the
+     * submitting thread is interrupted while waiting under the
+     * {@link Backpressure#BLOCK} policy, or because the executor has been shut
+     * down.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if (!capacity.tryAcquire()) {
+            if (backpressure == Backpressure.ABORT) {
+                throw new RejectedExecutionException("The encoding queue is full ("
+                        + queueCapacity + " waiting jobs)");
+            } else if (backpressure == Backpressure.CALLER_RUNS) {
+                task.run();
+                return;
+            } else {
+                try {
+                    capacity.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(
+                            "Interrupted while waiting for the encoding queue", e);
+                }
+            }
+        }
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (running != null) {
+                            running.acquireUninterruptibly();
+                        }
+                        try {
+                            task.run();
+                        } finally {
+                            if (running != null) {
+                                running.release();
+                            }
+                        }
+                    } finally {
+                        capacity.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            capacity.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the maximum number of jobs running at the same time.
+     *
+     * @return The maximum number of jobs running at the same time.
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Returns the maximum number of jobs waiting in the queue.
+     *
+     * @return The maximum number of jobs waiting in the queue.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns the number of jobs currently running or waiting in the queue.
+     *
+     * @return The number of accepted jobs not yet completed.
+     */
+    public int getPendingCount() {
+        return maxConcurrent + queueCapacity - capacity.availablePermits();
+    }
+
+    /**
+     * Stops accepting jobs. Already accepted jobs are completed.
+     */
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * Lazy holder of the shared executor.
+     */
+    private static class DefaultHolder {
+
+        private static final EncodingExecutor INSTANCE;
+
+        static {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            INSTANCE = newBounded(cpus, cpus * 4, Backpressure.ABORT);
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (maxConcurrent=" + maxConcurrent
+                + ", queueCapacity=" + queueCapacity + ", backpressure="
+                + backpressure + ", virtual=" + (running != null) + ")";
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+
+/**
+ * One output of a multi-output encoding process (see
+ * {@link Encoder#encode(MultimediaObject, java.util.List, EncoderProgressListener)}):
+ * a target file and the attributes used to encode it.
+ */
+public class EncodingTarget {
+
+    /**
+     * The target file.
+     */
+    private final File file;
+
+    /**
+     * The attributes used to encode the target file.
+     */
+    private final EncodingAttributes attributes;
+
+    /**
+     * It builds an output of a multi-output encoding process.
+     *
+     * @param file The target file. If it already exists, it will be
+     * overwrited.
+     * @param attributes The attributes used to encode the target file.
+     */
+    public EncodingTarget(File file, EncodingAttributes attributes) {
+        if (file == null || attributes == null) {
+            throw new IllegalArgumentException("file and attributes cannot be null");
+        }
+        this.file = file;
+        this.attributes = attributes;
+    }
+
+    /**
+     * Returns the target file.
+     *
+     * @return The target file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the attributes used to encode the target file.
+     *
+     * @return The attributes used to encode the target file.
+     */
+    public EncodingAttributes getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (file=" + file + ", attributes="
+                + attributes + ")";
+    }
+
+}
@@ -18,16 +18,73 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A ffmpeg process wrapper.
+ *
+ * Each standard output channel of the process is either read by the caller
+ * ({@link StreamHandling#PIPE}, the default), drained by the executor on a
+ * thread of its own ({@link StreamHandling#DRAIN}), or discarded
+ * ({@link StreamHandling#DISCARD}). A channel nobody reads must not be left
+ * as a pipe: when its buffer fills up, ffmpeg blocks writing it.
  * @author Carlo Pelliccia
  */
 class FFMPEGExecutor {
+
+    /**
+     * How an output channel of the process is handled.
+     */
+    enum StreamHandling {
+
+        /**
+         * The caller reads the channel through the executor getters.
+         */
+        PIPE,
+
+        /**
+         * The executor reads the channel line by line, notifying the line
+         * listener and keeping the last lines (see
+         * {@link FFMPEGExecutor#getTail()}).
+         */
+        DRAIN,
+
+        /**
+         * The channel is discarded by the operating system.
+         */
+        DISCARD
+
+    }
+
+    /**
+     * Listener of the lines read from the drained channels.
+     */
+    interface LineListener {
+
+        /**
+         * This method is called for every line read from a drained channel,
+         * from the draining thread.
+         *
+         * @param line The line.
+         * @param error true if the line comes from the standard error channel.
+         */
+        void line(String line, boolean error);
+
+    }
+
+    /**
+     * The default number of lines kept from the drained channels.
+     */
+    private static final int DEFAULT_TAIL_SIZE = 32;
+
     /**
      * The path of the ffmpeg executable.
      */
@@ -44,10 +101,15 @@ class FFMPEGExecutor {
     private Process ffmpeg = null;
 
     /**
-     * A process killer to kill the ffmpeg process with a shutdown hook, useful
-     * if the jvm execution is shutted down during an ongoing encoding process.
+     * The pool of warm workers the process can be started on. It can be null.
+     */
+    private WarmProcessPool warmPool = null;
+
+    /**
+     * The registration of the process in the {@link ProcessRegistry}, which
+     * kills it if the jvm is shut down during an ongoing encoding process.
      */
-    private ProcessKiller ffmpegKiller = null;
+    private ProcessRegistry.RunningProcess registration = null;
 
     /**
      * A stream reading from the ffmpeg process standard output channel.
@@ -64,6 +126,94 @@ class FFMPEGExecutor {
      */
     private InputStream errorStream = null;
 
+    /**
+     * How the standard output channel is handled.
+     */
+    private StreamHandling outputHandling = StreamHandling.PIPE;
+
+    /**
+     * How the standard error channel is handled.
+     */
+    private StreamHandling errorHandling = StreamHandling.PIPE;
+
+    /**
+     * Whether the standard error channel is merged in the standard output
+     * channel.
+     */
+    private boolean redirectErrorStream = false;
+
+    /**
+     * The listener of the drained lines. It can be null.
+     */
+    private LineListener lineListener = null;
+
+    /**
+     * The last lines read from the drained channels, as a ring buffer.
+     */
+    private String[] tail = new String[DEFAULT_TAIL_SIZE];
+
+    /**
+     * The lock guarding the ring buffer.
+     */
+    private final Object tailLock = new Object();
+
+    /**
+     * The index of the oldest line in the ring buffer.
+     */
+    private int tailStart = 0;
+
+    /**
+     * The number of lines in the ring buffer.
+     */
+    private int tailCount = 0;
+
+    /**
+     * The scheduler admitting the process. It can be null.
+     */
+    private FFMPEGScheduler scheduler = null;
+
+    /**
+     * The weight of the process, for the scheduler.
+     */
+    private double weight = FFMPEGScheduler.PROBE_WEIGHT;
+
+    /**
+     * The priority class of the process, for the scheduler.
+     */
+    private FFMPEGScheduler.Priority priority = FFMPEGScheduler.Priority.NORMAL;
+
+    /**
+     * The tenant key of the process, for the scheduler.
+     */
+    private String tenant = null;
+
+    /**
+     * The argument positions where the <em>-threads</em> option assigned by
+     * the scheduler is inserted.
+     */
+    private final List<Integer> threadsPositions = new ArrayList<Integer>(1);
+
+    /**
+     * The share of the assigned threads given at each position.
+     */
+    private final List<Double> threadsShares = new ArrayList<Double>(1);
+
+    /**
+     * The admission ticket of the running process, if any.
+     */
+    private FFMPEGScheduler.Ticket ticket = null;
+
+    /**
+     * Whether commands can be sent to ffmpeg on its standard input (false if
+     * the standard input carries the source media).
+     */
+    private boolean stdinCommands = true;
+
+    /**
+     * The threads draining the output channels.
+     */
+    private final List<Thread> drainers = new ArrayList<Thread>(2);
+
     /**
      * It build the executor.
      * @param ffmpegExecutablePath The path of the ffmpeg executable.
@@ -81,23 +231,337 @@ class FFMPEGExecutor {
     }
 
     /**
-     * Executes the ffmpeg process with the previous given arguments.
-     * @throws IOException If the process call fails.
+     * Sets the scheduler admitting the process.
+     * @param scheduler The scheduler. If null the process starts immediately.
+     */
+    void setScheduler(FFMPEGScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the pool of warm workers the process is started on, when one of
+     * them is idle.
+     * @param warmPool The pool. If null the process is always started from
+     * scratch.
+     */
+    void setWarmPool(WarmProcessPool warmPool) {
+        this.warmPool = warmPool;
+    }
+
+    /**
+     * Describes the process to the scheduler. It must be called before
+     * {@link FFMPEGExecutor#execute()}.
+     * @param weight The weight of the process, in cores.
+     * @param priority The priority class of the process.
+     * @param tenant The tenant key of the process. It can be null.
+     */
+    public void setSchedule(double weight, FFMPEGScheduler.Priority priority,
+            String tenant) {
+        this.weight = weight;
+        this.priority = priority;
+        this.tenant = tenant;
+    }
+
+    /**
+     * Marks the current argument position as the place of the
+     * <em>-threads</em> option, inserted only if the scheduler assigns a
+     * number of threads to the process. Since <em>-threads</em> is an output
+     * option, the position is usually just before an output file.
+     */
+    public void addThreadsArgument() {
+        addThreadsArgument(1);
+    }
+
+    /**
+     * Marks the current argument position as the place of a
+     * <em>-threads</em> option, giving a share of the threads assigned by the
+     * scheduler. It is used when the process writes many outputs.
+     * @param share The share of the assigned threads, between 0 and 1.
+     */
+    public void addThreadsArgument(double share) {
+        threadsPositions.add(Integer.valueOf(args.size()));
+        threadsShares.add(Double.valueOf(share));
+    }
+
+    /**
+     * Sets whether commands can be sent to ffmpeg on its standard input. It
+     * must be false when the standard input carries the source media.
+     * @param stdinCommands true if commands can be sent on the standard input.
+     */
+    public void setStdinCommands(boolean stdinCommands) {
+        this.stdinCommands = stdinCommands;
+    }
+
+    /**
+     * Asks ffmpeg to stop, sending <em>q</em> on its standard input. ffmpeg
+     * stops reading the input and finalizes the output.
+     * @return true if the request has been sent.
+     */
+    public synchronized boolean requestQuit() {
+        if (!stdinCommands || outputStream == null) {
+            return false;
+        }
+        try {
+            outputStream.write('q');
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Terminates the ffmpeg process (SIGTERM on POSIX systems), leaving its
+     * channels open so the caller can read what ffmpeg writes while exiting.
+     */
+    public synchronized void terminate() {
+        if (registration != null) {
+            registration.destroy(false);
+        }
+    }
+
+    /**
+     * Kills the ffmpeg process and its descendants forcibly.
+     */
+    public synchronized void kill() {
+        if (registration != null) {
+            registration.destroy(true);
+        }
+    }
+
+    /**
+     * Releases the scheduler slot of the process before the process ends, for
+     * example because it is being stopped.
+     */
+    public synchronized void releaseSlot() {
+        if (ticket != null) {
+            scheduler.release(ticket);
+            ticket = null;
+        }
+    }
+
+    /**
+     * Sets how the standard output channel is handled. It must be called
+     * before {@link FFMPEGExecutor#execute()}.
+     * @param handling How the standard output channel is handled.
+     */
+    public void setOutputHandling(StreamHandling handling) {
+        this.outputHandling = handling;
+    }
+
+    /**
+     * Sets how the standard error channel is handled. It must be called
+     * before {@link FFMPEGExecutor#execute()}.
+     * @param handling How the standard error channel is handled.
+     */
+    public void setErrorHandling(StreamHandling handling) {
+        this.errorHandling = handling;
+    }
+
+    /**
+     * Sets whether the standard error channel is merged in the standard
+     * output channel, in which case it is handled as the standard output. It
+     * must be called before {@link FFMPEGExecutor#execute()}.
+     * @param redirectErrorStream true to merge the standard error channel.
+     */
+    public void setRedirectErrorStream(boolean redirectErrorStream) {
+        this.redirectErrorStream = redirectErrorStream;
+    }
+
+    /**
+     * Sets the listener of the lines read from the drained channels. It must
+     * be called before {@link FFMPEGExecutor#execute()}.
+     * @param lineListener The listener. It can be null.
+     */
+    public void setLineListener(LineListener lineListener) {
+        this.lineListener = lineListener;
+    }
+
+    /**
+     * Sets the number of lines kept from the drained channels. It must be
+     * called before {@link FFMPEGExecutor#execute()}.
+     * @param lines The number of lines.
+     */
+    public void setTailSize(int lines) {
+        if (lines < 1) {
+            throw new IllegalArgumentException("lines < 1");
+        }
+        synchronized (tailLock) {
+            tail = new String[lines];
+            tailStart = 0;
+            tailCount = 0;
+        }
+    }
+
+    /**
+     * Returns the last lines read from the drained channels, for diagnostics.
+     * @return The last lines, the oldest first.
+     */
+    public List<String> getTail() {
+        synchronized (tailLock) {
+            List<String> lines = new ArrayList<String>(tailCount);
+            for (int i = 0; i < tailCount; i++) {
+                lines.add(tail[(tailStart + i) % tail.length]);
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Returns the last lines read from the drained channels as a single
+     * message.
+     * @return The last lines, separated by new lines, or null if no line has
+     * been read.
+     */
+    public String getTailMessage() {
+        List<String> lines = getTail();
+        if (lines.isEmpty()) {
+            return null;
+        }
+        StringBuilder message = new StringBuilder();
+        for (String line : lines) {
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            message.append(line);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Executes the ffmpeg process with the previous given arguments. If there
+     * is a scheduler, it waits until the process is admitted.
+     * @throws IOException If the process call fails, or if the thread is
+     * interrupted while waiting for the scheduler.
      */
     public void execute() throws IOException {
-        int argsSize = args.size();
-        String[] cmd = new String[argsSize + 1];
-        cmd[0] = ffmpegExecutablePath;
-        for (int i = 0; i < argsSize; i++) {
-            cmd[i + 1] = args.get(i);
-        }
-        Runtime runtime = Runtime.getRuntime();
-        ffmpeg = runtime.exec(cmd);
-        ffmpegKiller = new ProcessKiller(ffmpeg);
-        runtime.addShutdownHook(ffmpegKiller);
+        FFMPEGScheduler.Ticket admitted = null;
+        if (scheduler != null) {
+            try {
+                admitted = scheduler.acquire(weight, priority, tenant);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted waiting for the ffmpeg scheduler");
+            }
+        }
+        try {
+            start(admitted);
+        } catch (IOException e) {
+            if (admitted != null) {
+                scheduler.release(admitted);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            if (admitted != null) {
+                scheduler.release(admitted);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Private utility. It starts the process.
+     */
+    private synchronized void start(FFMPEGScheduler.Ticket admitted)
+            throws IOException {
+        ticket = admitted;
+        List<String> cmd = new ArrayList<String>(args.size() + 3);
+        cmd.add(ffmpegExecutablePath);
+        for (int i = 0; i <= args.size(); i++) {
+            int position = threadsPositions.indexOf(Integer.valueOf(i));
+            if (admitted != null && position >= 0) {
+                int threads = (int) Math.round(admitted.getThreads()
+                        * threadsShares.get(position).doubleValue());
+                cmd.add("-threads");
+                cmd.add(String.valueOf(Math.max(1, threads)));
+            }
+            if (i < args.size()) {
+                cmd.add(args.get(i));
+            }
+        }
+        boolean discardOutput = outputHandling == StreamHandling.DISCARD;
+        boolean discardError = !redirectErrorStream
+                && errorHandling == StreamHandling.DISCARD;
+        ffmpeg = null;
+        if (warmPool != null) {
+            ffmpeg = warmPool.start(cmd, discardOutput, discardError,
+                    redirectErrorStream);
+        }
+        if (ffmpeg == null) {
+            ProcessBuilder builder = new ProcessBuilder(cmd);
+            builder.redirectErrorStream(redirectErrorStream);
+            if (discardOutput) {
+                builder.redirectOutput(discard());
+            }
+            if (discardError) {
+                builder.redirectError(discard());
+            }
+            ffmpeg = builder.start();
+        }
+        registration = ProcessRegistry.register(ffmpeg, cmd, tenant);
         inputStream = ffmpeg.getInputStream();
         outputStream = ffmpeg.getOutputStream();
         errorStream = ffmpeg.getErrorStream();
+        if (outputHandling == StreamHandling.DRAIN) {
+            drain(inputStream, false);
+        }
+        if (!redirectErrorStream && errorHandling == StreamHandling.DRAIN) {
+            drain(errorStream, true);
+        }
+    }
+
+    /**
+     * Private utility. It returns the redirect discarding a channel: the
+     * DISCARD redirect of JDK 9+, or the null device on older runtimes.
+     */
+    private static ProcessBuilder.Redirect discard() {
+        try {
+            return (ProcessBuilder.Redirect) ProcessBuilder.Redirect.class
+                    .getField("DISCARD").get(null);
+        } catch (Exception e) {
+            boolean windows = System.getProperty("os.name", "").toLowerCase()
+                    .startsWith("windows");
+            return ProcessBuilder.Redirect.to(new File(windows ? "NUL" : "/dev/null"));
+        }
+    }
+
+    /**
+     * Private utility. It starts a thread draining a channel, on a virtual
+     * thread when available.
+     */
+    private void drain(final InputStream stream, final boolean error) {
+        Runnable drainer = new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(stream));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        synchronized (tailLock) {
+                            int index = (tailStart + tailCount) % tail.length;
+                            tail[index] = line;
+                            if (tailCount < tail.length) {
+                                tailCount++;
+                            } else {
+                                tailStart = (tailStart + 1) % tail.length;
+                            }
+                        }
+                        LineListener listener = lineListener;
+                        if (listener != null) {
+                            listener.line(line, error);
+                        }
+                    }
+                } catch (IOException e) {
+                    ; // The stream has been closed: the process is over.
+                }
+            }
+        };
+        Thread thread = VirtualThreads.start(drainer,
+                error ? "jave-stderr" : "jave-stdout");
+        synchronized (drainers) {
+            drainers.add(thread);
+        }
     }
 
     /**
@@ -125,9 +589,39 @@ class FFMPEGExecutor {
     }
 
     /**
-     * If there's a ffmpeg execution in progress, it kills it.
+     * Waits for the ffmpeg process to terminate, and returns its exit value.
+     * The caller should have consumed the piped output channels. The drained
+     * channels are completely read when this method returns.
+     * @return The exit value of the process, or -1 if the process has not been
+     * started or has already been destroyed.
+     * @throws InterruptedException If the current thread is interrupted while
+     * waiting.
+     */
+    public int waitFor() throws InterruptedException {
+        Process process;
+        synchronized (this) {
+            process = ffmpeg;
+        }
+        if (process == null) {
+            return -1;
+        }
+        int exitCode = process.waitFor();
+        List<Thread> threads;
+        synchronized (drainers) {
+            threads = new ArrayList<Thread>(drainers);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return exitCode;
+    }
+
+    /**
+     * If there's a ffmpeg execution in progress, it kills it. It can be called
+     * from a thread other than the one reading the ffmpeg streams, which will
+     * see its streams closed.
      */
-    public void destroy() {
+    public synchronized void destroy() {
         if (inputStream != null) {
             try {
                 inputStream.close();
@@ -152,14 +646,15 @@ class FFMPEGExecutor {
             }
             errorStream = null;
         }
-        if (ffmpeg != null) {
-            ffmpeg.destroy();
-            ffmpeg = null;
+        if (registration != null) {
+            registration.destroy(false);
+            ProcessRegistry.unregister(registration);
+            registration = null;
         }
-        if (ffmpegKiller != null) {
-            Runtime runtime = Runtime.getRuntime();
-            runtime.removeShutdownHook(ffmpegKiller);
-            ffmpegKiller = null;
+        ffmpeg = null;
+        if (ticket != null) {
+            scheduler.release(ticket);
+            ticket = null;
         }
     }
 
@@ -18,6 +18,8 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.File;
+
 /**
  * Abstract class whose derived concrete instances are used by {@link Encoder}
  * to locate the ffmpeg executable path.
@@ -27,6 +29,22 @@ package it.sauronsoftware.jave;
  */
 public abstract class FFMPEGLocator {
 
+	/**
+	 * The scheduler admitting the processes started by this locator. If null
+	 * the default scheduler is used.
+	 */
+	private volatile FFMPEGScheduler scheduler = null;
+
+	/**
+	 * The pool of warm workers for the short calls. It can be null.
+	 */
+	private volatile WarmProcessPool warmPool = null;
+
+	/**
+	 * The maximum idle time of a warm worker, in millis.
+	 */
+	private static final long WARM_MAX_IDLE = 5 * 60 * 1000;
+
 	/**
 	 * This method should return the path of a ffmpeg executable suitable for
 	 * the current machine.
@@ -35,6 +53,36 @@ public abstract class FFMPEGLocator {
 	 */
 	protected abstract String getFFMPEGExecutablePath();
 
+	/**
+	 * This method should return the path of a ffprobe executable suitable for
+	 * the current machine, or null if there is none. When available, ffprobe
+	 * is used to gather informations about multimedia files.
+	 * 
+	 * The default implementation looks for a ffprobe executable alongside the
+	 * ffmpeg one, named as the ffmpeg executable with "ffmpeg" replaced by
+	 * "ffprobe" (for example <em>ffprobe.exe</em> next to
+	 * <em>ffmpeg.exe</em>). If the ffmpeg path has no directory, the ffprobe
+	 * executable is expected to be on the PATH too.
+	 * 
+	 * @return The path of the ffprobe executable, or null.
+	 */
+	protected String getFFProbeExecutablePath() {
+		File ffmpeg = new File(getFFMPEGExecutablePath());
+		String name = ffmpeg.getName();
+		int index = name.lastIndexOf("ffmpeg");
+		if (index < 0) {
+			return null;
+		}
+		String probeName = name.substring(0, index) + "ffprobe"
+				+ name.substring(index + "ffmpeg".length());
+		File directory = ffmpeg.getParentFile();
+		if (directory == null) {
+			return probeName;
+		}
+		File probe = new File(directory, probeName);
+		return probe.isFile() ? probe.getPath() : null;
+	}
+
 	/**
 	 * It returns a brand new {@link FFMPEGExecutor}, ready to be used in a
 	 * ffmpeg call.
@@ -43,7 +91,111 @@ public abstract class FFMPEGLocator {
 	 *         call the ffmpeg executable.
 	 */
 	FFMPEGExecutor createExecutor() {
-		return new FFMPEGExecutor(getFFMPEGExecutablePath());
+		FFMPEGExecutor executor = new FFMPEGExecutor(getFFMPEGExecutablePath());
+		executor.setScheduler(getScheduler());
+		return executor;
+	}
+
+	/**
+	 * It returns a brand new {@link FFMPEGExecutor} for a short ffmpeg call
+	 * (a probe, a single frame), started on a warm worker when available
+	 * (see {@link FFMPEGLocator#setWarmWorkers(int)}).
+	 * 
+	 * @return A newly instanced {@link FFMPEGExecutor}, using this locator to
+	 *         call the ffmpeg executable.
+	 */
+	FFMPEGExecutor createShortExecutor() {
+		FFMPEGExecutor executor = createExecutor();
+		executor.setWarmPool(warmPool);
+		return executor;
+	}
+
+	/**
+	 * It returns a brand new {@link FFMPEGExecutor} calling the ffprobe
+	 * executable, or null if there is no ffprobe executable.
+	 * 
+	 * @return A newly instanced {@link FFMPEGExecutor}, calling ffprobe, or
+	 *         null.
+	 */
+	FFMPEGExecutor createProbeExecutor() {
+		String path = getFFProbeExecutablePath();
+		if (path == null) {
+			return null;
+		}
+		FFMPEGExecutor executor = new FFMPEGExecutor(path);
+		executor.setScheduler(getScheduler());
+		executor.setWarmPool(warmPool);
+		return executor;
+	}
+
+	/**
+	 * Returns the scheduler admitting the processes started by this locator.
+	 * 
+	 * @return The scheduler of this locator, or the default one (see
+	 *         {@link FFMPEGScheduler#getDefault()}) if it has none. It can be
+	 *         null.
+	 */
+	public FFMPEGScheduler getScheduler() {
+		FFMPEGScheduler scheduler = this.scheduler;
+		return scheduler != null ? scheduler : FFMPEGScheduler.getDefault();
+	}
+
+	/**
+	 * Sets the scheduler admitting the processes started by this locator.
+	 * 
+	 * @param scheduler
+	 *            The scheduler. If null the default one is used.
+	 */
+	public void setScheduler(FFMPEGScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Returns the number of warm workers kept by this locator.
+	 * 
+	 * @return The number of warm workers, 0 if the worker mode is off.
+	 */
+	public int getWarmWorkers() {
+		WarmProcessPool pool = warmPool;
+		return pool != null ? pool.getSize() : 0;
+	}
+
+	/**
+	 * Sets the number of warm workers kept by this locator. A warm worker is
+	 * a pre-forked idle helper process which ffprobe calls, and short ffmpeg
+	 * calls such as the ones gathering informations or extracting a single
+	 * frame, are started on, saving the process start latency. Workers idle
+	 * for more than five minutes are replaced. The worker mode is available
+	 * on POSIX systems only: elsewhere this setting is ignored.
+	 * 
+	 * @param workers
+	 *            The number of warm workers, 0 to turn the worker mode off
+	 *            (the default).
+	 */
+	public synchronized void setWarmWorkers(int workers) {
+		WarmProcessPool pool = warmPool;
+		if (pool != null && pool.getSize() == workers) {
+			return;
+		}
+		warmPool = workers > 0 && WarmProcessPool.isSupported()
+				? new WarmProcessPool(workers, WARM_MAX_IDLE) : null;
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Returns the capabilities of the ffmpeg executable picked up by this
+	 * locator. The executable is probed only once, see
+	 * {@link CodecCapabilities#of(FFMPEGLocator)}.
+	 * 
+	 * @return The capabilities of the ffmpeg executable.
+	 * @throws EncoderException
+	 *             If a problem occurs calling the underlying ffmpeg
+	 *             executable.
+	 */
+	public CodecCapabilities getCapabilities() throws EncoderException {
+		return CodecCapabilities.of(this);
 	}
 
 }
@@ -0,0 +1,392 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An admission controller for ffmpeg processes, sharing a CPU budget among
+ * the processes started by every locator it is attached to (see
+ * {@link FFMPEGLocator#setScheduler(FFMPEGScheduler)} and
+ * {@link FFMPEGScheduler#setDefault(FFMPEGScheduler)}).
+ *
+ * Every process has a weight, that is the number of cores it is expected to
+ * keep busy: probes are cheap, encodes weigh by output resolution and codec.
+ * A process starts only when its weight fits in the unused budget, otherwise
+ * the calling thread waits. Waiting processes are admitted by priority class
+ * and, within a class, in round-robin order among tenants, so a tenant
+ * submitting a burst of jobs cannot starve the others.
+ *
+ * Encodes are given a <em>-threads</em> option matching their weight, so the
+ * total number of encoding threads matches the budget.
+ */
+public class FFMPEGScheduler {
+
+    /**
+     * The priority classes. Higher classes are always admitted first.
+     */
+    public enum Priority {
+
+        /**
+         * Latency-sensitive jobs, such as probes and thumbnails.
+         */
+        INTERACTIVE,
+
+        /**
+         * The default class.
+         */
+        NORMAL,
+
+        /**
+         * Throughput jobs, such as batch transcodes.
+         */
+        BATCH
+
+    }
+
+    /**
+     * The weight of a probe or of any process without an explicit weight.
+     */
+    public static final double PROBE_WEIGHT = 0.25;
+
+    /**
+     * The tenant of the jobs without one.
+     */
+    private static final String NO_TENANT = "";
+
+    /**
+     * The scheduler used by the locators without one of their own. If null,
+     * processes start with no admission control.
+     */
+    private static volatile FFMPEGScheduler defaultScheduler = null;
+
+    /**
+     * The CPU budget, in cores.
+     */
+    private final double budget;
+
+    /**
+     * The weight of the running processes.
+     */
+    private double used = 0;
+
+    /**
+     * The number of running processes.
+     */
+    private int running = 0;
+
+    /**
+     * The number of waiting processes.
+     */
+    private int waiting = 0;
+
+    /**
+     * The waiting tickets, by priority and tenant. The tenants are kept in
+     * round-robin order: a served tenant moves to the end of its map.
+     */
+    private final Map<Priority, LinkedHashMap<String, ArrayDeque<Ticket>>> queues =
+            new EnumMap<Priority, LinkedHashMap<String, ArrayDeque<Ticket>>>(Priority.class);
+
+    /**
+     * It builds a scheduler whose budget is the number of available
+     * processors.
+     */
+    public FFMPEGScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * It builds a scheduler.
+     *
+     * @param budget The CPU budget, in cores.
+     */
+    public FFMPEGScheduler(double budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget <= 0");
+        }
+        this.budget = budget;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new LinkedHashMap<String, ArrayDeque<Ticket>>());
+        }
+    }
+
+    /**
+     * Returns the scheduler used by the locators without one of their own.
+     *
+     * @return The default scheduler, or null if there is none.
+     */
+    public static FFMPEGScheduler getDefault() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Sets the scheduler used by the locators without one of their own. By
+     * default there is none, and processes start with no admission control.
+     *
+     * @param scheduler The default scheduler. It can be null.
+     */
+    public static void setDefault(FFMPEGScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Returns the CPU budget.
+     *
+     * @return The CPU budget, in cores.
+     */
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the weight of the running processes.
+     *
+     * @return The weight of the running processes, in cores.
+     */
+    public synchronized double getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the number of running processes.
+     *
+     * @return The number of running processes.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of processes waiting to be admitted.
+     *
+     * @return The number of waiting processes.
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Waits until a process can start.
+     *
+     * @param weight The weight of the process, in cores. Weights above the
+     * budget are lowered to the budget.
+     * @param priority The priority class of the process.
+     * @param tenant The tenant key of the process. It can be null.
+     * @return The admission ticket, to be released when the process ends.
+     * @throws InterruptedException If the current thread is interrupted while
+     * waiting.
+     */
+    Ticket acquire(double weight, Priority priority, String tenant)
+            throws InterruptedException {
+        Ticket ticket = new Ticket(Math.min(weight, budget),
+                priority != null ? priority : Priority.NORMAL,
+                tenant != null ? tenant : NO_TENANT);
+        synchronized (this) {
+            LinkedHashMap<String, ArrayDeque<Ticket>> tenants = queues.get(ticket.priority);
+            ArrayDeque<Ticket> queue = tenants.get(ticket.tenant);
+            if (queue == null) {
+                queue = new ArrayDeque<Ticket>();
+                tenants.put(ticket.tenant, queue);
+            }
+            queue.add(ticket);
+            waiting++;
+            dispatch();
+            try {
+                while (!ticket.admitted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.admitted) {
+                    release(ticket);
+                } else {
+                    queue.remove(ticket);
+                    if (queue.isEmpty() && tenants.get(ticket.tenant) == queue) {
+                        tenants.remove(ticket.tenant);
+                    }
+                    waiting--;
+                    dispatch();
+                }
+                throw e;
+            }
+        }
+        return ticket;
+    }
+
+    /**
+     * Releases an admission ticket, letting waiting processes start. Releasing
+     * a ticket twice has no effect.
+     *
+     * @param ticket The ticket.
+     */
+    synchronized void release(Ticket ticket) {
+        if (!ticket.admitted || ticket.released) {
+            return;
+        }
+        ticket.released = true;
+        used -= ticket.weight;
+        running--;
+        if (running == 0) {
+            // Wipe the rounding errors.
+            used = 0;
+        }
+        dispatch();
+    }
+
+    /**
+     * Private utility. It admits the waiting tickets fitting in the budget,
+     * by priority class and then in round-robin order among tenants. The
+     * first ticket not fitting stops the admissions, so that heavy jobs are
+     * not overtaken forever by lighter ones. A ticket is always admitted if
+     * nothing is running.
+     */
+    private void dispatch() {
+        boolean admitted = false;
+        for (Priority priority : Priority.values()) {
+            LinkedHashMap<String, ArrayDeque<Ticket>> tenants = queues.get(priority);
+            while (!tenants.isEmpty()) {
+                Iterator<Map.Entry<String, ArrayDeque<Ticket>>> i = tenants.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Ticket>> first = i.next();
+                ArrayDeque<Ticket> queue = first.getValue();
+                Ticket ticket = queue.peek();
+                if (running > 0 && used + ticket.weight > budget + 1e-9) {
+                    if (admitted) {
+                        notifyAll();
+                    }
+                    return;
+                }
+                queue.poll();
+                i.remove();
+                if (!queue.isEmpty()) {
+                    // Move the tenant to the end of the round.
+                    tenants.put(first.getKey(), queue);
+                }
+                waiting--;
+                running++;
+                used += ticket.weight;
+                ticket.admitted = true;
+                admitted = true;
+            }
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the weight of an encoding process, in cores. Video weighs by
+     * output resolution, relative to 720p, and twice as much for the most
+     * expensive codecs (HEVC, VP9, AV1); stream copies are as cheap as a
+     * probe.
+     *
+     * @param attributes The attributes of the encoding process.
+     * @return The weight of the process.
+     */
+    static double weigh(EncodingAttributes attributes) {
+        double weight = 0;
+        if (attributes instanceof StreamingAttributes
+                && !((StreamingAttributes) attributes).getVariants().isEmpty()) {
+            for (StreamVariant variant : ((StreamingAttributes) attributes).getVariants()) {
+                weight += weigh(variant.getVideoAttributes(), variant.getAudioAttributes());
+            }
+        } else {
+            weight = weigh(attributes.getVideoAttributes(),
+                    attributes.getAudioAttributes());
+        }
+        return Math.max(PROBE_WEIGHT, weight);
+    }
+
+    /**
+     * Private utility. It weighs a video and an audio stream.
+     */
+    private static double weigh(VideoAttributes video, AudioAttributes audio) {
+        double weight = 0;
+        if (audio != null) {
+            weight += "copy".equals(audio.getCodec()) ? 0 : 0.5;
+        }
+        if (video != null) {
+            String codec = video.getCodec();
+            if ("copy".equals(codec)) {
+                return weight + PROBE_WEIGHT;
+            }
+            VideoSize size = video.getSize();
+            double pixels = size != null ? (double) size.getWidth() * size.getHeight()
+                    : 1280 * 720;
+            double videoWeight = 2 * pixels / (1280 * 720);
+            if (codec != null && (codec.indexOf("265") >= 0
+                    || codec.indexOf("hevc") >= 0 || codec.indexOf("vp9") >= 0
+                    || codec.indexOf("av1") >= 0 || codec.indexOf("aom") >= 0)) {
+                videoWeight *= 2;
+            }
+            weight += Math.max(1, videoWeight);
+        }
+        return weight;
+    }
+
+    /**
+     * An admission ticket of a process.
+     */
+    static class Ticket {
+
+        /**
+         * The weight of the process.
+         */
+        private final double weight;
+
+        /**
+         * The priority class of the process.
+         */
+        private final Priority priority;
+
+        /**
+         * The tenant of the process.
+         */
+        private final String tenant;
+
+        /**
+         * Whether the process has been admitted. Guarded by the scheduler.
+         */
+        private boolean admitted = false;
+
+        /**
+         * Whether the ticket has been released. Guarded by the scheduler.
+         */
+        private boolean released = false;
+
+        private Ticket(double weight, Priority priority, String tenant) {
+            this.weight = weight;
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+
+        /**
+         * Returns the number of threads the process should use.
+         *
+         * @return The number of threads, at least 1.
+         */
+        int getThreads() {
+            return Math.max(1, (int) Math.round(weight));
+        }
+
+    }
+
+}
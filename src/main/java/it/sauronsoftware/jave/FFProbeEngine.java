@@ -0,0 +1,448 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A package-private probe engine, gathering informations about a multimedia
+ * file with <em>ffprobe -print_format json</em>. The JSON output is parsed
+ * with a streaming {@link JsonReader}, and reports every stream and chapter
+ * of the file.
+ */
+class FFProbeEngine {
+
+    private FFProbeEngine() {
+    }
+
+    /**
+     * Returns informations about a multimedia file, calling the ffprobe
+     * executable picked up by the given locator.
+     *
+     * @param locator The locator picking up the ffprobe executable.
+     * @param source The multimedia file.
+     * @return The informations about the file, or null if ffprobe is not
+     * available, in which case the caller should fall back to parsing the
+     * ffmpeg output.
+     * @throws InputFormatException If the format of the source file cannot be
+     * recognized and decoded.
+     * @throws EncoderException If a problem occurs reading the ffprobe output.
+     */
+    static MultimediaInfo probe(FFMPEGLocator locator, File source)
+            throws InputFormatException, EncoderException {
+        FFMPEGExecutor ffprobe = locator.createProbeExecutor();
+        if (ffprobe == null) {
+            return null;
+        }
+        ffprobe.addArgument("-v");
+        ffprobe.addArgument("error");
+        ffprobe.addArgument("-print_format");
+        ffprobe.addArgument("json");
+        ffprobe.addArgument("-show_format");
+        ffprobe.addArgument("-show_streams");
+        ffprobe.addArgument("-show_chapters");
+        ffprobe.addArgument(source.getAbsolutePath());
+        ffprobe.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffprobe.setSchedule(FFMPEGScheduler.PROBE_WEIGHT,
+                FFMPEGScheduler.Priority.INTERACTIVE, null);
+        try {
+            ffprobe.execute();
+        } catch (IOException e) {
+            // No usable ffprobe executable.
+            return null;
+        }
+        try {
+            JsonReader json = new JsonReader(new InputStreamReader(
+                    ffprobe.getInputStream(), "UTF-8"));
+            MultimediaInfo info = parse(json);
+            if (info == null) {
+                throw new InputFormatException(readMessage(ffprobe));
+            }
+            return info;
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        } finally {
+            ffprobe.destroy();
+        }
+    }
+
+    /**
+     * Returns the timestamps of the key frames of the first video stream of a
+     * multimedia file. Only the packet headers are read, nothing is decoded.
+     *
+     * @param locator The locator picking up the ffprobe executable.
+     * @param source The multimedia file.
+     * @return The key frame timestamps in millis, in ascending order, or null
+     * if ffprobe is not available.
+     * @throws EncoderException If a problem occurs reading the ffprobe output.
+     */
+    static List<Long> keyframes(FFMPEGLocator locator, File source)
+            throws EncoderException {
+        FFMPEGExecutor ffprobe = locator.createProbeExecutor();
+        if (ffprobe == null) {
+            return null;
+        }
+        ffprobe.addArgument("-v");
+        ffprobe.addArgument("error");
+        ffprobe.addArgument("-select_streams");
+        ffprobe.addArgument("v:0");
+        ffprobe.addArgument("-show_entries");
+        ffprobe.addArgument("packet=pts_time,flags");
+        ffprobe.addArgument("-of");
+        ffprobe.addArgument("csv=p=0");
+        ffprobe.addArgument(source.getAbsolutePath());
+        ffprobe.setErrorHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffprobe.setSchedule(FFMPEGScheduler.PROBE_WEIGHT,
+                FFMPEGScheduler.Priority.INTERACTIVE, null);
+        try {
+            ffprobe.execute();
+        } catch (IOException e) {
+            return null;
+        }
+        List<Long> keyframes = new ArrayList<Long>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    ffprobe.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma > 0 && line.indexOf('K', comma) > 0) {
+                    long time = parseMillis(line.substring(0, comma));
+                    if (time >= 0 && (keyframes.isEmpty()
+                            || time > keyframes.get(keyframes.size() - 1))) {
+                        keyframes.add(time);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        } finally {
+            ffprobe.destroy();
+        }
+        return keyframes;
+    }
+
+    /**
+     * Parses the ffprobe JSON output.
+     *
+     * @param json The JSON reader.
+     * @return The informations, or null if the output reports no format (the
+     * file has not been recognized).
+     * @throws IOException If the output cannot be read or is malformed.
+     */
+    static MultimediaInfo parse(JsonReader json) throws IOException {
+        if (json.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            return null;
+        }
+        MultimediaInfo info = new MultimediaInfo();
+        boolean recognized = false;
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("streams".equals(name)) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    info.addStream(parseStream(json));
+                }
+                json.endArray();
+            } else if ("chapters".equals(name)) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    info.addChapter(parseChapter(json));
+                }
+                json.endArray();
+            } else if ("format".equals(name)) {
+                parseFormat(json, info);
+                recognized = true;
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        if (!recognized) {
+            return null;
+        }
+        for (StreamInfo stream : info.getStreams()) {
+            if (stream.isVideo() && info.getVideo() == null) {
+                info.setVideo(toVideoInfo(stream));
+            } else if (stream.isAudio() && info.getAudio() == null) {
+                info.setAudio(toAudioInfo(stream));
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Private utility. It parses the "format" object.
+     */
+    private static void parseFormat(JsonReader json, MultimediaInfo info)
+            throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("format_name".equals(name)) {
+                String format = json.nextValue();
+                if (format != null) {
+                    int comma = format.indexOf(',');
+                    info.setFormat(comma > 0 ? format.substring(0, comma) : format);
+                }
+            } else if ("duration".equals(name)) {
+                info.setDuration(parseMillis(json.nextValue()));
+            } else if ("bit_rate".equals(name)) {
+                info.setBitRate(parseLong(json.nextValue()));
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    /**
+     * Private utility. It parses an element of the "streams" array.
+     */
+    private static StreamInfo parseStream(JsonReader json) throws IOException {
+        StreamInfo stream = new StreamInfo();
+        String averageFrameRate = null;
+        String realFrameRate = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("index".equals(name)) {
+                stream.setIndex((int) parseLong(json.nextValue()));
+            } else if ("codec_type".equals(name)) {
+                stream.setType(json.nextValue());
+            } else if ("codec_name".equals(name)) {
+                stream.setCodecName(json.nextValue());
+            } else if ("codec_long_name".equals(name)) {
+                stream.setCodecLongName(json.nextValue());
+            } else if ("profile".equals(name)) {
+                stream.setProfile(json.nextValue());
+            } else if ("codec_tag_string".equals(name)) {
+                stream.setCodecTag(json.nextValue());
+            } else if ("width".equals(name)) {
+                stream.setWidth((int) parseLong(json.nextValue()));
+            } else if ("height".equals(name)) {
+                stream.setHeight((int) parseLong(json.nextValue()));
+            } else if ("pix_fmt".equals(name)) {
+                stream.setPixelFormat(json.nextValue());
+            } else if ("color_range".equals(name)) {
+                stream.setColorRange(json.nextValue());
+            } else if ("color_space".equals(name)) {
+                stream.setColorSpace(json.nextValue());
+            } else if ("color_transfer".equals(name)) {
+                stream.setColorTransfer(json.nextValue());
+            } else if ("color_primaries".equals(name)) {
+                stream.setColorPrimaries(json.nextValue());
+            } else if ("avg_frame_rate".equals(name)) {
+                averageFrameRate = json.nextValue();
+            } else if ("r_frame_rate".equals(name)) {
+                realFrameRate = json.nextValue();
+            } else if ("sample_rate".equals(name)) {
+                stream.setSamplingRate((int) parseLong(json.nextValue()));
+            } else if ("channels".equals(name)) {
+                stream.setChannels((int) parseLong(json.nextValue()));
+            } else if ("channel_layout".equals(name)) {
+                stream.setChannelLayout(json.nextValue());
+            } else if ("bit_rate".equals(name)) {
+                stream.setBitRate(parseLong(json.nextValue()));
+            } else if ("duration".equals(name)) {
+                stream.setDuration(parseMillis(json.nextValue()));
+            } else if ("nb_frames".equals(name)) {
+                stream.setFrameCount(parseLong(json.nextValue()));
+            } else if ("disposition".equals(name)) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String flag = json.nextName();
+                    String value = json.nextValue();
+                    if ("default".equals(flag)) {
+                        stream.setDefaultStream("1".equals(value));
+                    }
+                }
+                json.endObject();
+            } else if ("tags".equals(name)) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String key = json.nextName();
+                    String value = json.nextValue();
+                    if (value != null) {
+                        stream.putTag(key, value);
+                        if ("rotate".equals(key)) {
+                            stream.setRotation(normalizeRotation(parseLong(value)));
+                        }
+                    }
+                }
+                json.endObject();
+            } else if ("side_data_list".equals(name)) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String key = json.nextName();
+                        String value = json.nextValue();
+                        if ("rotation".equals(key) && value != null) {
+                            // The display matrix rotation is counterclockwise.
+                            stream.setRotation(normalizeRotation(-parseLong(value)));
+                        }
+                    }
+                    json.endObject();
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        float frameRate = parseRate(averageFrameRate);
+        if (frameRate <= 0) {
+            frameRate = parseRate(realFrameRate);
+        }
+        stream.setFrameRate(frameRate);
+        return stream;
+    }
+
+    /**
+     * Private utility. It parses an element of the "chapters" array.
+     */
+    private static ChapterInfo parseChapter(JsonReader json) throws IOException {
+        ChapterInfo chapter = new ChapterInfo();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("id".equals(name)) {
+                chapter.setId(parseLong(json.nextValue()));
+            } else if ("start_time".equals(name)) {
+                chapter.setStartTime(parseMillis(json.nextValue()));
+            } else if ("end_time".equals(name)) {
+                chapter.setEndTime(parseMillis(json.nextValue()));
+            } else if ("tags".equals(name)) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String key = json.nextName();
+                    String value = json.nextValue();
+                    if ("title".equals(key)) {
+                        chapter.setTitle(value);
+                    }
+                }
+                json.endObject();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return chapter;
+    }
+
+    /**
+     * Private utility. It builds the legacy video informations from a stream.
+     */
+    private static VideoInfo toVideoInfo(StreamInfo stream) {
+        VideoInfo video = new VideoInfo();
+        video.setDecoder(stream.getCodecName());
+        if (stream.getWidth() > 0 && stream.getHeight() > 0) {
+            video.setSize(new VideoSize(stream.getWidth(), stream.getHeight()));
+        }
+        video.setFrameRate(stream.getFrameRate());
+        if (stream.getBitRate() > 0) {
+            video.setBitRate((int) (stream.getBitRate() / 1000));
+        }
+        return video;
+    }
+
+    /**
+     * Private utility. It builds the legacy audio informations from a stream.
+     */
+    private static AudioInfo toAudioInfo(StreamInfo stream) {
+        AudioInfo audio = new AudioInfo();
+        audio.setDecoder(stream.getCodecName());
+        audio.setSamplingRate(stream.getSamplingRate());
+        audio.setChannels(stream.getChannels());
+        if (stream.getBitRate() > 0) {
+            audio.setBitRate((int) (stream.getBitRate() / 1000));
+        }
+        return audio;
+    }
+
+    /**
+     * Private utility. It reads the ffprobe error output, to report why a
+     * file has not been recognized.
+     */
+    private static String readMessage(FFMPEGExecutor ffprobe) {
+        try {
+            ffprobe.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return ffprobe.getTailMessage();
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                return -1;
+            }
+        }
+    }
+
+    private static long parseMillis(String seconds) {
+        if (seconds == null) {
+            return -1;
+        }
+        try {
+            return Math.round(Double.parseDouble(seconds) * 1000);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static float parseRate(String rate) {
+        if (rate == null) {
+            return -1;
+        }
+        try {
+            int slash = rate.indexOf('/');
+            if (slash < 0) {
+                return Float.parseFloat(rate);
+            }
+            double denominator = Double.parseDouble(rate.substring(slash + 1));
+            if (denominator == 0) {
+                return -1;
+            }
+            return (float) (Double.parseDouble(rate.substring(0, slash)) / denominator);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int normalizeRotation(long degrees) {
+        return (int) (((degrees % 360) + 360) % 360);
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes video frames into memory, for in-process analysis, without
+ * writing image files. ffmpeg decodes the video to raw pixels
+ * (<em>-f rawvideo</em>) on its standard output, applying the optional
+ * scaling and frame rate decimation, and the frames are read into pooled
+ * direct buffers.
+ *
+ * Frames can be pulled from a {@link FrameStream} (see
+ * {@link FrameGrabber#open(MultimediaObject)}) or pushed to a
+ * {@link FrameListener} (see
+ * {@link FrameGrabber#grab(MultimediaObject, FrameListener)}).
+ */
+public class FrameGrabber {
+
+    /**
+     * The pixel formats of the grabbed frames.
+     */
+    public enum PixelFormat {
+
+        /**
+         * Packed RGB, 3 bytes per pixel.
+         */
+        RGB24("rgb24"),
+
+        /**
+         * 8-bit grayscale, 1 byte per pixel.
+         */
+        GRAY("gray"),
+
+        /**
+         * Planar YUV 4:2:0: the full resolution Y plane, followed by the U
+         * and V planes, subsampled by 2 in both directions.
+         */
+        YUV420P("yuv420p");
+
+        /**
+         * The ffmpeg name of the format.
+         */
+        private final String name;
+
+        private PixelFormat(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the ffmpeg name of the format.
+         *
+         * @return The ffmpeg name of the format.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the size of a frame.
+         *
+         * @param width The frame width.
+         * @param height The frame height.
+         * @return The size of a frame, in bytes.
+         */
+        public int frameSize(int width, int height) {
+            switch (this) {
+            case RGB24:
+                return width * height * 3;
+            case GRAY:
+                return width * height;
+            default:
+                return width * height
+                        + 2 * (((width + 1) / 2) * ((height + 1) / 2));
+            }
+        }
+
+    }
+
+    /**
+     * The locator of the ffmpeg executable used by this grabber.
+     */
+    private final FFMPEGLocator locator;
+
+    /**
+     * The pixel format.
+     */
+    private PixelFormat pixelFormat = PixelFormat.RGB24;
+
+    /**
+     * The frame width, 0 for the source one.
+     */
+    private int width = 0;
+
+    /**
+     * The frame height, 0 for the source one.
+     */
+    private int height = 0;
+
+    /**
+     * The frame rate, 0 for the source one.
+     */
+    private float frameRate = 0;
+
+    /**
+     * The position of the first frame, in millis.
+     */
+    private long offset = 0;
+
+    /**
+     * The length of the grabbed part, in millis, 0 for all of it.
+     */
+    private long duration = 0;
+
+    /**
+     * The number of pooled frames of a stream.
+     */
+    private int poolSize = 4;
+
+    /**
+     * It builds a grabber using a {@link DefaultFFMPEGLocator} instance to
+     * locate the ffmpeg executable to use.
+     */
+    public FrameGrabber() {
+        this(DefaultFFMPEGLocator.getInstance());
+    }
+
+    /**
+     * It builds a grabber with a custom {@link FFMPEGLocator}.
+     *
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * grabber.
+     */
+    public FrameGrabber(FFMPEGLocator locator) {
+        this.locator = locator;
+    }
+
+    /**
+     * Sets the pixel format of the frames. The default is
+     * {@link PixelFormat#RGB24}.
+     *
+     * @param pixelFormat The pixel format.
+     */
+    public void setPixelFormat(PixelFormat pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+    /**
+     * Sets the frame size, scaling the video in ffmpeg. If only one dimension
+     * is given, the other one follows the aspect ratio of the source.
+     *
+     * @param width The frame width, 0 for the source one.
+     * @param height The frame height, 0 for the source one.
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Sets the frame rate, dropping or duplicating frames in ffmpeg.
+     *
+     * @param frameRate The frame rate, 0 for the source one.
+     */
+    public void setFrameRate(float frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Sets the part of the source to grab.
+     *
+     * @param offset The position of the first frame, in millis.
+     * @param duration The length of the part, in millis, 0 for all of it.
+     */
+    public void setRange(long offset, long duration) {
+        this.offset = offset;
+        this.duration = duration;
+    }
+
+    /**
+     * Sets the number of pooled frames of a stream, which is the number of
+     * frames the caller can hold at once. The default is 4.
+     *
+     * @param poolSize The number of pooled frames.
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Starts decoding a video.
+     *
+     * @param multimediaObject The source video. A streaming source requires
+     * both the frame dimensions (see
+     * {@link FrameGrabber#setSize(int, int)}).
+     * @return The stream of the frames, to be closed by the caller.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs calling ffmpeg.
+     */
+    public FrameStream open(MultimediaObject multimediaObject)
+            throws InputFormatException, EncoderException {
+        int frameWidth = width;
+        int frameHeight = height;
+        float rate = frameRate;
+        if (frameWidth <= 0 || frameHeight <= 0 || rate <= 0) {
+            if (multimediaObject.isStream()) {
+                if (frameWidth <= 0 || frameHeight <= 0) {
+                    throw new EncoderException(
+                            "The frame size of a streaming source must be set");
+                }
+            } else {
+                VideoInfo video = multimediaObject.getInfo().getVideo();
+                if (video == null) {
+                    throw new EncoderException("The source has no video stream");
+                }
+                VideoSize size = video.getSize();
+                if (frameWidth <= 0 && frameHeight <= 0) {
+                    frameWidth = size.getWidth();
+                    frameHeight = size.getHeight();
+                } else if (frameHeight <= 0) {
+                    frameHeight = even(frameWidth * size.getHeight()
+                            / (double) size.getWidth());
+                } else if (frameWidth <= 0) {
+                    frameWidth = even(frameHeight * size.getWidth()
+                            / (double) size.getHeight());
+                }
+                if (rate <= 0) {
+                    rate = video.getFrameRate();
+                }
+            }
+        }
+        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffmpeg.setTailSize(8);
+        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.NORMAL, null);
+        ffmpeg.setStdinCommands(!multimediaObject.isStream());
+        ffmpeg.addArgument("-nostats");
+        if (offset > 0) {
+            ffmpeg.addArgument("-ss");
+            ffmpeg.addArgument(String.valueOf(offset / 1000d));
+        }
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(multimediaObject.getInputArgument());
+        if (duration > 0) {
+            ffmpeg.addArgument("-t");
+            ffmpeg.addArgument(String.valueOf(duration / 1000d));
+        }
+        ffmpeg.addArgument("-map");
+        ffmpeg.addArgument("0:v:0");
+        StringBuilder filters = new StringBuilder();
+        if (frameRate > 0) {
+            filters.append("fps=").append(frameRate).append(',');
+        }
+        filters.append("scale=").append(frameWidth).append(':').append(frameHeight)
+                .append(",format=").append(pixelFormat.getName())
+                .append(",showinfo");
+        ffmpeg.addArgument("-vf");
+        ffmpeg.addArgument(filters.toString());
+        ffmpeg.addArgument("-vsync");
+        ffmpeg.addArgument("passthrough");
+        ffmpeg.addArgument("-f");
+        ffmpeg.addArgument("rawvideo");
+        ffmpeg.addArgument("-pix_fmt");
+        ffmpeg.addArgument(pixelFormat.getName());
+        ffmpeg.addThreadsArgument();
+        ffmpeg.addArgument("pipe:1");
+        ReadableByteChannel source = null;
+        if (multimediaObject.isStream()) {
+            source = multimediaObject.takeChannel();
+        }
+        final FrameStream frames = new FrameStream(ffmpeg, frameWidth, frameHeight,
+                pixelFormat, poolSize, offset, rate > 0 ? 1000 / rate : 0);
+        ffmpeg.setLineListener(new FFMPEGExecutor.LineListener() {
+            public void line(String line, boolean error) {
+                frames.line(line);
+            }
+        });
+        StreamPump pump = null;
+        try {
+            ffmpeg.execute();
+            if (source != null) {
+                pump = new StreamPump(source,
+                        Channels.newChannel(ffmpeg.getOutputStream()), true);
+                pump.start("jave-frame-input");
+            }
+        } catch (IOException e) {
+            ffmpeg.destroy();
+            closeQuietly(source);
+            throw new EncoderException(e);
+        }
+        frames.started(pump);
+        return frames;
+    }
+
+    /**
+     * Decodes a video, pushing every frame to a listener.
+     *
+     * @param multimediaObject The source video.
+     * @param listener The listener.
+     * @return The number of frames pushed.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs calling ffmpeg.
+     */
+    public long grab(MultimediaObject multimediaObject, FrameListener listener)
+            throws InputFormatException, EncoderException {
+        FrameStream frames = open(multimediaObject);
+        long count = 0;
+        try {
+            VideoFrame frame;
+            while ((frame = frames.next()) != null) {
+                count++;
+                boolean more;
+                try {
+                    more = listener.frame(frame);
+                } finally {
+                    frame.release();
+                }
+                if (!more) {
+                    break;
+                }
+            }
+        } finally {
+            frames.close();
+        }
+        return count;
+    }
+
+    /**
+     * Private utility. It rounds a dimension to an even number.
+     */
+    private static int even(double value) {
+        return Math.max(2, (int) Math.round(value / 2) * 2);
+    }
+
+    /**
+     * Private utility. It closes a channel, ignoring errors.
+     */
+    private static void closeQuietly(ReadableByteChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+}
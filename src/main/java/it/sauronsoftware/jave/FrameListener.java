@@ -1,8 +1,8 @@
 /*
  * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
- * 
+ *
  * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
- * 
+ *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -19,36 +19,19 @@
 package it.sauronsoftware.jave;
 
 /**
- * A package-private utility to add a shutdown hook to kill ongoing encoding
- * processes at the jvm shutdown.
- * 
- * @author Carlo Pelliccia
+ * Receiver of the frames pushed by
+ * {@link FrameGrabber#grab(MultimediaObject, FrameListener)}.
  */
-class ProcessKiller extends Thread {
-
-	/**
-	 * The process to kill.
-	 */
-	private final Process process;
-
-	/**
-	 * Builds the killer.
-	 * 
-	 * @param process
-	 *            The process to kill.
-	 */
-	public ProcessKiller(Process process) 
-        {
-		this.process = process;
-	}
+public interface FrameListener {
 
-	/**
-	 * It kills the supplied process.
-	 */
-        @Override
-	public void run() 
-        {
-		process.destroy();
-	}
+    /**
+     * This method is called for every decoded frame, from the thread calling
+     * the grabber. The frame is released when the method returns: copy its
+     * buffer to retain its content.
+     *
+     * @param frame The frame.
+     * @return false to stop grabbing, true to go on.
+     */
+    public boolean frame(VideoFrame frame);
 
 }
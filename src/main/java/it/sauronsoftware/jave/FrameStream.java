@@ -0,0 +1,361 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stream of raw video frames decoded by a running ffmpeg process, opened
+ * by {@link FrameGrabber#open(MultimediaObject)}. Frames are pulled with
+ * {@link FrameStream#next()} and must be given back with
+ * {@link VideoFrame#release()}: the stream owns a fixed pool of frames, and
+ * does not allocate any buffer after it has been opened. The stream must be
+ * closed, which stops the process if the frames have not all been read.
+ */
+public class FrameStream implements Closeable {
+
+    /**
+     * The time waited for the timestamp of a frame, in millis, before
+     * computing it from the frame rate.
+     */
+    private static final long TIMESTAMP_WAIT = 1000;
+
+    /**
+     * The ffmpeg process.
+     */
+    private final FFMPEGExecutor ffmpeg;
+
+    /**
+     * The pump feeding a streaming source to the process. It can be null.
+     */
+    private StreamPump pump = null;
+
+    /**
+     * The channel of the raw frames.
+     */
+    private ReadableByteChannel channel = null;
+
+    /**
+     * The frame width.
+     */
+    private final int width;
+
+    /**
+     * The frame height.
+     */
+    private final int height;
+
+    /**
+     * The pixel format.
+     */
+    private final FrameGrabber.PixelFormat pixelFormat;
+
+    /**
+     * The position of the first frame in the source, in millis.
+     */
+    private final long offset;
+
+    /**
+     * The nominal interval between two frames, in millis, used when a frame
+     * timestamp is not available. It can be 0.
+     */
+    private final double frameInterval;
+
+    /**
+     * The frames not in use.
+     */
+    private final ArrayDeque<VideoFrame> free;
+
+    /**
+     * The timestamps reported by ffmpeg for the decoded frames: pairs of
+     * frame number and time in millis from the first frame.
+     */
+    private final BlockingQueue<long[]> timestamps = new LinkedBlockingQueue<long[]>();
+
+    /**
+     * A timestamp already taken from the queue, belonging to a frame not
+     * read yet. Used only by the reading thread.
+     */
+    private long[] aheadTimestamp = null;
+
+    /**
+     * The number of frames read.
+     */
+    private long count = 0;
+
+    /**
+     * Whether the end of the frames has been reached.
+     */
+    private boolean ended = false;
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * It builds the stream of a process about to be started.
+     *
+     * @param ffmpeg The ffmpeg process, writing the raw frames on its
+     * standard output and its frame timestamps (showinfo) on its standard
+     * error, which must be drained with a line listener calling
+     * {@link FrameStream#line(String)}.
+     * @param width The frame width.
+     * @param height The frame height.
+     * @param pixelFormat The pixel format.
+     * @param poolSize The number of pooled frames.
+     * @param offset The position of the first frame in the source, in
+     * millis.
+     * @param frameInterval The nominal interval between two frames, in
+     * millis, or 0 if unknown.
+     */
+    FrameStream(FFMPEGExecutor ffmpeg, int width, int height,
+            FrameGrabber.PixelFormat pixelFormat, int poolSize, long offset,
+            double frameInterval) {
+        this.ffmpeg = ffmpeg;
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+        this.offset = offset;
+        this.frameInterval = frameInterval;
+        int size = pixelFormat.frameSize(width, height);
+        free = new ArrayDeque<VideoFrame>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.add(new VideoFrame(this, size));
+        }
+    }
+
+    /**
+     * Attaches the stream to the started process.
+     *
+     * @param pump The pump feeding a streaming source. It can be null.
+     */
+    void started(StreamPump pump) {
+        this.pump = pump;
+        this.channel = Channels.newChannel(ffmpeg.getInputStream());
+    }
+
+    /**
+     * Returns the frame width, in pixels.
+     *
+     * @return The frame width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the frame height, in pixels.
+     *
+     * @return The frame height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pixel format of the frames.
+     *
+     * @return The pixel format of the frames.
+     */
+    public FrameGrabber.PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Reads the next frame, blocking until it is decoded.
+     *
+     * @return The next frame, or null if there are no more frames.
+     * @throws IllegalStateException If every pooled frame is in use: the
+     * caller must release the frames it no longer needs.
+     * @throws EncoderException If the frames cannot be read, or ffmpeg fails.
+     */
+    public VideoFrame next() throws EncoderException {
+        if (ended) {
+            return null;
+        }
+        if (closed) {
+            throw new EncoderException("The frame stream is closed");
+        }
+        VideoFrame frame;
+        synchronized (free) {
+            frame = free.poll();
+        }
+        if (frame == null) {
+            throw new IllegalStateException(
+                    "Every frame is in use: release the frames already read");
+        }
+        ByteBuffer buffer = frame.getBuffer();
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            recycle(frame);
+            if (closed) {
+                throw new EncoderException("The frame stream is closed", e);
+            }
+            throw new EncoderException(e);
+        }
+        if (buffer.hasRemaining()) {
+            // The end of the frames, possibly a truncated one.
+            recycle(frame);
+            finish();
+            return null;
+        }
+        buffer.flip();
+        frame.set(count, timestamp(count));
+        count++;
+        return frame;
+    }
+
+    /**
+     * Closes the stream, stopping the ffmpeg process if it is still running.
+     */
+    public void close() {
+        closed = true;
+        ffmpeg.destroy();
+    }
+
+    /**
+     * Parses a line of the ffmpeg standard error, collecting the frame
+     * numbers and timestamps printed by the showinfo filter.
+     *
+     * @param line The line.
+     */
+    void line(String line) {
+        int index = line.indexOf(" pts_time:");
+        int number = line.indexOf(" n:");
+        if (index < 0 || number < 0 || line.indexOf("Parsed_showinfo") < 0) {
+            return;
+        }
+        try {
+            long n = Long.parseLong(field(line, number + " n:".length()));
+            double seconds = Double.parseDouble(field(line,
+                    index + " pts_time:".length()));
+            timestamps.add(new long[] { n, Math.round(seconds * 1000) });
+        } catch (NumberFormatException e) {
+            ; // Silent ignore
+        }
+    }
+
+    /**
+     * Private utility. It returns the value of a showinfo field starting at
+     * the given index, skipping the padding spaces.
+     */
+    private static String field(String line, int from) {
+        while (from < line.length() && line.charAt(from) == ' ') {
+            from++;
+        }
+        int to = from;
+        while (to < line.length() && line.charAt(to) != ' ') {
+            to++;
+        }
+        return line.substring(from, to);
+    }
+
+    /**
+     * Gives a frame back to the pool.
+     *
+     * @param frame The frame.
+     */
+    void recycle(VideoFrame frame) {
+        synchronized (free) {
+            if (!free.contains(frame)) {
+                free.add(frame);
+            }
+        }
+    }
+
+    /**
+     * Private utility. It returns the timestamp of a frame: the one reported
+     * by ffmpeg for its frame number, or the nominal one if it does not come
+     * in time. Timestamps of earlier frames arriving late are dropped, so
+     * they are never given to the following frames.
+     */
+    private long timestamp(long index) {
+        long deadline = System.currentTimeMillis() + TIMESTAMP_WAIT;
+        while (true) {
+            long[] reported = aheadTimestamp;
+            aheadTimestamp = null;
+            if (reported == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    reported = timestamps.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (reported == null) {
+                    break;
+                }
+            }
+            if (reported[0] == index) {
+                return offset + reported[1];
+            }
+            if (reported[0] > index) {
+                // The timestamp of this frame is missing: kept for its own.
+                aheadTimestamp = reported;
+                break;
+            }
+        }
+        return offset + Math.round(index * frameInterval);
+    }
+
+    /**
+     * Private utility. It waits for the end of the process, once all the
+     * frames have been read, and checks its exit code.
+     */
+    private void finish() throws EncoderException {
+        ended = true;
+        try {
+            int exitCode = ffmpeg.waitFor();
+            if (pump != null) {
+                pump.join();
+                if (pump.getReadFailure() != null) {
+                    throw new EncoderException(pump.getReadFailure());
+                }
+            }
+            if (exitCode != 0 && !closed) {
+                throw new EncoderException("Cannot decode the frames: "
+                        + ffmpeg.getTailMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Decoding cancelled", e);
+        } finally {
+            ffmpeg.destroy();
+        }
+    }
+
+}
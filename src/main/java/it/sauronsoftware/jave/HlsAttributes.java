@@ -0,0 +1,203 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+
+/**
+ * Attributes for an HLS (HTTP Live Streaming) encoding process. The target
+ * file is the playlist; the segments are written next to it. With
+ * {@link StreamVariant}s, the target is the master playlist and every variant
+ * gets its own media playlist, named <em>target_N.m3u8</em>.
+ */
+public class HlsAttributes extends StreamingAttributes {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The segment container: MPEG transport stream.
+     */
+    public static final String SEGMENT_TYPE_MPEGTS = "mpegts";
+
+    /**
+     * The segment container: fragmented MP4 (CMAF), with an initialization
+     * segment.
+     */
+    public static final String SEGMENT_TYPE_FMP4 = "fmp4";
+
+    /**
+     * The playlist type for content available as a whole.
+     */
+    public static final String PLAYLIST_TYPE_VOD = "vod";
+
+    /**
+     * The playlist type for content growing while it is encoded.
+     */
+    public static final String PLAYLIST_TYPE_EVENT = "event";
+
+    /**
+     * The segment container.
+     */
+    private String segmentType = SEGMENT_TYPE_MPEGTS;
+
+    /**
+     * The playlist type. If null no type is declared.
+     */
+    private String playlistType = PLAYLIST_TYPE_VOD;
+
+    /**
+     * The maximum number of segments listed in the playlist, 0 for all.
+     */
+    private int listSize = 0;
+
+    /**
+     * It builds the attributes of an HLS encoding process.
+     */
+    public HlsAttributes() {
+        setFormat("hls");
+    }
+
+    /**
+     * Returns the segment container.
+     *
+     * @return The segment container.
+     */
+    public String getSegmentType() {
+        return segmentType;
+    }
+
+    /**
+     * Sets the segment container.
+     *
+     * @param segmentType {@link HlsAttributes#SEGMENT_TYPE_MPEGTS} or
+     * {@link HlsAttributes#SEGMENT_TYPE_FMP4}.
+     */
+    public void setSegmentType(String segmentType) {
+        this.segmentType = segmentType;
+    }
+
+    /**
+     * Returns the playlist type.
+     *
+     * @return The playlist type, or null.
+     */
+    public String getPlaylistType() {
+        return playlistType;
+    }
+
+    /**
+     * Sets the playlist type.
+     *
+     * @param playlistType {@link HlsAttributes#PLAYLIST_TYPE_VOD},
+     * {@link HlsAttributes#PLAYLIST_TYPE_EVENT} or null.
+     */
+    public void setPlaylistType(String playlistType) {
+        this.playlistType = playlistType;
+    }
+
+    /**
+     * Returns the maximum number of segments listed in the playlist.
+     *
+     * @return The maximum number of segments, 0 for all.
+     */
+    public int getListSize() {
+        return listSize;
+    }
+
+    /**
+     * Sets the maximum number of segments listed in the playlist.
+     *
+     * @param listSize The maximum number of segments, 0 for all.
+     */
+    public void setListSize(int listSize) {
+        this.listSize = listSize;
+    }
+
+    @Override
+    void addMuxerArguments(FFMPEGExecutor ffmpeg, File target, boolean video) {
+        String base = new File(target.getAbsoluteFile().getParentFile(),
+                getBaseName(target)).getAbsolutePath();
+        boolean variants = !getVariants().isEmpty();
+        if (variants) {
+            base += "_%v";
+        }
+        boolean fmp4 = SEGMENT_TYPE_FMP4.equals(segmentType);
+        if (video) {
+            addKeyFrameArguments(ffmpeg);
+        }
+        ffmpeg.addArgument("-hls_time");
+        ffmpeg.addArgument(String.valueOf(getSegmentDuration()));
+        ffmpeg.addArgument("-hls_list_size");
+        ffmpeg.addArgument(String.valueOf(listSize));
+        if (playlistType != null) {
+            ffmpeg.addArgument("-hls_playlist_type");
+            ffmpeg.addArgument(playlistType);
+        }
+        ffmpeg.addArgument("-hls_segment_type");
+        ffmpeg.addArgument(segmentType);
+        if (fmp4) {
+            ffmpeg.addArgument("-hls_fmp4_init_filename");
+            ffmpeg.addArgument(new File(base).getName() + "_init.mp4");
+        }
+        ffmpeg.addArgument("-hls_segment_filename");
+        ffmpeg.addArgument(base + "_%05d" + (fmp4 ? ".m4s" : ".ts"));
+        if (variants) {
+            StringBuilder map = new StringBuilder();
+            int videoStream = 0;
+            int audioStream = 0;
+            for (StreamVariant variant : getVariants()) {
+                if (map.length() > 0) {
+                    map.append(' ');
+                }
+                boolean first = true;
+                if (variant.getVideoAttributes() != null) {
+                    map.append("v:").append(videoStream++);
+                    first = false;
+                }
+                if (variant.getAudioAttributes() != null) {
+                    if (!first) {
+                        map.append(',');
+                    }
+                    map.append("a:").append(audioStream++);
+                }
+            }
+            ffmpeg.addArgument("-var_stream_map");
+            ffmpeg.addArgument(map.toString());
+            ffmpeg.addArgument("-master_pl_name");
+            ffmpeg.addArgument(target.getName());
+        }
+    }
+
+    @Override
+    String getOutputPath(File target) {
+        if (getVariants().isEmpty()) {
+            return super.getOutputPath(target);
+        }
+        return new File(target.getAbsoluteFile().getParentFile(),
+                getBaseName(target) + "_%v.m3u8").getAbsolutePath();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "(segmentType=" + segmentType
+                + ", playlistType=" + playlistType + ", listSize=" + listSize
+                + ")";
+    }
+
+}
@@ -0,0 +1,430 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A package-private, minimal streaming (pull) JSON reader. It reads tokens
+ * one at a time from the underlying reader, without building a document
+ * tree, so that large ffprobe outputs are parsed in constant memory. Numbers
+ * are returned as their textual representation.
+ */
+class JsonReader {
+
+    /**
+     * The token types.
+     */
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING,
+        NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    /**
+     * The underlying reader.
+     */
+    private final Reader in;
+
+    /**
+     * The read buffer.
+     */
+    private final char[] buffer = new char[8192];
+
+    /**
+     * The position of the next char in the buffer.
+     */
+    private int pos = 0;
+
+    /**
+     * The number of valid chars in the buffer.
+     */
+    private int limit = 0;
+
+    /**
+     * Reusable builder for strings and numbers.
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * The stack of the open containers: true for objects, false for arrays.
+     */
+    private boolean[] stack = new boolean[32];
+
+    /**
+     * The number of open containers.
+     */
+    private int depth = 0;
+
+    /**
+     * Whether the next token in the current object must be a name.
+     */
+    private boolean expectName = false;
+
+    /**
+     * Whether a value has already been read in the current container, so a
+     * comma is required before the next one.
+     */
+    private boolean needComma = false;
+
+    /**
+     * The peeked token, or null.
+     */
+    private Token peeked = null;
+
+    /**
+     * The value of the peeked token, for names, strings, numbers and
+     * booleans.
+     */
+    private String peekedValue = null;
+
+    /**
+     * It builds the reader.
+     *
+     * @param in The underlying reader.
+     */
+    JsonReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the type of the next token, without consuming it.
+     *
+     * @return The type of the next token.
+     * @throws IOException If the input cannot be read or is malformed.
+     */
+    Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = readToken();
+        }
+        return peeked;
+    }
+
+    /**
+     * Returns true if the current object or array has more elements.
+     *
+     * @return true if the current object or array has more elements.
+     * @throws IOException If the input cannot be read or is malformed.
+     */
+    boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY
+                && token != Token.END_DOCUMENT;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+    }
+
+    /**
+     * Consumes the next token, which must be a name.
+     *
+     * @return The name.
+     * @throws IOException If the next token is not a name.
+     */
+    String nextName() throws IOException {
+        return expect(Token.NAME);
+    }
+
+    /**
+     * Consumes the next token, which must be a string, a number or a boolean.
+     *
+     * @return The textual value of the token.
+     * @throws IOException If the next token is not a scalar value.
+     */
+    String nextString() throws IOException {
+        Token token = peek();
+        if (token != Token.STRING && token != Token.NUMBER
+                && token != Token.BOOLEAN) {
+            throw new IOException("Expected a scalar value but was " + token);
+        }
+        return consume();
+    }
+
+    /**
+     * Consumes the next value, whatever it is, and returns its textual form if
+     * it is a scalar.
+     *
+     * @return The textual value of a scalar, or null for null values, objects
+     * and arrays.
+     * @throws IOException If the input cannot be read or is malformed.
+     */
+    String nextValue() throws IOException {
+        Token token = peek();
+        if (token == Token.STRING || token == Token.NUMBER
+                || token == Token.BOOLEAN) {
+            return consume();
+        }
+        skipValue();
+        return null;
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays.
+     *
+     * @throws IOException If the input cannot be read or is malformed.
+     */
+    void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            Token token = peek();
+            if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY) {
+                nesting++;
+            } else if (token == Token.END_OBJECT || token == Token.END_ARRAY) {
+                nesting--;
+            } else if (token == Token.END_DOCUMENT) {
+                throw new IOException("Unexpected end of document");
+            }
+            consume();
+        } while (nesting > 0);
+    }
+
+    /**
+     * Private utility. It consumes the next token, checking its type.
+     */
+    private String expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw new IOException("Expected " + expected + " but was " + token);
+        }
+        return consume();
+    }
+
+    /**
+     * Private utility. It consumes the peeked token.
+     */
+    private String consume() {
+        String value = peekedValue;
+        peeked = null;
+        peekedValue = null;
+        return value;
+    }
+
+    /**
+     * Private utility. It reads the next token from the input.
+     */
+    private Token readToken() throws IOException {
+        int c = nextNonWhitespace();
+        if (depth > 0 && (c == '}' || c == ']')) {
+            boolean object = stack[depth - 1];
+            if (c != (object ? '}' : ']')) {
+                throw syntaxError("Mismatched " + (char) c);
+            }
+            depth--;
+            needComma = true;
+            expectName = depth > 0 && stack[depth - 1];
+            return object ? Token.END_OBJECT : Token.END_ARRAY;
+        }
+        if (c == -1) {
+            if (depth > 0) {
+                throw syntaxError("Unterminated document");
+            }
+            return Token.END_DOCUMENT;
+        }
+        if (needComma && depth > 0) {
+            if (c != ',') {
+                throw syntaxError("Expected ','");
+            }
+            c = nextNonWhitespace();
+        }
+        if (expectName) {
+            if (c != '"') {
+                throw syntaxError("Expected a name");
+            }
+            peekedValue = readString();
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            expectName = false;
+            needComma = false;
+            return Token.NAME;
+        }
+        needComma = true;
+        expectName = depth > 0 && stack[depth - 1];
+        switch (c) {
+        case '{':
+            push(true);
+            return Token.BEGIN_OBJECT;
+        case '[':
+            push(false);
+            return Token.BEGIN_ARRAY;
+        case '"':
+            peekedValue = readString();
+            return Token.STRING;
+        default:
+            return readLiteral(c);
+        }
+    }
+
+    /**
+     * Private utility. It opens a container.
+     */
+    private void push(boolean object) {
+        if (depth == stack.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = object;
+        needComma = false;
+        expectName = object;
+    }
+
+    /**
+     * Private utility. It reads a number, a boolean or null, whose first char
+     * has already been consumed.
+     */
+    private Token readLiteral(int first) throws IOException {
+        text.setLength(0);
+        text.append((char) first);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t'
+                    || c == '\n' || c == '\r') {
+                break;
+            }
+            text.append(c);
+            pos++;
+        }
+        String literal = text.toString();
+        if ("true".equals(literal) || "false".equals(literal)) {
+            peekedValue = literal;
+            return Token.BOOLEAN;
+        }
+        if ("null".equals(literal)) {
+            peekedValue = null;
+            return Token.NULL;
+        }
+        char c = literal.charAt(0);
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            peekedValue = literal;
+            return Token.NUMBER;
+        }
+        throw syntaxError("Unexpected literal " + literal);
+    }
+
+    /**
+     * Private utility. It reads a string, whose opening quote has already
+     * been consumed.
+     */
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = buffer[pos++];
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (pos == limit && !fill()) {
+                throw syntaxError("Unterminated escape");
+            }
+            c = buffer[pos++];
+            switch (c) {
+            case 'b':
+                text.append('\b');
+                break;
+            case 'f':
+                text.append('\f');
+                break;
+            case 'n':
+                text.append('\n');
+                break;
+            case 'r':
+                text.append('\r');
+                break;
+            case 't':
+                text.append('\t');
+                break;
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (pos == limit && !fill()) {
+                        throw syntaxError("Unterminated escape");
+                    }
+                    int digit = Character.digit(buffer[pos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("Malformed unicode escape");
+                    }
+                    code = (code << 4) | digit;
+                }
+                text.append((char) code);
+                break;
+            default:
+                text.append(c);
+            }
+        }
+    }
+
+    /**
+     * Private utility. It returns the next non whitespace char, or -1 at the
+     * end of the input.
+     */
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Private utility. It refills the buffer.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+
+}
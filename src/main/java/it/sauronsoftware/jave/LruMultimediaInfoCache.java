@@ -0,0 +1,224 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-heap {@link MultimediaInfoCache} with least recently used eviction.
+ * The number of entries is bounded, and entries can optionally expire after a
+ * time to live. A second level cache (for example a
+ * {@link DiskMultimediaInfoCache}) can be plugged in: it is read on misses
+ * and written through on puts.
+ */
+public class LruMultimediaInfoCache implements MultimediaInfoCache {
+
+    /**
+     * The entries, in access order.
+     */
+    private final LinkedHashMap<Key, CachedInfo> entries;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int maxEntries;
+
+    /**
+     * The time to live of an entry in millis. If less than or equal to 0
+     * entries never expire.
+     */
+    private final long timeToLive;
+
+    /**
+     * The optional second level cache. It can be null.
+     */
+    private final MultimediaInfoCache secondLevel;
+
+    private long hitCount = 0;
+    private long secondLevelHitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * It builds a cache with no time to live and no second level.
+     *
+     * @param maxEntries The maximum number of entries.
+     */
+    public LruMultimediaInfoCache(int maxEntries) {
+        this(maxEntries, 0, null);
+    }
+
+    /**
+     * It builds the cache.
+     *
+     * @param maxEntries The maximum number of entries.
+     * @param timeToLive The time to live of an entry in millis. If less than
+     * or equal to 0 entries never expire.
+     * @param secondLevel An optional second level cache. It can be null.
+     */
+    public LruMultimediaInfoCache(int maxEntries, long timeToLive,
+            MultimediaInfoCache secondLevel) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.secondLevel = secondLevel;
+        this.entries = new LinkedHashMap<Key, CachedInfo>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedInfo> eldest) {
+                if (size() > LruMultimediaInfoCache.this.maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public MultimediaInfo get(Key key) {
+        synchronized (this) {
+            CachedInfo entry = entries.get(key);
+            if (entry != null) {
+                if (timeToLive <= 0
+                        || System.currentTimeMillis() - entry.created < timeToLive) {
+                    hitCount++;
+                    return entry.info;
+                }
+                entries.remove(key);
+                evictionCount++;
+            }
+        }
+        MultimediaInfo info = secondLevel != null ? secondLevel.get(key) : null;
+        synchronized (this) {
+            if (info != null) {
+                secondLevelHitCount++;
+                entries.put(key, new CachedInfo(info));
+            } else {
+                missCount++;
+            }
+        }
+        return info;
+    }
+
+    @Override
+    public void put(Key key, MultimediaInfo info) {
+        synchronized (this) {
+            entries.put(key, new CachedInfo(info));
+        }
+        if (secondLevel != null) {
+            secondLevel.put(key, info);
+        }
+    }
+
+    @Override
+    public void remove(Key key) {
+        synchronized (this) {
+            entries.remove(key);
+        }
+        if (secondLevel != null) {
+            secondLevel.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+        }
+        if (secondLevel != null) {
+            secondLevel.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries currently held in heap.
+     *
+     * @return The number of entries currently held in heap.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups served from the heap.
+     *
+     * @return The number of lookups served from the heap.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups served from the second level cache.
+     *
+     * @return The number of lookups served from the second level cache.
+     */
+    public synchronized long getSecondLevelHitCount() {
+        return secondLevelHitCount;
+    }
+
+    /**
+     * Returns the number of lookups not served by any level.
+     *
+     * @return The number of lookups not served by any level.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of entries evicted from the heap, because of the size
+     * bound or of the time to live.
+     *
+     * @return The number of entries evicted from the heap.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getName() + " (size=" + entries.size() + ", maxEntries="
+                + maxEntries + ", timeToLive=" + timeToLive + ", hits=" + hitCount
+                + ", secondLevelHits=" + secondLevelHitCount + ", misses="
+                + missCount + ", evictions=" + evictionCount + ")";
+    }
+
+    /**
+     * A cached value with its creation time.
+     */
+    private static class CachedInfo {
+
+        private final MultimediaInfo info;
+
+        private final long created;
+
+        CachedInfo(MultimediaInfo info) {
+            this.info = info;
+            this.created = System.currentTimeMillis();
+        }
+
+    }
+
+}
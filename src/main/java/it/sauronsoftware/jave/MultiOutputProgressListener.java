@@ -0,0 +1,38 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * Progress listener of a multi-output encoding process. Besides the
+ * aggregate progress, notified through
+ * {@link EncoderProgressListener#progress(int)}, it receives the progress of
+ * every single output.
+ */
+public interface MultiOutputProgressListener extends EncoderProgressListener {
+
+    /**
+     * This method is called to notify a progress of a single output.
+     *
+     * @param output The index of the output in the list given to the
+     * encoder.
+     * @param permil A permil value representing the progress of the output.
+     */
+    public void outputProgress(int output, int permil);
+
+}
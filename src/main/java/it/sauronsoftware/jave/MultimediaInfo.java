@@ -18,12 +18,19 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Instances of this class report informations about a decoded multimedia file.
  * 
  * @author Carlo Pelliccia
  */
-public class MultimediaInfo {
+public class MultimediaInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The multimedia file format name.
@@ -48,6 +55,24 @@ public class MultimediaInfo {
 	 */
 	private VideoInfo video = null;
 
+	/**
+	 * The overall bit rate of the multimedia file, in bits per second. If less
+	 * than 0 this information is not available.
+	 */
+	private long bitRate = -1;
+
+	/**
+	 * Informations about every stream in the multimedia file. Only available
+	 * if the file has been probed with ffprobe.
+	 */
+	private final ArrayList<StreamInfo> streams = new ArrayList<StreamInfo>();
+
+	/**
+	 * The chapters of the multimedia file. Only available if the file has
+	 * been probed with ffprobe.
+	 */
+	private final ArrayList<ChapterInfo> chapters = new ArrayList<ChapterInfo>();
+
 	/**
 	 * Returns the multimedia file format name.
 	 * 
@@ -128,10 +153,76 @@ public class MultimediaInfo {
 		this.video = video;
 	}
 
+	/**
+	 * Returns the overall bit rate of the multimedia file, in bits per second.
+	 * If less than 0 this information is not available.
+	 * 
+	 * @return The overall bit rate of the multimedia file.
+	 */
+	public long getBitRate() {
+		return bitRate;
+	}
+
+	/**
+	 * Sets the overall bit rate of the multimedia file, in bits per second.
+	 * 
+	 * @param bitRate
+	 *            The overall bit rate of the multimedia file.
+	 */
+	void setBitRate(long bitRate) {
+		this.bitRate = bitRate;
+	}
+
+	/**
+	 * Returns informations about every stream in the multimedia file, in file
+	 * order. Unlike {@link MultimediaInfo#getAudio()} and
+	 * {@link MultimediaInfo#getVideo()}, which describe a single stream, this
+	 * list reports every stream, with details such as pixel format, color
+	 * informations and rotation. It is empty if the file has not been probed
+	 * with ffprobe.
+	 * 
+	 * @return An unmodifiable list of stream informations.
+	 */
+	public List<StreamInfo> getStreams() {
+		return Collections.unmodifiableList(streams);
+	}
+
+	/**
+	 * Adds informations about a stream.
+	 * 
+	 * @param stream
+	 *            Informations about a stream.
+	 */
+	void addStream(StreamInfo stream) {
+		streams.add(stream);
+	}
+
+	/**
+	 * Returns the chapters of the multimedia file. It is empty if the file has
+	 * no chapters, or if it has not been probed with ffprobe.
+	 * 
+	 * @return An unmodifiable list of chapters.
+	 */
+	public List<ChapterInfo> getChapters() {
+		return Collections.unmodifiableList(chapters);
+	}
+
+	/**
+	 * Adds a chapter.
+	 * 
+	 * @param chapter
+	 *            The chapter.
+	 */
+	void addChapter(ChapterInfo chapter) {
+		chapters.add(chapter);
+	}
+
         @Override
 	public String toString() {
 		return getClass().getName() + " (format=" + format + ", duration="
-				+ duration + ", video=" + video + ", audio=" + audio + ")";
+				+ duration + ", bitRate=" + bitRate + ", video=" + video
+				+ ", audio=" + audio + ", streams=" + streams + ", chapters="
+				+ chapters + ")";
 	}
 
 }
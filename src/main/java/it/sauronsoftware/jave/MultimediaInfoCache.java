@@ -0,0 +1,178 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A cache of the informations returned by {@link MultimediaObject#getInfo()}.
+ * Entries are keyed by the canonical path, the length and the last
+ * modification time of the source file, so a modified file is probed again.
+ *
+ * Implementations must be thread-safe.
+ *
+ * @see LruMultimediaInfoCache
+ * @see DiskMultimediaInfoCache
+ */
+public interface MultimediaInfoCache {
+
+    /**
+     * Returns the cached informations for the given key.
+     *
+     * @param key The key.
+     * @return The cached informations, or null if there is no entry for the
+     * key.
+     */
+    public MultimediaInfo get(Key key);
+
+    /**
+     * Stores the informations for the given key.
+     *
+     * @param key The key.
+     * @param info The informations.
+     */
+    public void put(Key key, MultimediaInfo info);
+
+    /**
+     * Removes the entry for the given key, if any.
+     *
+     * @param key The key.
+     */
+    public void remove(Key key);
+
+    /**
+     * Removes every entry.
+     */
+    public void clear();
+
+    /**
+     * The key of a cache entry: the canonical path, the length and the last
+     * modification time of a file.
+     */
+    public static final class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The canonical path of the file.
+         */
+        private final String path;
+
+        /**
+         * The length of the file.
+         */
+        private final long length;
+
+        /**
+         * The last modification time of the file.
+         */
+        private final long lastModified;
+
+        /**
+         * It builds the key.
+         *
+         * @param path The canonical path of the file.
+         * @param length The length of the file.
+         * @param lastModified The last modification time of the file.
+         */
+        public Key(String path, long length, long lastModified) {
+            if (path == null) {
+                throw new IllegalArgumentException("path cannot be null");
+            }
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Builds the key of a file, reading its current length and last
+         * modification time.
+         *
+         * @param file The file.
+         * @return The key of the file, or null if the file does not exist or
+         * is not a regular file.
+         * @throws IOException If the canonical path of the file cannot be
+         * resolved.
+         */
+        public static Key of(File file) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            return new Key(file.getCanonicalPath(), file.length(), file.lastModified());
+        }
+
+        /**
+         * Returns the canonical path of the file.
+         *
+         * @return The canonical path of the file.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the length of the file.
+         *
+         * @return The length of the file.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the last modification time of the file.
+         *
+         * @return The last modification time of the file.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return length == other.length && lastModified == other.lastModified
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + " (path=" + path + ", length=" + length
+                    + ", lastModified=" + lastModified + ")";
+        }
+
+    }
+
+}
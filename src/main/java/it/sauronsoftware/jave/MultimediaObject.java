@@ -2,7 +2,10 @@ package it.sauronsoftware.jave;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,14 +41,51 @@ public class MultimediaObject {
      */
     private static final Pattern CHANNELS_PATTERN = Pattern.compile(
         "(mono|stereo)", Pattern.CASE_INSENSITIVE);
+    /**
+     * This regexp is used to parse the ffmpeg output about the format of the
+     * input file.
+     */
+    private static final Pattern INPUT_PATTERN = Pattern.compile(
+        "^\\s*Input #0, (\\w+).+$\\s*", Pattern.CASE_INSENSITIVE);
+    /**
+     * This regexp is used to parse the ffmpeg output about the duration of the
+     * input file.
+     */
+    private static final Pattern DURATION_PATTERN = Pattern.compile(
+        "^\\s*Duration: (\\d\\d):(\\d\\d):(\\d\\d)\\.(\\d\\d).*$",
+        Pattern.CASE_INSENSITIVE);
+    /**
+     * This regexp is used to parse the ffmpeg output about a stream of the
+     * input file.
+     */
+    private static final Pattern STREAM_PATTERN = Pattern.compile(
+        "^\\s*Stream #\\S+: ((?:Audio)|(?:Video)|(?:Data)): (.*)\\s*$",
+        Pattern.CASE_INSENSITIVE);
 
     /**
      * The locator of the ffmpeg executable used by this extractor.
      */
     private final FFMPEGLocator locator;
 
+    /**
+     * The cache shared by the objects with no cache of their own.
+     */
+    private static volatile MultimediaInfoCache defaultInfoCache =
+        new LruMultimediaInfoCache(1024);
+
     private File inputFile;
 
+    /**
+     * The streaming source, if the object is not backed by a file. It is
+     * consumed by the first encoding process.
+     */
+    private ReadableByteChannel inputChannel = null;
+
+    /**
+     * The cache of the informations about the input file. If null the shared
+     * default cache is used.
+     */
+    private MultimediaInfoCache infoCache = null;
 
     /**
      * It builds an extractor using a {@link DefaultFFMPEGLocator} instance to
@@ -53,7 +93,7 @@ public class MultimediaObject {
      * @param input Input file for creating MultimediaObject
      */
     public MultimediaObject(File input) {
-        this.locator = new DefaultFFMPEGLocator();
+        this.locator = DefaultFFMPEGLocator.getInstance();
         this.inputFile = input;
 
     }
@@ -77,20 +117,187 @@ public class MultimediaObject {
         this.inputFile = input;
     }
 
+    /**
+     * It builds an object reading from a stream, using a
+     * {@link DefaultFFMPEGLocator} instance to locate the ffmpeg executable to
+     * use. The stream is fed to ffmpeg through its standard input
+     * (<em>pipe:0</em>) and can be encoded only once. Since ffmpeg cannot
+     * seek in the stream, the format must be readable sequentially (for
+     * example, MP4 files need the index at the beginning), and no
+     * informations are available before the encoding process.
+     * @param input The source stream. It is closed at the end of the encoding
+     * process.
+     */
+    public MultimediaObject(InputStream input) {
+        this(Channels.newChannel(input));
+    }
+
+    /**
+     * It builds an object reading from a stream, with a custom
+     * {@link FFMPEGLocator}. See {@link MultimediaObject#MultimediaObject(InputStream)}.
+     * @param input The source stream. It is closed at the end of the encoding
+     * process.
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * extractor.
+     */
+    public MultimediaObject(InputStream input, FFMPEGLocator locator) {
+        this(Channels.newChannel(input), locator);
+    }
+
+    /**
+     * It builds an object reading from a channel, using a
+     * {@link DefaultFFMPEGLocator} instance to locate the ffmpeg executable to
+     * use. See {@link MultimediaObject#MultimediaObject(InputStream)}.
+     * @param input The source channel. It is closed at the end of the
+     * encoding process.
+     */
+    public MultimediaObject(ReadableByteChannel input) {
+        this(input, DefaultFFMPEGLocator.getInstance());
+    }
+
+    /**
+     * It builds an object reading from a channel, with a custom
+     * {@link FFMPEGLocator}. See {@link MultimediaObject#MultimediaObject(InputStream)}.
+     * @param input The source channel. It is closed at the end of the
+     * encoding process.
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * extractor.
+     */
+    public MultimediaObject(ReadableByteChannel input, FFMPEGLocator locator) {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null");
+        }
+        this.locator = locator;
+        this.inputChannel = input;
+    }
+
+    /**
+     * Returns true if the object reads from a stream rather than from a file.
+     * @return true if the object reads from a stream.
+     */
+    public boolean isStream() {
+        return inputFile == null && inputChannel != null;
+    }
+
+    /**
+     * Returns the streaming source, which can be read only once.
+     * @return The streaming source.
+     * @throws EncoderException If the source has already been consumed.
+     */
+    synchronized ReadableByteChannel takeChannel() throws EncoderException {
+        ReadableByteChannel channel = inputChannel;
+        if (channel == null || !channel.isOpen()) {
+            throw new EncoderException("The source stream has already been consumed");
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the ffmpeg input argument of this object: the path of the file,
+     * or the standard input for a streaming source.
+     * @return The ffmpeg input argument.
+     */
+    String getInputArgument() {
+        return isStream() ? "pipe:0" : inputFile.getAbsolutePath();
+    }
+
+    /**
+     * Returns the cache shared by the objects with no cache of their own. By
+     * default it is a {@link LruMultimediaInfoCache} holding up to 1024
+     * entries.
+     * @return The shared cache, or null if the shared cache is disabled.
+     */
+    public static MultimediaInfoCache getDefaultInfoCache() {
+        return defaultInfoCache;
+    }
+
+    /**
+     * Sets the cache shared by the objects with no cache of their own.
+     * @param cache The shared cache. If null the shared cache is disabled, and
+     * every {@link MultimediaObject#getInfo()} call probes the file.
+     */
+    public static void setDefaultInfoCache(MultimediaInfoCache cache) {
+        defaultInfoCache = cache;
+    }
+
+    /**
+     * Returns the cache used by this object.
+     * @return The cache used by this object, or null if there is none.
+     */
+    public MultimediaInfoCache getInfoCache() {
+        return infoCache != null ? infoCache : defaultInfoCache;
+    }
+
+    /**
+     * Sets the cache used by this object.
+     * @param infoCache The cache used by this object. If null the shared
+     * default cache is used.
+     */
+    public void setInfoCache(MultimediaInfoCache infoCache) {
+        this.infoCache = infoCache;
+    }
+
     /**
      * Returns a set informations about a multimedia file, if its format is
-     * supported for decoding.
+     * supported for decoding. Informations are cached (see
+     * {@link MultimediaObject#getInfoCache()}) by file path, length and last
+     * modification time, so repeated calls on an unmodified file do not call
+     * ffmpeg again.
      * @return A set of informations about the file and its contents.
      * @throws InputFormatException If the format of the source file cannot be
      * recognized and decoded.
      * @throws EncoderException If a problem occurs calling the underlying
-     * ffmpeg executable.
+     * ffmpeg executable, or if the object reads from a stream.
      */
     public MultimediaInfo getInfo() throws InputFormatException,
         EncoderException {
-        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        if (isStream()) {
+            throw new EncoderException(
+                "Informations are not available for a streaming source");
+        }
+        MultimediaInfoCache cache = getInfoCache();
+        MultimediaInfoCache.Key key = null;
+        if (cache != null) {
+            try {
+                key = MultimediaInfoCache.Key.of(inputFile);
+            } catch (IOException e) {
+                key = null;
+            }
+            if (key != null) {
+                MultimediaInfo cached = cache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        MultimediaInfo info = probeInfo();
+        if (key != null) {
+            cache.put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Private utility. It gets informations about the file with ffprobe, if
+     * available, and falls back to parsing the ffmpeg output otherwise.
+     * @return A set of informations about the file and its contents.
+     * @throws InputFormatException If the format of the source file cannot be
+     * recognized and decoded.
+     * @throws EncoderException If a problem occurs calling the underlying
+     * ffmpeg executable.
+     */
+    private MultimediaInfo probeInfo() throws InputFormatException,
+        EncoderException {
+        MultimediaInfo probed = FFProbeEngine.probe(locator, inputFile);
+        if (probed != null) {
+            return probed;
+        }
+        FFMPEGExecutor ffmpeg = locator.createShortExecutor();
         ffmpeg.addArgument("-i");
         ffmpeg.addArgument(inputFile.getAbsolutePath());
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setSchedule(FFMPEGScheduler.PROBE_WEIGHT,
+            FFMPEGScheduler.Priority.INTERACTIVE, null);
         try {
             ffmpeg.execute();
         } catch (IOException e) {
@@ -106,8 +313,8 @@ public class MultimediaObject {
     }
 
     /**
-     * Private utility. It parses the ffmpeg output, extracting informations
-     * about a source multimedia file.
+     * It parses the ffmpeg output, extracting informations about a source
+     * multimedia file. It is package-private for the benchmarks.
      * @param source The source multimedia file.
      * @param reader The ffmpeg output channel.
      * @return A set of informations about the source multimedia file and its
@@ -117,19 +324,8 @@ public class MultimediaObject {
      * @throws EncoderException If a problem occurs calling the underlying
      * ffmpeg executable.
      */
-    private MultimediaInfo parseMultimediaInfo(File source, RBufferedReader reader)
+    MultimediaInfo parseMultimediaInfo(File source, RBufferedReader reader)
         throws InputFormatException, EncoderException {
-        Pattern p1 = Pattern.compile("^\\s*Input #0, (\\w+).+$\\s*",
-            Pattern.CASE_INSENSITIVE);
-        Pattern p2 = Pattern.compile(
-            "^\\s*Duration: (\\d\\d):(\\d\\d):(\\d\\d)\\.(\\d\\d).*$",
-            Pattern.CASE_INSENSITIVE);
-        Pattern p3 = Pattern.compile(
-            "^\\s*Stream #\\S+: ((?:Audio)|(?:Video)|(?:Data)): (.*)\\s*$",
-            Pattern.CASE_INSENSITIVE);
-        Pattern p4 = Pattern.compile(
-            "^\\s*Metadata:",
-            Pattern.CASE_INSENSITIVE);
         MultimediaInfo info = null;
         try {
             int step = 0;
@@ -144,7 +340,7 @@ public class MultimediaObject {
                         String message = line.substring(token.length());
                         throw new InputFormatException(message);
                     }
-                    Matcher m = p1.matcher(line);
+                    Matcher m = INPUT_PATTERN.matcher(line);
                     if (m.matches()) {
                         String format = m.group(1);
                         info = new MultimediaInfo();
@@ -152,7 +348,7 @@ public class MultimediaObject {
                         step++;
                     }
                 } else if (step == 1) {
-                    Matcher m = p2.matcher(line);
+                    Matcher m = DURATION_PATTERN.matcher(line);
                     if (m.matches()) {
                         long hours = Integer.parseInt(m.group(1));
                         long minutes = Integer.parseInt(m.group(2));
@@ -167,8 +363,7 @@ public class MultimediaObject {
                         // step = 3;
                     }
                 } else if (step == 2) {
-                    Matcher m = p3.matcher(line);
-                    Matcher m4 = p4.matcher(line);
+                    Matcher m = STREAM_PATTERN.matcher(line);
                     if (m.matches()) {
                         String type = m.group(1);
                         String specs = m.group(2);
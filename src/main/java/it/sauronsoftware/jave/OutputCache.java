@@ -0,0 +1,543 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A content-addressed cache of encoded outputs, wrapped around an
+ * {@link Encoder}, so that encoding again the same source with the same
+ * attributes costs a file system operation instead of a whole encoding
+ * process.
+ *
+ * Entries are keyed by a digest of the source content (see
+ * {@link OutputCache#setSamplingThreshold(long)}) and of a canonical form of
+ * the attributes affecting the output, including the identity of the ffmpeg
+ * executable, so that upgrading or replacing it never hits the outputs of the
+ * previous one; scheduling attributes, such as the priority, the tenant and
+ * the timeouts, are not part of the key. Entries are stored as files in a
+ * directory, whose total size is bounded by evicting the least recently used
+ * entries.
+ *
+ * On a hit the entry is materialized into the target as a hard link, or as
+ * a copy if the target is on another file system or if hard links are
+ * disabled. A hard linked target shares its content with the entry: it must
+ * not be modified in place.
+ *
+ * Stream sources and streaming attributes are not cached, and are encoded
+ * directly.
+ */
+public class OutputCache {
+
+    /**
+     * The version of the key format, changed when the key computation
+     * changes so that old entries are never hit.
+     */
+    private static final String KEY_VERSION = "2";
+
+    /**
+     * The prefix of the temporary files in the cache directory.
+     */
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    /**
+     * The number of chunks hashed when sampling a source.
+     */
+    private static final int SAMPLES = 16;
+
+    /**
+     * The size of the chunks hashed when sampling a source.
+     */
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+
+    /**
+     * The encoder used on misses.
+     */
+    private final Encoder encoder;
+
+    /**
+     * The directory holding the entries.
+     */
+    private final File directory;
+
+    /**
+     * The maximum total size of the entries, in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The entries and their size, from the least recently used. Guarded by
+     * this.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+
+    /**
+     * The total size of the entries. Guarded by this.
+     */
+    private long size = 0;
+
+    /**
+     * The source size above which the content is sampled instead of being
+     * hashed whole. If 0 sources are always hashed whole.
+     */
+    private volatile long samplingThreshold = 0;
+
+    /**
+     * Whether entries are materialized as hard links.
+     */
+    private volatile boolean hardLinks = true;
+
+    /**
+     * The number of hits.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of misses.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of evicted entries.
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * It builds the cache. The directory is created if it does not exist;
+     * otherwise the entries it holds are loaded, ordered by their last use.
+     *
+     * @param encoder The encoder used on misses.
+     * @param directory The directory holding the entries.
+     * @param maxSize The maximum total size of the entries, in bytes.
+     * @throws IOException If the directory cannot be created.
+     */
+    public OutputCache(Encoder encoder, File directory, long maxSize)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory "
+                    + directory.getAbsolutePath());
+        }
+        this.encoder = encoder;
+        this.directory = directory.getAbsoluteFile();
+        this.maxSize = maxSize;
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(lastModified[a], lastModified[b]);
+                }
+            });
+            for (Integer i : order) {
+                File file = files[i];
+                if (file.getName().startsWith(TEMP_PREFIX)) {
+                    // Left by an encoding process interrupted by a crash.
+                    file.delete();
+                } else if (file.isFile()) {
+                    entries.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Returns the directory holding the entries.
+     *
+     * @return The directory holding the entries.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum total size of the entries, in bytes.
+     *
+     * @return The maximum total size of the entries.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the total size of the entries, in bytes.
+     *
+     * @return The total size of the entries.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the source size above which the content is sampled instead of
+     * being hashed whole.
+     *
+     * @return The sampling threshold, in bytes, or 0 if sources are always
+     * hashed whole.
+     */
+    public long getSamplingThreshold() {
+        return samplingThreshold;
+    }
+
+    /**
+     * Sets the source size above which the content is sampled instead of
+     * being hashed whole: the key of a large source is then computed from its
+     * length and 16 evenly spaced chunks of 1 MB, so it costs the same for
+     * any size. Sources differing only between the chunks would share their
+     * entries, so sampling is meant for sources that are never edited in
+     * place. Changing the threshold changes the keys of the sources above
+     * it. Default is 0, that is sources are always hashed whole.
+     *
+     * @param samplingThreshold The sampling threshold, in bytes, or 0 to
+     * always hash sources whole.
+     */
+    public void setSamplingThreshold(long samplingThreshold) {
+        this.samplingThreshold = samplingThreshold;
+    }
+
+    /**
+     * Returns true if entries are materialized as hard links.
+     *
+     * @return true if entries are materialized as hard links.
+     */
+    public boolean isHardLinks() {
+        return hardLinks;
+    }
+
+    /**
+     * Sets whether entries are materialized as hard links, when the target is
+     * on the same file system as the cache, or always copied. Default is
+     * true.
+     *
+     * @param hardLinks true to materialize entries as hard links.
+     */
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * Returns the number of hits.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of misses.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of evicted entries.
+     *
+     * @return The number of evicted entries.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Re-encode a multimedia file, unless an identical encoding is cached.
+     * See {@link Encoder#encode(MultimediaObject, File, EncodingAttributes)}.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null. It is not notified on hits.
+     * @return The encoding outcome. On hits, the source informations are not
+     * available.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process, or if the cache cannot be read or written.
+     */
+    public EncodeResult encode(MultimediaObject multimediaObject, File target,
+            EncodingAttributes attributes, EncoderProgressListener listener)
+            throws IllegalArgumentException, InputFormatException,
+            EncoderException {
+        if (multimediaObject.isStream()
+                || attributes instanceof StreamingAttributes) {
+            return encoder.encode(new EncodeJob(), multimediaObject, target,
+                    attributes, listener, null);
+        }
+        long startTime = System.currentTimeMillis();
+        target = target.getAbsoluteFile();
+        String name;
+        try {
+            name = entryName(multimediaObject.getFile(), target, attributes);
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        }
+        File entry = new File(directory, name);
+        if (lookup(name)) {
+            try {
+                materialize(entry, target);
+                hitCount.incrementAndGet();
+                return new EncodeResult(target, null, null,
+                        System.currentTimeMillis() - startTime);
+            } catch (IOException e) {
+                // Evicted meanwhile: encoded again below.
+            }
+        }
+        missCount.incrementAndGet();
+        File temp = new File(directory, TEMP_PREFIX + System.nanoTime() + "-"
+                + name);
+        try {
+            EncodeResult result = encoder.encode(new EncodeJob(),
+                    multimediaObject, temp, attributes, listener, null);
+            try {
+                // Materialized first, so that an output larger than the
+                // whole cache can be evicted right away.
+                materialize(temp, target);
+                store(temp, entry);
+            } catch (IOException e) {
+                throw new EncoderException(e);
+            }
+            return new EncodeResult(target, result.getSourceInfo(),
+                    result.getRemuxPlan(), result.getElapsedTime());
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        for (String name : entries.keySet()) {
+            new File(directory, name).delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Private utility. It looks up an entry, marking it as recently used.
+     *
+     * @return true if the entry exists.
+     */
+    private synchronized boolean lookup(String name) {
+        if (entries.get(name) == null) {
+            return false;
+        }
+        // The last use survives restarts.
+        new File(directory, name).setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Private utility. It moves an encoded output into the cache, evicting
+     * the least recently used entries if needed.
+     */
+    private synchronized void store(File temp, File entry) throws IOException {
+        try {
+            Files.move(temp.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        // A concurrent miss of the same key may have stored it already.
+        Long previous = entries.put(entry.getName(), entry.length());
+        if (previous != null) {
+            size -= previous.longValue();
+        }
+        size += entry.length();
+        evict();
+    }
+
+    /**
+     * Private utility. It evicts the least recently used entries, until the
+     * total size is within the maximum. Materialized hard links are not
+     * affected.
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue().longValue();
+            iterator.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Private utility. It materializes an entry (or an output about to be
+     * stored) into the target, as a hard link if possible or as a copy,
+     * replacing the target atomically.
+     */
+    private void materialize(File entry, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory "
+                    + parent.getAbsolutePath());
+        }
+        File temp = new File(parent, TEMP_PREFIX + System.nanoTime() + "-"
+                + target.getName());
+        try {
+            boolean linked = false;
+            if (hardLinks) {
+                try {
+                    Files.createLink(temp.toPath(), entry.toPath());
+                    linked = true;
+                } catch (UnsupportedOperationException e) {
+                    ; // Copied below.
+                } catch (IOException e) {
+                    if (!entry.isFile()) {
+                        throw e;
+                    }
+                    // Another file system: copied below.
+                }
+            }
+            if (!linked) {
+                Files.copy(entry.toPath(), temp.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Private utility. It returns the name of the entry of an encoding: the
+     * digest of the source content and of the canonical attributes, with the
+     * extension of the target.
+     */
+    private String entryName(File source, File target,
+            EncodingAttributes attributes) throws IOException {
+        MessageDigest digest = ContentHasher.newDigest();
+        long threshold = samplingThreshold;
+        if (threshold > 0 && source.length() > threshold) {
+            ContentHasher.updateSampled(digest, source, SAMPLES, SAMPLE_SIZE);
+        } else {
+            ContentHasher.update(digest, source);
+        }
+        String extension = "";
+        String targetName = target.getName();
+        int dot = targetName.lastIndexOf('.');
+        if (dot >= 0) {
+            extension = targetName.substring(dot).toLowerCase(Locale.ROOT);
+        }
+        String canonical = canonical(attributes, extension);
+        digest.update(canonical.getBytes(Charset.forName("UTF-8")));
+        return ContentHasher.hex(digest.digest()) + extension;
+    }
+
+    /**
+     * Private utility. It returns the canonical form of the attributes
+     * affecting the output of an encoding process.
+     */
+    private String canonical(EncodingAttributes attributes, String extension) {
+        StringBuilder canonical = new StringBuilder(256);
+        canonical.append("version=").append(KEY_VERSION);
+        String executable = encoder.getLocator().getFFMPEGExecutablePath();
+        canonical.append("\nffmpeg=").append(executable);
+        File ffmpeg = new File(executable);
+        if (ffmpeg.isFile()) {
+            // A replaced binary at the same path changes size or time.
+            canonical.append("\nffmpeg.size=").append(ffmpeg.length());
+            canonical.append("\nffmpeg.modified=").append(ffmpeg.lastModified());
+        }
+        canonical.append("\nformat=").append(attributes.getFormat());
+        if (attributes.getFormat() == null) {
+            // The format is guessed from the extension.
+            canonical.append("\nextension=").append(extension);
+        }
+        canonical.append("\noffset=").append(attributes.getOffset());
+        canonical.append("\nduration=").append(attributes.getDuration());
+        canonical.append("\nautoStreamCopy=").append(encoder.isAutoStreamCopy());
+        VideoAttributes video = attributes.getVideoAttributes();
+        if (video != null) {
+            canonical.append("\nvideo.codec=").append(video.getCodec());
+            canonical.append("\nvideo.tag=").append(video.getTag());
+            canonical.append("\nvideo.bitRate=").append(video.getBitRate());
+            canonical.append("\nvideo.frameRate=").append(video.getFrameRate());
+            VideoSize videoSize = video.getSize();
+            canonical.append("\nvideo.size=");
+            if (videoSize != null) {
+                canonical.append(videoSize.getWidth()).append('x')
+                        .append(videoSize.getHeight());
+            }
+            canonical.append("\nvideo.faststart=").append(video.isFaststart());
+            VideoAttributes.X264_PROFILE profile = video.getX264Profile();
+            canonical.append("\nvideo.profile=").append(
+                    profile != null ? profile.getModeName() : null);
+            for (VideoFilter filter : video.getVideoFilters()) {
+                canonical.append("\nvideo.filter=").append(filter.getExpression());
+            }
+        }
+        AudioAttributes audio = attributes.getAudioAttributes();
+        if (audio != null) {
+            canonical.append("\naudio.codec=").append(audio.getCodec());
+            canonical.append("\naudio.bitRate=").append(audio.getBitRate());
+            canonical.append("\naudio.samplingRate=").append(audio.getSamplingRate());
+            canonical.append("\naudio.channels=").append(audio.getChannels());
+            canonical.append("\naudio.volume=").append(audio.getVolume());
+        }
+        return canonical.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (directory=" + directory
+                + ", maxSize=" + maxSize + ")";
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * The registry of the running ffmpeg processes.
+ *
+ * Every process started by JAVE is registered here until it is destroyed.
+ * Registration is lock-free, and a single JVM shutdown hook, installed on
+ * first use, kills the processes still running when the JVM exits. On JDK 9+
+ * the descendants of a process (for instance the children of a wrapper
+ * script) are killed too.
+ *
+ * The registry also lets operations list the running processes and kill
+ * them. A killed process makes its encoding fail with an
+ * {@link EncoderException}.
+ */
+public class ProcessRegistry {
+
+    /**
+     * The Process.toHandle(), Process.pid(), ProcessHandle.descendants(),
+     * ProcessHandle.destroy() and ProcessHandle.destroyForcibly() methods, or
+     * null if the runtime has no process handles.
+     */
+    private static final Method[] HANDLE_METHODS = lookupHandle();
+
+    /**
+     * The running processes, by id.
+     */
+    private static final ConcurrentMap<Long, RunningProcess> processes =
+            new ConcurrentHashMap<Long, RunningProcess>();
+
+    /**
+     * The id of the next registered process.
+     */
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Whether the shutdown hook has been installed.
+     */
+    private static final AtomicBoolean hooked = new AtomicBoolean(false);
+
+    private ProcessRegistry() {
+    }
+
+    /**
+     * A running ffmpeg process.
+     */
+    public static class RunningProcess {
+
+        /**
+         * The registry id.
+         */
+        private final long id;
+
+        /**
+         * The process.
+         */
+        private final Process process;
+
+        /**
+         * The command line.
+         */
+        private final List<String> command;
+
+        /**
+         * The tenant key. It can be null.
+         */
+        private final String tenant;
+
+        /**
+         * The registration time.
+         */
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * Private constructor, used by {@link ProcessRegistry}.
+         */
+        private RunningProcess(long id, Process process, List<String> command,
+                String tenant) {
+            this.id = id;
+            this.process = process;
+            this.command = Collections.unmodifiableList(
+                    new ArrayList<String>(command));
+            this.tenant = tenant;
+        }
+
+        /**
+         * Returns the registry id of the process, unique in the JVM.
+         *
+         * @return The registry id of the process.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the operating system id of the process.
+         *
+         * @return The operating system id of the process, or -1 if it is not
+         * available (JDK 8).
+         */
+        public long getPid() {
+            if (HANDLE_METHODS != null) {
+                try {
+                    return ((Long) HANDLE_METHODS[1].invoke(process)).longValue();
+                } catch (Exception e) {
+                    ; // Silent ignore
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the command line of the process.
+         *
+         * @return The command line of the process.
+         */
+        public List<String> getCommand() {
+            return command;
+        }
+
+        /**
+         * Returns the tenant key of the encoding.
+         *
+         * @return The tenant key of the encoding, or null.
+         */
+        public String getTenant() {
+            return tenant;
+        }
+
+        /**
+         * Returns the time the process has been started, in millis.
+         *
+         * @return The time the process has been started.
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Returns true if the process is still running.
+         *
+         * @return true if the process is still running.
+         */
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * Kills the process and its descendants, and removes it from the
+         * registry.
+         */
+        public void kill() {
+            destroy(true);
+            unregister(this);
+        }
+
+        /**
+         * Destroys the descendants of the process and then the process.
+         * The descendants are collected first: once the process is dead they
+         * are reparented and cannot be found anymore.
+         *
+         * @param forcibly Whether to kill forcibly (SIGKILL) rather than
+         * terminate (SIGTERM).
+         */
+        void destroy(boolean forcibly) {
+            for (Object handle : descendants()) {
+                try {
+                    HANDLE_METHODS[forcibly ? 4 : 3].invoke(handle);
+                } catch (Exception e) {
+                    ; // Silent ignore
+                }
+            }
+            if (forcibly) {
+                process.destroyForcibly();
+            } else {
+                process.destroy();
+            }
+        }
+
+        /**
+         * Private utility. It returns the handles of the descendants of the
+         * process.
+         *
+         * @return The handles, empty if they are not available.
+         */
+        private List<Object> descendants() {
+            List<Object> list = new ArrayList<Object>();
+            if (HANDLE_METHODS != null) {
+                try {
+                    Object handle = HANDLE_METHODS[0].invoke(process);
+                    Stream<?> stream = (Stream<?>) HANDLE_METHODS[2].invoke(handle);
+                    for (Iterator<?> i = stream.iterator(); i.hasNext();) {
+                        list.add(i.next());
+                    }
+                } catch (Exception e) {
+                    ; // Silent ignore
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + " (id=" + id + ", pid=" + getPid()
+                    + ", tenant=" + tenant + ", command=" + command + ")";
+        }
+
+    }
+
+    /**
+     * Returns the running processes, oldest first.
+     *
+     * @return The running processes.
+     */
+    public static List<RunningProcess> list() {
+        List<RunningProcess> list = new ArrayList<RunningProcess>(processes.values());
+        Collections.sort(list, new Comparator<RunningProcess>() {
+            public int compare(RunningProcess a, RunningProcess b) {
+                return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Kills a running process and its descendants.
+     *
+     * @param id The registry id of the process.
+     * @return true if the process was running.
+     */
+    public static boolean kill(long id) {
+        RunningProcess running = processes.get(Long.valueOf(id));
+        if (running == null) {
+            return false;
+        }
+        running.kill();
+        return true;
+    }
+
+    /**
+     * Kills all the running processes of a tenant.
+     *
+     * @param tenant The tenant key, or null to kill every running process.
+     * @return The number of killed processes.
+     */
+    public static int killAll(String tenant) {
+        int count = 0;
+        for (RunningProcess running : processes.values()) {
+            if (tenant == null || tenant.equals(running.tenant)) {
+                running.kill();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Registers a started process.
+     *
+     * @param process The process.
+     * @param command The command line of the process.
+     * @param tenant The tenant key. It can be null.
+     * @return The registration.
+     */
+    static RunningProcess register(Process process, List<String> command,
+            String tenant) {
+        if (!hooked.get() && hooked.compareAndSet(false, true)) {
+            Thread hook = new Thread("jave-shutdown") {
+                public void run() {
+                    for (RunningProcess running : processes.values()) {
+                        running.destroy(false);
+                    }
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+        RunningProcess running = new RunningProcess(nextId.getAndIncrement(),
+                process, command, tenant);
+        processes.put(Long.valueOf(running.id), running);
+        return running;
+    }
+
+    /**
+     * Removes a process from the registry.
+     *
+     * @param running The registration.
+     */
+    static void unregister(RunningProcess running) {
+        processes.remove(Long.valueOf(running.id), running);
+    }
+
+    /**
+     * Private utility. It looks up the process handle methods.
+     *
+     * @return The methods, or null if they are not available.
+     */
+    private static Method[] lookupHandle() {
+        try {
+            Class<?> handle = Class.forName("java.lang.ProcessHandle");
+            return new Method[] {
+                Process.class.getMethod("toHandle"),
+                Process.class.getMethod("pid"),
+                handle.getMethod("descendants"),
+                handle.getMethod("destroy"),
+                handle.getMethod("destroyForcibly")
+            };
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+}
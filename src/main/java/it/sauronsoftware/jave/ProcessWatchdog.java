@@ -0,0 +1,256 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A package-private watchdog enforcing the timeouts of the ffmpeg processes.
+ * A single daemon thread checks every watched process periodically. When a
+ * process exceeds its wall-clock timeout, or makes no progress for its stall
+ * timeout, the watchdog releases its scheduler slot and escalates:
+ * <ol>
+ * <li>it asks ffmpeg to quit, sending <em>q</em> on its standard input, so
+ * the output is finalized;</li>
+ * <li>after a grace period, it terminates the process (SIGTERM);</li>
+ * <li>after another grace period, it kills the process forcibly.</li>
+ * </ol>
+ */
+class ProcessWatchdog {
+
+    /**
+     * The interval between two checks, in millis.
+     */
+    private static final long PERIOD = 250;
+
+    /**
+     * The time given to the process at every escalation step, in millis.
+     */
+    private static final long GRACE = 2000;
+
+    /**
+     * The watched processes.
+     */
+    private static final Set<Watch> watches = ConcurrentHashMap.<Watch>newKeySet();
+
+    /**
+     * The checking thread, started on first use.
+     */
+    private static ScheduledExecutorService timer = null;
+
+    private ProcessWatchdog() {
+    }
+
+    /**
+     * Starts watching a process.
+     *
+     * @param ffmpeg The started process.
+     * @param timeout The wall-clock timeout in millis, or 0 for none.
+     * @param stallTimeout The maximum time without progress in millis, or 0
+     * for none.
+     * @return The watch, or null if there is neither a timeout nor a stall
+     * timeout.
+     */
+    static Watch watch(FFMPEGExecutor ffmpeg, long timeout, long stallTimeout) {
+        if (timeout <= 0 && stallTimeout <= 0) {
+            return null;
+        }
+        Watch watch = new Watch(ffmpeg, timeout, stallTimeout);
+        watches.add(watch);
+        startTimer();
+        return watch;
+    }
+
+    /**
+     * Private utility. It starts the checking thread, if needed.
+     */
+    private static synchronized void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "jave-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Watch watch : watches) {
+                    try {
+                        watch.check(now);
+                    } catch (RuntimeException e) {
+                        // Never let the checking thread die.
+                        watches.remove(watch);
+                    }
+                }
+            }
+        }, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The watch of a single process.
+     */
+    static class Watch {
+
+        /**
+         * The watched process.
+         */
+        private final FFMPEGExecutor ffmpeg;
+
+        /**
+         * The start time of the watch.
+         */
+        private final long startTime;
+
+        /**
+         * The wall-clock timeout in millis, or 0.
+         */
+        private final long timeout;
+
+        /**
+         * The stall timeout in millis, or 0.
+         */
+        private final long stallTimeout;
+
+        /**
+         * The time of the last progress.
+         */
+        private volatile long lastProgressTime;
+
+        /**
+         * The furthest position reported so far.
+         */
+        private volatile long lastPosition = -1;
+
+        /**
+         * The escalation step: 0 while the process is healthy, then 1 (quit
+         * requested), 2 (terminated) and 3 (killed).
+         */
+        private volatile int step = 0;
+
+        /**
+         * The time of the last escalation step.
+         */
+        private long stepTime;
+
+        /**
+         * The time the process expired.
+         */
+        private volatile long expiredTime;
+
+        /**
+         * Whether the process stalled, rather than exceeding its timeout.
+         */
+        private volatile boolean stalled = false;
+
+        private Watch(FFMPEGExecutor ffmpeg, long timeout, long stallTimeout) {
+            this.ffmpeg = ffmpeg;
+            this.timeout = timeout;
+            this.stallTimeout = stallTimeout;
+            this.startTime = System.currentTimeMillis();
+            this.lastProgressTime = startTime;
+        }
+
+        /**
+         * Reports the position reached by the process. Only a position beyond
+         * the previous ones counts as a progress.
+         *
+         * @param position The position reached, in any increasing unit.
+         */
+        void progress(long position) {
+            if (position > lastPosition) {
+                lastPosition = position;
+                lastProgressTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Stops watching the process. It must be called when the process
+         * ends.
+         */
+        void cancel() {
+            watches.remove(this);
+        }
+
+        /**
+         * Returns true if the watchdog has stopped the process.
+         *
+         * @return true if the watchdog has stopped the process.
+         */
+        boolean isExpired() {
+            return step > 0;
+        }
+
+        /**
+         * Returns the exception reporting the expiration.
+         *
+         * @return The exception reporting the expiration.
+         */
+        EncoderTimeoutException toException() {
+            long elapsed = expiredTime - startTime;
+            String message = stalled
+                    ? "ffmpeg made no progress for " + stallTimeout + " ms"
+                    : "ffmpeg exceeded its timeout of " + timeout + " ms";
+            return new EncoderTimeoutException(message, stalled, elapsed);
+        }
+
+        /**
+         * Private utility. It checks the process, escalating if needed.
+         */
+        private synchronized void check(long now) {
+            if (step == 0) {
+                boolean timedOut = timeout > 0 && now - startTime >= timeout;
+                boolean stall = stallTimeout > 0
+                        && now - lastProgressTime >= stallTimeout;
+                if (timedOut || stall) {
+                    stalled = !timedOut;
+                    expiredTime = now;
+                    stepTime = now;
+                    ffmpeg.releaseSlot();
+                    if (ffmpeg.requestQuit()) {
+                        step = 1;
+                    } else {
+                        step = 2;
+                        ffmpeg.terminate();
+                    }
+                }
+            } else if (now - stepTime >= GRACE) {
+                if (step == 1) {
+                    step = 2;
+                    stepTime = now;
+                    ffmpeg.terminate();
+                } else if (step == 2) {
+                    step = 3;
+                    ffmpeg.kill();
+                    watches.remove(this);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A package-private reader of the ffmpeg machine-readable progress channel.
+ * It runs on its own thread, parses the channel with a
+ * {@link ProgressParser} and notifies, at a throttled rate, a
+ * {@link ProgressSnapshotListener} and an {@link EncoderProgressListener}.
+ */
+class ProgressChannel implements Runnable, ProgressSnapshotListener {
+
+    /**
+     * The channel stream.
+     */
+    private final InputStream in;
+
+    /**
+     * The channel parser.
+     */
+    private final ProgressParser parser = new ProgressParser(new ProgressSnapshot());
+
+    /**
+     * The snapshot listener. It can be null.
+     */
+    private final ProgressSnapshotListener snapshotListener;
+
+    /**
+     * The permil listener. It can be null.
+     */
+    private final EncoderProgressListener listener;
+
+    /**
+     * The expected output duration in millis, used to compute the permil
+     * progress.
+     */
+    private final long duration;
+
+    /**
+     * The minimum interval between two notifications, in millis.
+     */
+    private final long interval;
+
+    /**
+     * The time of the last notification.
+     */
+    private long lastNotification = 0;
+
+    /**
+     * The watch of the process, fed with every progress. It can be null.
+     */
+    private ProcessWatchdog.Watch watch = null;
+
+    /**
+     * The reading thread.
+     */
+    private Thread thread = null;
+
+    /**
+     * It builds the channel reader.
+     *
+     * @param in The channel stream. It can be null if the channel is fed with
+     * {@link ProgressChannel#line(CharSequence)}.
+     * @param snapshotListener The snapshot listener. It can be null.
+     * @param listener The permil listener. It can be null.
+     * @param duration The expected output duration in millis.
+     * @param interval The minimum interval between two notifications, in
+     * millis.
+     */
+    ProgressChannel(InputStream in, ProgressSnapshotListener snapshotListener,
+            EncoderProgressListener listener, long duration, long interval) {
+        this.in = in;
+        this.snapshotListener = snapshotListener;
+        this.listener = listener;
+        this.duration = duration;
+        this.interval = interval;
+    }
+
+    /**
+     * Sets the watch of the process, fed with every progress before
+     * throttling.
+     *
+     * @param watch The watch. It can be null.
+     */
+    void setWatch(ProcessWatchdog.Watch watch) {
+        this.watch = watch;
+    }
+
+    /**
+     * Starts reading the channel on a new thread, virtual where available.
+     */
+    void start() {
+        thread = VirtualThreads.start(this, "jave-progress");
+    }
+
+    /**
+     * Waits for the channel to be completely read.
+     *
+     * @param timeout The maximum time to wait, in millis.
+     */
+    void join(long timeout) {
+        if (thread != null) {
+            try {
+                thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Parses a single line of the channel, for channels mixed with other
+     * output (<em>-progress pipe:2</em>) and read line by line by the caller,
+     * instead of being read on a thread of their own.
+     *
+     * @param line The line.
+     */
+    void line(CharSequence line) {
+        if (parser.parseLine(line)) {
+            progress(parser.getSnapshot());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            parser.parse(in, this);
+        } catch (IOException e) {
+            // The stream has been closed: the process is over.
+        }
+    }
+
+    @Override
+    public void progress(ProgressSnapshot snapshot) {
+        if (watch != null) {
+            watch.progress(snapshot.getOutTimeMicros());
+        }
+        long now = System.currentTimeMillis();
+        if (!snapshot.isEnd() && now - lastNotification < interval) {
+            return;
+        }
+        lastNotification = now;
+        if (snapshotListener != null) {
+            snapshotListener.progress(snapshot);
+        }
+        if (listener != null && duration > 0 && snapshot.getOutTimeMicros() >= 0) {
+            int perm = (int) Math.round(snapshot.getOutTimeMicros() / (double) duration);
+            if (perm > 1000 || snapshot.isEnd()) {
+                perm = 1000;
+            }
+            listener.progress(perm);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A package-private parser of the ffmpeg machine-readable progress channel
+ * (<em>-progress</em>). The channel is a sequence of key=value lines,
+ * grouped in blocks ending with a <em>progress=continue</em> or
+ * <em>progress=end</em> line. The parser works on reusable buffers and
+ * updates a single {@link ProgressSnapshot}, so it does not allocate while
+ * parsing.
+ */
+class ProgressParser {
+
+    /**
+     * The maximum line length. Longer lines are truncated.
+     */
+    private static final int MAX_LINE = 256;
+
+    /**
+     * The snapshot updated by the parser.
+     */
+    private final ProgressSnapshot snapshot;
+
+    /**
+     * The buffer used when reading from a stream.
+     */
+    private final byte[] readBuffer = new byte[4096];
+
+    /**
+     * The current line.
+     */
+    private final char[] line = new char[MAX_LINE];
+
+    /**
+     * The length of the current line.
+     */
+    private int length = 0;
+
+    /**
+     * It builds the parser.
+     *
+     * @param snapshot The snapshot updated by the parser.
+     */
+    ProgressParser(ProgressSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Returns the snapshot updated by the parser.
+     *
+     * @return The snapshot updated by the parser.
+     */
+    ProgressSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Reads the whole stream, notifying the given listener at the end of each
+     * block.
+     *
+     * @param in The stream, usually the ffmpeg standard output.
+     * @param listener The listener notified at the end of each block.
+     * @throws IOException If the stream cannot be read.
+     */
+    void parse(InputStream in, ProgressSnapshotListener listener) throws IOException {
+        int read;
+        while ((read = in.read(readBuffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = (char) (readBuffer[i] & 0xff);
+                if (c == '\n') {
+                    if (processLine()) {
+                        listener.progress(snapshot);
+                    }
+                } else if (c != '\r' && length < MAX_LINE) {
+                    line[length++] = c;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single line, for channels read line by line.
+     *
+     * @param text The line.
+     * @return true if the line ends a block.
+     */
+    boolean parseLine(CharSequence text) {
+        length = Math.min(text.length(), MAX_LINE);
+        for (int i = 0; i < length; i++) {
+            line[i] = text.charAt(i);
+        }
+        return processLine();
+    }
+
+    /**
+     * Private utility. It parses the current line and clears it.
+     *
+     * @return true if the line ends a block.
+     */
+    private boolean processLine() {
+        int end = length;
+        length = 0;
+        int eq = -1;
+        for (int i = 0; i < end; i++) {
+            if (line[i] == '=') {
+                eq = i;
+                break;
+            }
+        }
+        if (eq <= 0) {
+            return false;
+        }
+        int from = eq + 1;
+        if (keyIs("progress", eq)) {
+            snapshot.setEnd(matches("end", from, end));
+            return true;
+        } else if (keyIs("frame", eq)) {
+            snapshot.setFrame(parseLong(from, end));
+        } else if (keyIs("fps", eq)) {
+            snapshot.setFps((float) parseDecimal(from, end));
+        } else if (keyIs("bitrate", eq)) {
+            snapshot.setBitRate((float) parseDecimal(from, end));
+        } else if (keyIs("total_size", eq)) {
+            snapshot.setTotalSize(parseLong(from, end));
+        } else if (keyIs("out_time_us", eq) || keyIs("out_time_ms", eq)) {
+            // Despite its name, out_time_ms is in microseconds too.
+            long micros = parseLong(from, end);
+            if (micros >= 0) {
+                snapshot.setOutTimeMicros(micros);
+            }
+        } else if (keyIs("dup_frames", eq)) {
+            snapshot.setDupFrames(parseLong(from, end));
+        } else if (keyIs("drop_frames", eq)) {
+            snapshot.setDropFrames(parseLong(from, end));
+        } else if (keyIs("speed", eq)) {
+            snapshot.setSpeed((float) parseDecimal(from, end));
+        }
+        return false;
+    }
+
+    /**
+     * Private utility. It checks the key of the current line.
+     */
+    private boolean keyIs(String key, int keyLength) {
+        return keyLength == key.length() && matches(key, 0, keyLength);
+    }
+
+    /**
+     * Private utility. It checks whether the given range of the current line
+     * starts with the given text.
+     */
+    private boolean matches(String text, int from, int end) {
+        if (end - from < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (line[from + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Private utility. It parses an integer value, ignoring any trailing
+     * unit.
+     *
+     * @return The value, or -1 if it is not available.
+     */
+    private long parseLong(int from, int end) {
+        int i = skipSpaces(from, end);
+        boolean negative = i < end && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Private utility. It parses a decimal value, ignoring any trailing unit
+     * (such as "x" or "kbits/s").
+     *
+     * @return The value, or -1 if it is not available.
+     */
+    private double parseDecimal(int from, int end) {
+        int i = skipSpaces(from, end);
+        boolean negative = i < end && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        double value = 0;
+        double scale = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c == '.' && scale == 0) {
+                scale = 1;
+            } else if (c >= '0' && c <= '9') {
+                if (scale == 0) {
+                    value = value * 10 + (c - '0');
+                } else {
+                    scale /= 10;
+                    value += (c - '0') * scale;
+                }
+                digits++;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        return negative ? -value : value;
+    }
+
+    private int skipSpaces(int from, int end) {
+        while (from < end && line[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * A typed report of the state of an ongoing encoding process, as printed by
+ * ffmpeg on its machine-readable progress channel. Values not reported by
+ * ffmpeg (N/A) are less than 0.
+ *
+ * To avoid garbage, the same instance is updated and passed to the
+ * {@link ProgressSnapshotListener} for the whole encoding process: listeners
+ * retaining a snapshot beyond the notification must {@link #copy()} it.
+ */
+public class ProgressSnapshot {
+
+    private long frame = -1;
+    private float fps = -1;
+    private float bitRate = -1;
+    private long totalSize = -1;
+    private long outTimeMicros = -1;
+    private long dupFrames = -1;
+    private long dropFrames = -1;
+    private float speed = -1;
+    private boolean end = false;
+
+    /**
+     * Returns the number of frames encoded so far.
+     *
+     * @return The number of frames encoded so far.
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    void setFrame(long frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Returns the current encoding speed in frames per second.
+     *
+     * @return The current encoding speed in frames per second.
+     */
+    public float getFps() {
+        return fps;
+    }
+
+    void setFps(float fps) {
+        this.fps = fps;
+    }
+
+    /**
+     * Returns the current output bit rate in kbits per second.
+     *
+     * @return The current output bit rate in kbits per second.
+     */
+    public float getBitRate() {
+        return bitRate;
+    }
+
+    void setBitRate(float bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return The number of bytes written so far.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * Returns the output timestamp reached so far, in microseconds.
+     *
+     * @return The output timestamp reached so far, in microseconds.
+     */
+    public long getOutTimeMicros() {
+        return outTimeMicros;
+    }
+
+    void setOutTimeMicros(long outTimeMicros) {
+        this.outTimeMicros = outTimeMicros;
+    }
+
+    /**
+     * Returns the number of frames duplicated so far to keep the frame rate.
+     *
+     * @return The number of duplicated frames.
+     */
+    public long getDupFrames() {
+        return dupFrames;
+    }
+
+    void setDupFrames(long dupFrames) {
+        this.dupFrames = dupFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped so far to keep the frame rate.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDropFrames() {
+        return dropFrames;
+    }
+
+    void setDropFrames(long dropFrames) {
+        this.dropFrames = dropFrames;
+    }
+
+    /**
+     * Returns the encoding speed relative to real time (2 means twice as fast
+     * as playback).
+     *
+     * @return The encoding speed relative to real time.
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Returns true if this is the last snapshot of the encoding process.
+     *
+     * @return true if this is the last snapshot.
+     */
+    public boolean isEnd() {
+        return end;
+    }
+
+    void setEnd(boolean end) {
+        this.end = end;
+    }
+
+    /**
+     * Returns a copy of this snapshot, which can be retained after the
+     * notification.
+     *
+     * @return A copy of this snapshot.
+     */
+    public ProgressSnapshot copy() {
+        ProgressSnapshot copy = new ProgressSnapshot();
+        copy.frame = frame;
+        copy.fps = fps;
+        copy.bitRate = bitRate;
+        copy.totalSize = totalSize;
+        copy.outTimeMicros = outTimeMicros;
+        copy.dupFrames = dupFrames;
+        copy.dropFrames = dropFrames;
+        copy.speed = speed;
+        copy.end = end;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (frame=" + frame + ", fps=" + fps
+                + ", bitRate=" + bitRate + ", totalSize=" + totalSize
+                + ", outTimeMicros=" + outTimeMicros + ", dupFrames=" + dupFrames
+                + ", dropFrames=" + dropFrames + ", speed=" + speed + ", end="
+                + end + ")";
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * Listener of the machine-readable progress channel of an encoding process.
+ * Notifications are throttled (see {@link Encoder#setProgressInterval(long)}),
+ * except the last one, and are sent from a thread reading the ffmpeg output,
+ * not from the thread calling the encoder.
+ */
+public interface ProgressSnapshotListener {
+
+    /**
+     * This method is called to notify a progress in the encoding process.
+     *
+     * @param snapshot The current state of the encoding process. The same
+     *            instance is updated between notifications: use
+     *            {@link ProgressSnapshot#copy()} to retain it.
+     */
+    public void progress(ProgressSnapshot snapshot);
+
+}
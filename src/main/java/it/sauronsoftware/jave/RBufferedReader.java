@@ -18,25 +18,59 @@
  */
 package it.sauronsoftware.jave;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 
 /**
- * A package-private utility extending java.io.BufferedReader. If a line read
- * with {@link RBufferedReader#readLine()} is not useful for the calling code,
- * it can be re-inserted in the stream. The same line will be returned again at
+ * A package-private line reader. If a line read with
+ * {@link RBufferedReader#readLine()} is not useful for the calling code, it
+ * can be re-inserted in the stream. The same line will be returned again at
  * the next readLine() call.
  * 
+ * Lines can also be read as a {@link CharSequence} view over a reusable
+ * buffer ({@link RBufferedReader#readLineView()}), so that the calling code
+ * can inspect them without allocating, and only materialize the ones it
+ * keeps as strings.
+ * 
  * @author Carlo Pelliccia
  */
-class RBufferedReader extends BufferedReader {
+class RBufferedReader extends Reader {
+
+	/**
+	 * The underlying reader.
+	 */
+	private final Reader in;
+
+	/**
+	 * The read buffer.
+	 */
+	private final char[] buffer = new char[8192];
+
+	/**
+	 * The position of the next unread char in the read buffer.
+	 */
+	private int position = 0;
+
+	/**
+	 * The number of chars in the read buffer.
+	 */
+	private int limit = 0;
+
+	/**
+	 * Whether a '\n' following a '\r' must be skipped.
+	 */
+	private boolean skipLF = false;
+
+	/**
+	 * The view of the current line.
+	 */
+	private final LineView line = new LineView();
 
 	/**
 	 * Re-inserted lines buffer.
 	 */
-	private final ArrayList<String> lines = new ArrayList<String>();
+	private final ArrayDeque<String> lines = new ArrayDeque<String>();
 
 	/**
 	 * It builds the reader.
@@ -44,24 +78,65 @@ class RBufferedReader extends BufferedReader {
 	 * @param in
 	 *            The underlying reader.
 	 */
-	public RBufferedReader(Reader in) 
-        {
-		super(in);
+	public RBufferedReader(Reader in) {
+		this.in = in;
 	}
 
 	/**
 	 * It returns the next line in the stream.
+	 * 
+	 * @return The next line, or null at the end of the stream.
+	 * @throws IOException
+	 *             If the stream cannot be read.
+	 */
+	public String readLine() throws IOException {
+		CharSequence view = readLineView();
+		return view != null ? view.toString() : null;
+	}
+
+	/**
+	 * It returns the next line in the stream, as a view valid until the next
+	 * read. Use toString() to retain it.
+	 * 
+	 * @return The next line, or null at the end of the stream.
+	 * @throws IOException
+	 *             If the stream cannot be read.
 	 */
-        @Override
-	public String readLine() throws IOException 
-        {
-		if (lines.size() > 0) 
-                {
-			return lines.remove(0);
+	public CharSequence readLineView() throws IOException {
+		if (!lines.isEmpty()) {
+			return lines.pollFirst();
 		}
-                else 
-                {
-			return super.readLine();
+		line.length = 0;
+		boolean read = false;
+		while (true) {
+			if (position >= limit) {
+				int n = in.read(buffer, 0, buffer.length);
+				if (n < 0) {
+					return read ? line : null;
+				}
+				position = 0;
+				limit = n;
+				continue;
+			}
+			if (skipLF) {
+				skipLF = false;
+				if (buffer[position] == '\n') {
+					position++;
+					continue;
+				}
+			}
+			read = true;
+			int i = position;
+			while (i < limit && buffer[i] != '\n' && buffer[i] != '\r') {
+				i++;
+			}
+			line.append(buffer, position, i - position);
+			if (i < limit) {
+				skipLF = buffer[i] == '\r';
+				position = i + 1;
+				return line;
+			}
+			position = limit;
 		}
 	}
 
@@ -73,7 +148,121 @@ class RBufferedReader extends BufferedReader {
 	 *            The line.
 	 */
 	public void reinsertLine(String line) {
-		lines.add(0, line);
+		lines.addFirst(line);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (position >= limit) {
+			return in.read(cbuf, off, len);
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, cbuf, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Checks whether a line starts with the given prefix, without allocating.
+	 * 
+	 * @param line
+	 *            The line.
+	 * @param prefix
+	 *            The prefix.
+	 * @return true if the line starts with the prefix.
+	 */
+	static boolean startsWith(CharSequence line, String prefix) {
+		int length = prefix.length();
+		if (line.length() < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks for a text in a line, without allocating.
+	 * 
+	 * @param line
+	 *            The line.
+	 * @param text
+	 *            The text.
+	 * @return The index of the first occurrence of the text, or -1.
+	 */
+	static int indexOf(CharSequence line, String text) {
+		int last = line.length() - text.length();
+		for (int i = 0; i <= last; i++) {
+			int j = 0;
+			while (j < text.length() && line.charAt(i + j) == text.charAt(j)) {
+				j++;
+			}
+			if (j == text.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A reusable view of the current line.
+	 */
+	private static class LineView implements CharSequence {
+
+		/**
+		 * The chars of the line.
+		 */
+		private char[] chars = new char[256];
+
+		/**
+		 * The length of the line.
+		 */
+		private int length = 0;
+
+		/**
+		 * Appends chars to the line.
+		 */
+		void append(char[] source, int offset, int count) {
+			if (length + count > chars.length) {
+				char[] grown = new char[Math.max(chars.length * 2, length + count)];
+				System.arraycopy(chars, 0, grown, 0, length);
+				chars = grown;
+			}
+			System.arraycopy(source, offset, chars, length, count);
+			length += count;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return chars[index];
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException(start + ", " + end);
+			}
+			return new String(chars, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(chars, 0, length);
+		}
+
 	}
 
 }
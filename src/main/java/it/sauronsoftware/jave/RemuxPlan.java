@@ -0,0 +1,154 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+/**
+ * The decision taken by a {@link RemuxPlanner} about the streams of an
+ * encoding process: every stream is either copied as it is (<em>-c
+ * copy</em>) or re-encoded, with the reason of the choice.
+ */
+public class RemuxPlan {
+
+    /**
+     * Whether the video stream is copied.
+     */
+    private final boolean videoCopy;
+
+    /**
+     * The reason of the video decision, or null if no video is encoded.
+     */
+    private final String videoReason;
+
+    /**
+     * Whether the audio stream is copied.
+     */
+    private final boolean audioCopy;
+
+    /**
+     * The reason of the audio decision, or null if no audio is encoded.
+     */
+    private final String audioReason;
+
+    /**
+     * It builds the plan.
+     *
+     * @param videoCopy Whether the video stream is copied.
+     * @param videoReason The reason of the video decision, or null if no
+     * video is encoded.
+     * @param audioCopy Whether the audio stream is copied.
+     * @param audioReason The reason of the audio decision, or null if no
+     * audio is encoded.
+     */
+    RemuxPlan(boolean videoCopy, String videoReason, boolean audioCopy,
+            String audioReason) {
+        this.videoCopy = videoCopy;
+        this.videoReason = videoReason;
+        this.audioCopy = audioCopy;
+        this.audioReason = audioReason;
+    }
+
+    /**
+     * Returns true if the video stream is copied without re-encoding.
+     *
+     * @return true if the video stream is copied without re-encoding.
+     */
+    public boolean isVideoCopy() {
+        return videoCopy;
+    }
+
+    /**
+     * Returns the reason of the video decision.
+     *
+     * @return The reason of the video decision, or null if no video is
+     * encoded.
+     */
+    public String getVideoReason() {
+        return videoReason;
+    }
+
+    /**
+     * Returns true if the audio stream is copied without re-encoding.
+     *
+     * @return true if the audio stream is copied without re-encoding.
+     */
+    public boolean isAudioCopy() {
+        return audioCopy;
+    }
+
+    /**
+     * Returns the reason of the audio decision.
+     *
+     * @return The reason of the audio decision, or null if no audio is
+     * encoded.
+     */
+    public String getAudioReason() {
+        return audioReason;
+    }
+
+    /**
+     * Returns true if every encoded stream is copied, that is the process is
+     * a pure container change.
+     *
+     * @return true if the process is a pure remux.
+     */
+    public boolean isRemux() {
+        return (videoReason != null || audioReason != null)
+                && (videoReason == null || videoCopy)
+                && (audioReason == null || audioCopy);
+    }
+
+    /**
+     * Returns the attributes actually used for the encoding process: the
+     * given ones, with the copied streams switched to
+     * {@link VideoAttributes#DIRECT_STREAM_COPY} and stripped of the options
+     * not applicable to a copy.
+     *
+     * @param attributes The requested attributes.
+     * @return The attributes to use. They are the given ones if no stream is
+     * copied.
+     */
+    EncodingAttributes apply(EncodingAttributes attributes) {
+        if (!videoCopy && !audioCopy) {
+            return attributes;
+        }
+        EncodingAttributes applied = attributes.copy();
+        if (videoCopy) {
+            VideoAttributes requested = attributes.getVideoAttributes();
+            VideoAttributes video = new VideoAttributes();
+            video.setCodec(VideoAttributes.DIRECT_STREAM_COPY);
+            video.setTag(requested.getTag());
+            video.setFaststart(requested.isFaststart());
+            applied.setVideoAttributes(video);
+        }
+        if (audioCopy) {
+            AudioAttributes audio = new AudioAttributes();
+            audio.setCodec(AudioAttributes.DIRECT_STREAM_COPY);
+            applied.setAudioAttributes(audio);
+        }
+        return applied;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (videoCopy=" + videoCopy
+                + ", videoReason=" + videoReason + ", audioCopy=" + audioCopy
+                + ", audioReason=" + audioReason + ")";
+    }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * It decides which streams of an encoding process can be copied as they are
+ * (<em>-c copy</em>) instead of being re-encoded, comparing the probed source
+ * with the requested attributes. A stream is copied when the output would be
+ * equivalent: same codec, no filter, same size, frame rate, sampling rate
+ * and channels, a source bit rate within the requested one, and a target
+ * container able to hold the codec. Remuxing only rewrites the container,
+ * which is orders of magnitude faster than re-encoding.
+ *
+ * See {@link Encoder#setAutoStreamCopy(boolean)} to apply the plan
+ * automatically.
+ */
+public class RemuxPlanner {
+
+    /**
+     * The tolerance on the requested bit rate: a source stream up to this
+     * much above the requested bit rate is considered within budget.
+     */
+    private static final double BIT_RATE_TOLERANCE = 0.05;
+
+    /**
+     * The tolerance on the frame rate, since probes report rounded values.
+     */
+    private static final float FRAME_RATE_TOLERANCE = 0.01f;
+
+    /**
+     * The codec produced by the known encoders, for the encoders whose name
+     * differs from the codec name.
+     */
+    private static final Map<String, String> ENCODED_CODECS = new HashMap<String, String>();
+
+    /**
+     * The codecs accepted by the known muxers. Muxers not in the map are not
+     * known, and no stream is copied into them.
+     */
+    private static final Map<String, Set<String>> MUXER_CODECS = new HashMap<String, Set<String>>();
+
+    /**
+     * The muxers accepting any codec.
+     */
+    private static final Set<String> ANY_CODEC_MUXERS = new HashSet<String>(
+            Arrays.asList("matroska", "nut"));
+
+    /**
+     * The muxers guessed by ffmpeg from the extension of the target file.
+     */
+    private static final Map<String, String> EXTENSION_MUXERS = new HashMap<String, String>();
+
+    static {
+        encoded("h264", "libx264", "libx264rgb", "libopenh264", "h264_nvenc",
+                "h264_qsv", "h264_vaapi", "h264_videotoolbox", "h264_amf");
+        encoded("hevc", "libx265", "hevc_nvenc", "hevc_qsv", "hevc_vaapi",
+                "hevc_videotoolbox", "hevc_amf");
+        encoded("vp8", "libvpx");
+        encoded("vp9", "libvpx-vp9", "vp9_qsv", "vp9_vaapi");
+        encoded("av1", "libaom-av1", "libsvtav1", "librav1e", "av1_nvenc",
+                "av1_qsv");
+        encoded("mpeg4", "libxvid");
+        encoded("theora", "libtheora");
+        encoded("aac", "libfdk_aac", "libvo_aacenc", "aac_at");
+        encoded("mp3", "libmp3lame", "libshine");
+        encoded("opus", "libopus");
+        encoded("vorbis", "libvorbis");
+        muxer(new String[] { "mp4", "mov", "ipod", "3gp" }, "h264", "hevc",
+                "av1", "vp9", "mpeg4", "mjpeg", "aac", "mp3", "ac3", "eac3",
+                "alac", "opus", "flac");
+        muxer(new String[] { "webm" }, "vp8", "vp9", "av1", "opus", "vorbis");
+        muxer(new String[] { "flv" }, "h264", "aac", "mp3");
+        muxer(new String[] { "mpegts" }, "h264", "hevc", "mpeg2video",
+                "mpeg1video", "aac", "mp3", "mp2", "ac3", "eac3", "opus");
+        muxer(new String[] { "ogg" }, "theora", "vorbis", "opus", "flac");
+        muxer(new String[] { "mp3" }, "mp3");
+        muxer(new String[] { "adts" }, "aac");
+        muxer(new String[] { "flac" }, "flac");
+        String[][] extensions = { { "mp4", "mp4" }, { "m4v", "mp4" },
+                { "m4a", "ipod" }, { "mov", "mov" }, { "3gp", "3gp" },
+                { "mkv", "matroska" }, { "mka", "matroska" },
+                { "webm", "webm" }, { "flv", "flv" }, { "ts", "mpegts" },
+                { "ogg", "ogg" }, { "oga", "ogg" }, { "ogv", "ogg" },
+                { "opus", "ogg" }, { "mp3", "mp3" }, { "aac", "adts" },
+                { "flac", "flac" }, { "nut", "nut" } };
+        for (String[] extension : extensions) {
+            EXTENSION_MUXERS.put(extension[0], extension[1]);
+        }
+    }
+
+    /**
+     * Private utility. It registers the encoders of a codec.
+     */
+    private static void encoded(String codec, String... encoders) {
+        for (String encoder : encoders) {
+            ENCODED_CODECS.put(encoder, codec);
+        }
+    }
+
+    /**
+     * Private utility. It registers the codecs accepted by some muxers.
+     */
+    private static void muxer(String[] muxers, String... codecs) {
+        Set<String> set = new HashSet<String>(Arrays.asList(codecs));
+        for (String muxer : muxers) {
+            MUXER_CODECS.put(muxer, set);
+        }
+    }
+
+    /**
+     * It cannot be instantiated.
+     */
+    private RemuxPlanner() {
+    }
+
+    /**
+     * Plans an encoding process, deciding which streams can be copied.
+     *
+     * @param info The probed source.
+     * @param attributes The requested attributes.
+     * @param target The target file, used to guess the container when the
+     * attributes have no format. It can be null.
+     * @return The plan. Use {@link Encoder#setAutoStreamCopy(boolean)} to
+     * have the encoder apply it.
+     */
+    public static RemuxPlan plan(MultimediaInfo info,
+            EncodingAttributes attributes, File target) {
+        String muxer = attributes.getFormat();
+        if (muxer == null && target != null) {
+            String name = target.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0) {
+                muxer = EXTENSION_MUXERS.get(name.substring(dot + 1)
+                        .toLowerCase(Locale.ROOT));
+            }
+        }
+        if (muxer != null) {
+            muxer = muxer.toLowerCase(Locale.ROOT);
+        }
+        String videoReason = null;
+        boolean videoCopy = false;
+        VideoAttributes video = attributes.getVideoAttributes();
+        if (video != null) {
+            videoReason = planVideo(info.getVideo(), video, attributes, muxer);
+            videoCopy = videoReason.startsWith("copy");
+        }
+        String audioReason = null;
+        boolean audioCopy = false;
+        AudioAttributes audio = attributes.getAudioAttributes();
+        if (audio != null) {
+            audioReason = planAudio(info.getAudio(), audio, muxer);
+            audioCopy = audioReason.startsWith("copy");
+        }
+        return new RemuxPlan(videoCopy, videoReason, audioCopy, audioReason);
+    }
+
+    /**
+     * Private utility. It plans the video stream.
+     *
+     * @return The reason of the decision, starting with "copy" if the stream
+     * can be copied.
+     */
+    private static String planVideo(VideoInfo source, VideoAttributes video,
+            EncodingAttributes attributes, String muxer) {
+        String requested = video.getCodec();
+        if (VideoAttributes.DIRECT_STREAM_COPY.equals(requested)) {
+            return "copy: requested";
+        }
+        if (source == null) {
+            return "encode: no source video";
+        }
+        String codec = sourceCodec(source.getDecoder());
+        if (requested == null || !codec.equals(encodedCodec(requested))) {
+            return "encode: " + codec + " to " + requested;
+        }
+        if (!video.getVideoFilters().isEmpty()) {
+            return "encode: filters";
+        }
+        if (attributes.getOffset() != null) {
+            return "encode: the offset needs a frame-accurate cut";
+        }
+        VideoAttributes.X264_PROFILE profile = video.getX264Profile();
+        if (profile != null && source.getDecoder().toLowerCase(Locale.ROOT)
+                .indexOf(profile.getModeName() + ")") < 0) {
+            return "encode: profile " + profile.getModeName();
+        }
+        VideoSize size = video.getSize();
+        VideoSize sourceSize = source.getSize();
+        if (size != null && (sourceSize == null
+                || size.getWidth() != sourceSize.getWidth()
+                || size.getHeight() != sourceSize.getHeight())) {
+            return "encode: size " + sourceSize + " to " + size;
+        }
+        Integer frameRate = video.getFrameRate();
+        if (frameRate != null && Math.abs(source.getFrameRate()
+                - frameRate.intValue()) > FRAME_RATE_TOLERANCE) {
+            return "encode: frame rate " + source.getFrameRate() + " to "
+                    + frameRate;
+        }
+        String reason = checkBitRate(source.getBitRate(), video.getBitRate());
+        if (reason != null) {
+            return reason;
+        }
+        return checkMuxer(codec, muxer);
+    }
+
+    /**
+     * Private utility. It plans the audio stream.
+     *
+     * @return The reason of the decision, starting with "copy" if the stream
+     * can be copied.
+     */
+    private static String planAudio(AudioInfo source, AudioAttributes audio,
+            String muxer) {
+        String requested = audio.getCodec();
+        if (AudioAttributes.DIRECT_STREAM_COPY.equals(requested)) {
+            return "copy: requested";
+        }
+        if (source == null) {
+            return "encode: no source audio";
+        }
+        String codec = sourceCodec(source.getDecoder());
+        if (requested == null || !codec.equals(encodedCodec(requested))) {
+            return "encode: " + codec + " to " + requested;
+        }
+        Integer volume = audio.getVolume();
+        if (volume != null && volume.intValue() != 256) {
+            return "encode: volume";
+        }
+        Integer channels = audio.getChannels();
+        if (channels != null && channels.intValue() != source.getChannels()) {
+            return "encode: channels " + source.getChannels() + " to "
+                    + channels;
+        }
+        Integer samplingRate = audio.getSamplingRate();
+        if (samplingRate != null
+                && samplingRate.intValue() != source.getSamplingRate()) {
+            return "encode: sampling rate " + source.getSamplingRate()
+                    + " to " + samplingRate;
+        }
+        String reason = checkBitRate(source.getBitRate(), audio.getBitRate());
+        if (reason != null) {
+            return reason;
+        }
+        return checkMuxer(codec, muxer);
+    }
+
+    /**
+     * Private utility. It checks the source bit rate against the requested
+     * one: copying never exceeds the requested budget.
+     *
+     * @param source The source bit rate, in kb/s, or less than 0 if unknown.
+     * @param requested The requested bit rate, in b/s. It can be null.
+     * @return The reason to re-encode, or null if the bit rate allows a copy.
+     */
+    private static String checkBitRate(int source, Integer requested) {
+        if (requested == null) {
+            return null;
+        }
+        if (source < 0) {
+            return "encode: unknown source bit rate";
+        }
+        if (source * 1000d > requested.intValue() * (1 + BIT_RATE_TOLERANCE)) {
+            return "encode: bit rate " + source * 1000 + " to " + requested;
+        }
+        return null;
+    }
+
+    /**
+     * Private utility. It checks that the target container can hold a codec.
+     *
+     * @return The reason of the decision, starting with "copy" if the stream
+     * can be copied.
+     */
+    private static String checkMuxer(String codec, String muxer) {
+        if (muxer == null) {
+            return "encode: unknown container";
+        }
+        if (!ANY_CODEC_MUXERS.contains(muxer)) {
+            Set<String> codecs = MUXER_CODECS.get(muxer);
+            if (codecs == null) {
+                return "encode: unknown container " + muxer;
+            }
+            if (!codecs.contains(codec)) {
+                return "encode: " + codec + " not supported by " + muxer;
+            }
+        }
+        return "copy: " + codec + " already matches";
+    }
+
+    /**
+     * Private utility. It extracts the codec name from a decoder description,
+     * such as "h264 (High) (avc1 / 0x31637661)".
+     */
+    private static String sourceCodec(String decoder) {
+        if (decoder == null) {
+            return "";
+        }
+        String codec = decoder.trim();
+        for (int i = 0; i < codec.length(); i++) {
+            char c = codec.charAt(i);
+            if (c == ' ' || c == '(') {
+                codec = codec.substring(0, i);
+                break;
+            }
+        }
+        return codec.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Private utility. It returns the codec produced by an encoder.
+     */
+    private static String encodedCodec(String encoder) {
+        String codec = ENCODED_CODECS.get(encoder);
+        return codec != null ? codec : encoder;
+    }
+
+}
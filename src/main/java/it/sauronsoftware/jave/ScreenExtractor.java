@@ -3,6 +3,17 @@ package it.sauronsoftware.jave;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ScreenExtractor {
 
@@ -12,12 +23,30 @@ public class ScreenExtractor {
     private final FFMPEGLocator locator;
     private int numberOfScreens;
 
+    /**
+     * The counter naming the seeking threads.
+     */
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * The average interval between the timestamps of a batch, in millis,
+     * above which the frames are grabbed by parallel seeking processes
+     * instead of a single decoding pass.
+     */
+    private long sparseInterval = 30000;
+
+    /**
+     * The maximum number of parallel seeking processes, 0 for the number of
+     * available processors.
+     */
+    private int parallelism = 0;
+
     /**
      * It builds an extractor using a {@link DefaultFFMPEGLocator} instance to
      * locate the ffmpeg executable to use.
      */
     public ScreenExtractor() {
-        this.locator = new DefaultFFMPEGLocator();
+        this.locator = DefaultFFMPEGLocator.getInstance();
     }
 
     /**
@@ -76,6 +105,8 @@ public class ScreenExtractor {
         numberOfScreens = (int) Math.ceil((multimediaInfo.getDuration() * .001) / seconds + 1);
 
         FFMPEGExecutor ffmpeg = this.locator.createExecutor();
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.INTERACTIVE, null);
         ffmpeg.addArgument("-i");
         ffmpeg.addArgument(inputFile.getAbsolutePath());
         ffmpeg.addArgument("-f");
@@ -86,6 +117,7 @@ public class ScreenExtractor {
         ffmpeg.addArgument(String.format("%sx%s", String.valueOf(width), String.valueOf(height)));
         ffmpeg.addArgument("-qscale");
         ffmpeg.addArgument(String.valueOf(quality));
+        ffmpeg.addThreadsArgument();
         ffmpeg.addArgument(String.format("%s%s%s-%%04d.%s",
                 outputDir.getAbsolutePath(), File.separator, fileNamePrefix, extension));
 
@@ -98,8 +130,8 @@ public class ScreenExtractor {
             RBufferedReader reader = new RBufferedReader(new InputStreamReader(ffmpeg.getErrorStream()));
             int step = 0;
             int lineNR = 0;
-            String line;
-            while ((line = reader.readLine()) != null) {
+            CharSequence line;
+            while ((line = reader.readLineView()) != null) {
                 lineNR++;
                 // TODO: Implement additional input stream parsing
             }
@@ -143,19 +175,24 @@ public class ScreenExtractor {
         int duration = (int) (multimediaInfo.getDuration() * .001);
         numberOfScreens = seconds <= duration ? 1 : 0;
 
-        FFMPEGExecutor ffmpeg = this.locator.createExecutor();
+        FFMPEGExecutor ffmpeg = this.locator.createShortExecutor();
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.INTERACTIVE, null);
+        // Seeking on the input jumps to the previous keyframe, instead of
+        // decoding the whole file up to the position.
+        ffmpeg.addArgument("-ss");
+        ffmpeg.addArgument(String.valueOf(seconds));
         ffmpeg.addArgument("-i");
         ffmpeg.addArgument(inputFile.getAbsolutePath());
         ffmpeg.addArgument("-f");
         ffmpeg.addArgument("image2");
         ffmpeg.addArgument("-vframes");
         ffmpeg.addArgument("1");
-        ffmpeg.addArgument("-ss");
-        ffmpeg.addArgument(String.valueOf(seconds));
         ffmpeg.addArgument("-s");
         ffmpeg.addArgument(String.format("%sx%s", String.valueOf(width), String.valueOf(height)));
         ffmpeg.addArgument("-qscale");
         ffmpeg.addArgument(String.valueOf(quality));
+        ffmpeg.addThreadsArgument();
         ffmpeg.addArgument(target.getAbsolutePath());
 
         try {
@@ -168,8 +205,8 @@ public class ScreenExtractor {
                     new InputStreamReader(ffmpeg.getErrorStream()));
             int step = 0;
             int lineNR = 0;
-            String line;
-            while ((line = reader.readLine()) != null) {
+            CharSequence line;
+            while ((line = reader.readLineView()) != null) {
                 lineNR++;
                 // TODO: Implement additional input stream parsing
             }
@@ -181,4 +218,254 @@ public class ScreenExtractor {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Sets the average interval between the timestamps of a batch above
+     * which {@link ScreenExtractor#render(MultimediaObject, int, int, long[], File, String, String, int)}
+     * grabs the frames with parallel seeking processes rather than with a
+     * single decoding pass. The default is 30 seconds.
+     *
+     * @param sparseInterval The interval, in millis.
+     */
+    public void setSparseInterval(long sparseInterval) {
+        this.sparseInterval = sparseInterval;
+    }
+
+    /**
+     * Sets the maximum number of parallel seeking processes used for sparse
+     * batches.
+     *
+     * @param parallelism The maximum number of processes, 0 (the default)
+     * for the number of available processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Generates screenshots of the source video at the given positions.
+     *
+     * Dense batches are grabbed in a single ffmpeg run, which seeks on the
+     * input to the first position and selects the frames with a
+     * <em>select</em> filter, decoding the video once. Sparse batches (see
+     * {@link ScreenExtractor#setSparseInterval(long)}) are grabbed by
+     * parallel processes, each one seeking to the keyframe before its
+     * position and decoding only from there.
+     *
+     * The images are named <em>prefix-0001.extension</em>,
+     * <em>prefix-0002.extension</em> and so on, in the order of the sorted
+     * positions. Positions closer than a frame share the same image.
+     *
+     * @param multimediaObject Source MultimediaObject @see MultimediaObject
+     * @param width Output width
+     * @param height Output height
+     * @param positions The positions of the screenshots, in millis.
+     * @param outputDir Destination of output images
+     * @param fileNamePrefix Name all thumbnails will start with
+     * @param extension Image extension for output (jpg, png, etc)
+     * @param quality The range is between 1-31 with 31 being the worst quality
+     * @return The image of each position, in the order of the positions.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public File[] render(MultimediaObject multimediaObject, int width, int height,
+            long[] positions, File outputDir, String fileNamePrefix,
+            String extension, int quality)
+            throws InputFormatException, EncoderException {
+        File inputFile = multimediaObject.getFile();
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new EncoderException("Failed to create destination folder "
+                    + outputDir);
+        }
+        File[] result = new File[positions.length];
+        if (positions.length == 0) {
+            return result;
+        }
+        // One frame for each group of positions closer than a frame.
+        MultimediaInfo info = multimediaObject.getInfo();
+        float frameRate = info.getVideo() != null ? info.getVideo().getFrameRate() : 0;
+        long frame = frameRate > 0 ? (long) Math.ceil(1000 / frameRate) : 40;
+        long[] sorted = positions.clone();
+        Arrays.sort(sorted);
+        List<Long> frames = new ArrayList<Long>();
+        for (long position : sorted) {
+            if (frames.isEmpty()
+                    || position - frames.get(frames.size() - 1).longValue() >= frame) {
+                frames.add(Long.valueOf(Math.max(0, position)));
+            }
+        }
+        final File[] images = new File[frames.size()];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new File(outputDir, String.format("%s-%04d.%s",
+                    fileNamePrefix, Integer.valueOf(i + 1), extension));
+        }
+        String size = width + "x" + height;
+        long span = frames.get(frames.size() - 1).longValue() - frames.get(0).longValue();
+        if (frames.size() == 1 || span / (frames.size() - 1) > sparseInterval) {
+            renderSeeking(inputFile, frames, images, size, quality);
+        } else {
+            renderSinglePass(inputFile, frames, images, outputDir,
+                    fileNamePrefix, extension, size, quality);
+        }
+        numberOfScreens = images.length;
+        for (int i = 0; i < positions.length; i++) {
+            long position = Math.max(0, positions[i]);
+            int index = frames.size() - 1;
+            while (index > 0 && frames.get(index).longValue() > position) {
+                index--;
+            }
+            result[i] = images[index];
+        }
+        return result;
+    }
+
+    /**
+     * Private utility. It grabs the frames in a single ffmpeg run.
+     */
+    private void renderSinglePass(File inputFile, List<Long> frames,
+            File[] images, File outputDir, String fileNamePrefix,
+            String extension, String size, int quality) throws EncoderException {
+        long start = frames.get(0).longValue();
+        StringBuilder select = new StringBuilder("select='");
+        for (int i = 0; i < frames.size(); i++) {
+            // The first frame at or after each position. The timestamps
+            // restart from 0 at the input seek point.
+            String t = String.valueOf((frames.get(i).longValue() - start) / 1000d);
+            if (i > 0) {
+                select.append('+');
+            }
+            select.append("gte(t,").append(t).append(")*(isnan(prev_pts)+lt(prev_pts*TB,")
+                    .append(t).append("))");
+        }
+        select.append('\'');
+        FFMPEGExecutor ffmpeg = this.locator.createExecutor();
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffmpeg.setTailSize(4);
+        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.INTERACTIVE, null);
+        if (start > 0) {
+            ffmpeg.addArgument("-ss");
+            ffmpeg.addArgument(String.valueOf(start / 1000d));
+        }
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(inputFile.getAbsolutePath());
+        ffmpeg.addArgument("-an");
+        ffmpeg.addArgument("-vf");
+        ffmpeg.addArgument(select.toString());
+        ffmpeg.addArgument("-vsync");
+        ffmpeg.addArgument("0");
+        ffmpeg.addArgument("-frames:v");
+        ffmpeg.addArgument(String.valueOf(frames.size()));
+        ffmpeg.addArgument("-s");
+        ffmpeg.addArgument(size);
+        ffmpeg.addArgument("-qscale");
+        ffmpeg.addArgument(String.valueOf(quality));
+        ffmpeg.addArgument("-f");
+        ffmpeg.addArgument("image2");
+        ffmpeg.addThreadsArgument();
+        ffmpeg.addArgument("-y");
+        ffmpeg.addArgument(new File(outputDir, fileNamePrefix.replace("%", "%%")
+                + "-%04d." + extension.replace("%", "%%")).getAbsolutePath());
+        runFrame(ffmpeg, images[images.length - 1]);
+    }
+
+    /**
+     * Private utility. It grabs each frame with a process of its own, seeking
+     * on the input, running the processes in parallel.
+     */
+    private void renderSeeking(final File inputFile, List<Long> frames,
+            final File[] images, final String size, final int quality)
+            throws EncoderException {
+        int threads = parallelism > 0 ? parallelism
+                : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threads, images.length), new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "jave-screen-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(pool);
+        try {
+            for (int i = 0; i < images.length; i++) {
+                final int index = i;
+                final long position = frames.get(i).longValue();
+                completion.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        FFMPEGExecutor ffmpeg = locator.createShortExecutor();
+                        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+                        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+                        ffmpeg.setTailSize(4);
+                        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.INTERACTIVE, null);
+                        ffmpeg.addArgument("-ss");
+                        ffmpeg.addArgument(String.valueOf(position / 1000d));
+                        ffmpeg.addArgument("-i");
+                        ffmpeg.addArgument(inputFile.getAbsolutePath());
+                        ffmpeg.addArgument("-an");
+                        ffmpeg.addArgument("-frames:v");
+                        ffmpeg.addArgument("1");
+                        ffmpeg.addArgument("-s");
+                        ffmpeg.addArgument(size);
+                        ffmpeg.addArgument("-qscale");
+                        ffmpeg.addArgument(String.valueOf(quality));
+                        ffmpeg.addArgument("-f");
+                        ffmpeg.addArgument("image2");
+                        ffmpeg.addArgument("-update");
+                        ffmpeg.addArgument("1");
+                        ffmpeg.addThreadsArgument();
+                        ffmpeg.addArgument("-y");
+                        ffmpeg.addArgument(images[index].getAbsolutePath());
+                        runFrame(ffmpeg, images[index]);
+                        return null;
+                    }
+                });
+            }
+            for (int i = 0; i < images.length; i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof EncoderException) {
+                        throw (EncoderException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new EncoderException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new EncoderException("Encoding cancelled", e);
+                }
+            }
+        } finally {
+            // Interrupting the workers destroys their running processes.
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Private utility. It runs a frame grabbing process and checks that it
+     * has written the expected image.
+     */
+    private static void runFrame(FFMPEGExecutor ffmpeg, File image)
+            throws EncoderException {
+        try {
+            ffmpeg.execute();
+            int exitCode = ffmpeg.waitFor();
+            if (exitCode != 0 || !image.isFile()) {
+                throw new EncoderException("Cannot grab the frame " + image.getName()
+                        + ": " + ffmpeg.getTailMessage());
+            }
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Encoding cancelled", e);
+        } finally {
+            ffmpeg.destroy();
+        }
+    }
+
+}
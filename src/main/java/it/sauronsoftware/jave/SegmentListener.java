@@ -0,0 +1,50 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+
+/**
+ * Listener of the files written by a segmented delivery encoding process (see
+ * {@link HlsAttributes} and {@link DashAttributes}). It is notified as soon as
+ * each file is complete, while the encoding process is still running, so the
+ * files can be uploaded to a storage without waiting for the whole process.
+ *
+ * Notifications are sent from the thread running the encoding process.
+ */
+public interface SegmentListener {
+
+    /**
+     * This method is called when a media segment (or an initialization
+     * segment) has been completely written.
+     *
+     * @param segment The segment file.
+     */
+    public void segmentFinished(File segment);
+
+    /**
+     * This method is called when a playlist or a manifest has been written
+     * again, listing the segments finished so far. It is called once more at
+     * the end of the encoding process, with the final playlist.
+     *
+     * @param playlist The playlist or manifest file.
+     */
+    public void playlistUpdated(File playlist);
+
+}
@@ -0,0 +1,153 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A package-private tracker of the files written by the HLS and DASH muxers.
+ * It follows the <em>Opening '...' for writing</em> lines of the ffmpeg
+ * output, and notifies a {@link SegmentListener} when a file is known to be
+ * complete:
+ * <ul>
+ * <li>a media segment, when the next segment of the same stream is opened
+ * (the segments of a stream share the name, but the sequence number);</li>
+ * <li>an initialization segment, together with the first finished media
+ * segment;</li>
+ * <li>a playlist or manifest, when any other file is opened, since the muxer
+ * writes it in a single step;</li>
+ * <li>every pending file, at the end of the encoding process.</li>
+ * </ul>
+ */
+class SegmentTracker {
+
+    /**
+     * This regexp is used to parse the ffmpeg output about a file opened by a
+     * muxer.
+     */
+    private static final Pattern OPENING_PATTERN = Pattern.compile(
+            "Opening '(.+)' for writing");
+
+    /**
+     * This regexp matches the sequence number at the end of a segment name.
+     */
+    private static final Pattern SEQUENCE_PATTERN = Pattern.compile(
+            "\\d+(\\.[^.]*)?$");
+
+    /**
+     * The notified listener.
+     */
+    private final SegmentListener listener;
+
+    /**
+     * The segment being written for every stream, by stream key.
+     */
+    private final Map<String, File> pendingSegments = new LinkedHashMap<String, File>();
+
+    /**
+     * The initialization segments not notified yet.
+     */
+    private final List<File> pendingInits = new ArrayList<File>();
+
+    /**
+     * The last playlist opened and not notified yet.
+     */
+    private File pendingPlaylist = null;
+
+    /**
+     * It builds the tracker.
+     *
+     * @param listener The notified listener.
+     */
+    SegmentTracker(SegmentListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Parses a line of the ffmpeg output.
+     *
+     * @param line The line.
+     */
+    void line(CharSequence line) {
+        if (RBufferedReader.indexOf(line, "for writing") < 0) {
+            return;
+        }
+        Matcher matcher = OPENING_PATTERN.matcher(line);
+        if (!matcher.find()) {
+            return;
+        }
+        String path = matcher.group(1);
+        if (path.endsWith(".tmp")) {
+            path = path.substring(0, path.length() - 4);
+        }
+        File file = new File(path);
+        if (pendingPlaylist != null) {
+            listener.playlistUpdated(pendingPlaylist);
+            pendingPlaylist = null;
+        }
+        String name = file.getName();
+        if (name.endsWith(".m3u8") || name.endsWith(".mpd")) {
+            pendingPlaylist = file;
+        } else if (name.startsWith("init") || name.indexOf("_init") >= 0) {
+            pendingInits.add(file);
+        } else {
+            String key = new File(file.getParentFile(),
+                    SEQUENCE_PATTERN.matcher(name).replaceFirst("$1")).getPath();
+            File previous = pendingSegments.put(key, file);
+            if (previous != null && !previous.equals(file)) {
+                flushInits();
+                listener.segmentFinished(previous);
+            }
+        }
+    }
+
+    /**
+     * Notifies every pending file. It is called when the encoding process
+     * has successfully ended.
+     */
+    void finish() {
+        flushInits();
+        for (Iterator<File> i = pendingSegments.values().iterator(); i.hasNext();) {
+            listener.segmentFinished(i.next());
+            i.remove();
+        }
+        if (pendingPlaylist != null) {
+            listener.playlistUpdated(pendingPlaylist);
+            pendingPlaylist = null;
+        }
+    }
+
+    /**
+     * Private utility. It notifies the pending initialization segments.
+     */
+    private void flushInits() {
+        for (File init : pendingInits) {
+            listener.segmentFinished(init);
+        }
+        pendingInits.clear();
+    }
+
+}
@@ -0,0 +1,614 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoder splitting a long source in segments, encoding them concurrently
+ * in separate ffmpeg processes and joining the results without re-encoding
+ * (with the ffmpeg concat demuxer).
+ *
+ * Segments are cut at key frames of the source, found with ffprobe, so every
+ * segment starts with a complete picture. If ffprobe is not available the
+ * source is split evenly. A failed segment is encoded again, up to
+ * {@link SegmentedEncoder#getMaxRetries()} times, without touching the other
+ * segments.
+ *
+ * The target format must support stream copy concatenation, and the encoding
+ * attributes should not depend on the position in the source (a fixed bit
+ * rate or quality, no fade in/out filters).
+ */
+public class SegmentedEncoder {
+
+    /**
+     * The counter used to name the worker threads.
+     */
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * The locator of the ffmpeg executable used by this encoder.
+     */
+    private final FFMPEGLocator locator;
+
+    /**
+     * The encoder of the single segments.
+     */
+    private final Encoder encoder;
+
+    /**
+     * The number of segments. If 0 it is the number of available processors.
+     */
+    private int segmentCount = 0;
+
+    /**
+     * The number of segments encoded at the same time. If 0 it is the number
+     * of available processors.
+     */
+    private int parallelism = 0;
+
+    /**
+     * The minimum duration of a segment, in millis.
+     */
+    private long minSegmentDuration = 10000;
+
+    /**
+     * The number of times a failed segment is encoded again.
+     */
+    private int maxRetries = 2;
+
+    /**
+     * The directory where the segments are stored. If null the directory of
+     * the target file is used.
+     */
+    private File workDirectory = null;
+
+    /**
+     * It builds a segmented encoder using a {@link DefaultFFMPEGLocator}
+     * instance to locate the ffmpeg executable to use.
+     */
+    public SegmentedEncoder() {
+        this(DefaultFFMPEGLocator.getInstance());
+    }
+
+    /**
+     * It builds a segmented encoder with a custom {@link FFMPEGLocator}.
+     *
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * encoder.
+     */
+    public SegmentedEncoder(FFMPEGLocator locator) {
+        this.locator = locator;
+        this.encoder = new Encoder(locator);
+    }
+
+    /**
+     * Returns the number of segments the source is split in.
+     *
+     * @return The number of segments, or 0 for the number of available
+     * processors.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Sets the number of segments the source is split in. Less segments are
+     * used if they would be shorter than
+     * {@link SegmentedEncoder#getMinSegmentDuration()}, or if the source has
+     * not enough key frames.
+     *
+     * @param segmentCount The number of segments, or 0 for the number of
+     * available processors.
+     */
+    public void setSegmentCount(int segmentCount) {
+        if (segmentCount < 0) {
+            throw new IllegalArgumentException("segmentCount < 0");
+        }
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Returns the number of segments encoded at the same time.
+     *
+     * @return The number of segments encoded at the same time, or 0 for the
+     * number of available processors.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of segments encoded at the same time.
+     *
+     * @param parallelism The number of segments encoded at the same time, or 0
+     * for the number of available processors.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism < 0");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the minimum duration of a segment.
+     *
+     * @return The minimum duration of a segment, in millis.
+     */
+    public long getMinSegmentDuration() {
+        return minSegmentDuration;
+    }
+
+    /**
+     * Sets the minimum duration of a segment. Shorter sources are encoded in
+     * a single process.
+     *
+     * @param minSegmentDuration The minimum duration of a segment, in millis.
+     */
+    public void setMinSegmentDuration(long minSegmentDuration) {
+        this.minSegmentDuration = minSegmentDuration;
+    }
+
+    /**
+     * Returns the number of times a failed segment is encoded again.
+     *
+     * @return The number of times a failed segment is encoded again.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed segment is encoded again before
+     * failing the whole encoding.
+     *
+     * @param maxRetries The number of times a failed segment is encoded
+     * again.
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries < 0");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Returns the directory where the segments are stored.
+     *
+     * @return The directory where the segments are stored, or null for the
+     * directory of the target file.
+     */
+    public File getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Sets the directory where the segments are stored while encoding. The
+     * segments are deleted once joined.
+     *
+     * @param workDirectory The directory where the segments are stored, or
+     * null for the directory of the target file.
+     */
+    public void setWorkDirectory(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Re-encode a multimedia file, splitting it in segments encoded
+     * concurrently.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process. The
+     * offset and the duration, if set, select the part of the source to
+     * encode.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public void encode(MultimediaObject multimediaObject, File target,
+            EncodingAttributes attributes) throws IllegalArgumentException,
+            InputFormatException, EncoderException {
+        encode(multimediaObject, target, attributes, null);
+    }
+
+    /**
+     * Re-encode a multimedia file, splitting it in segments encoded
+     * concurrently.
+     *
+     * @param multimediaObject The source multimedia file. It cannot be null.
+     * @param target The target multimedia re-encoded file. It cannot be null.
+     * If this file already exists, it will be overwrited.
+     * @param attributes A set of attributes for the encoding process. The
+     * offset and the duration, if set, select the part of the source to
+     * encode.
+     * @param listener An optional progress listener for the encoding process.
+     * It can be null. The permil progress is the sum of the progress of the
+     * segments, weighted by their duration, and it is notified from the
+     * worker threads.
+     * @throws IllegalArgumentException If both audio and video parameters are
+     * null.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public void encode(MultimediaObject multimediaObject, File target,
+            EncodingAttributes attributes, EncoderProgressListener listener)
+            throws IllegalArgumentException, InputFormatException,
+            EncoderException {
+        if (attributes.getAudioAttributes() == null
+                && attributes.getVideoAttributes() == null) {
+            throw new IllegalArgumentException(
+                    "Both audio and video attributes are null");
+        }
+        MultimediaInfo info = multimediaObject.getInfo();
+        long start = 0;
+        if (attributes.getOffset() != null) {
+            start = Math.round(attributes.getOffset() * 1000d);
+        }
+        long end = info.getDuration();
+        if (attributes.getDuration() != null) {
+            long limit = start + Math.round(attributes.getDuration() * 1000d);
+            if (end <= 0 || limit < end) {
+                end = limit;
+            }
+        }
+        long[] cuts = null;
+        int count = segmentCount > 0 ? segmentCount
+                : Runtime.getRuntime().availableProcessors();
+        if (end > start && minSegmentDuration > 0) {
+            count = (int) Math.min(count, (end - start) / minSegmentDuration);
+        }
+        if (count > 1 && end > start) {
+            List<Long> keyframes = null;
+            if (info.getVideo() != null) {
+                keyframes = FFProbeEngine.keyframes(locator,
+                        multimediaObject.getFile());
+            }
+            cuts = cuts(start, end, count, keyframes);
+        }
+        if (cuts == null || cuts.length < 3) {
+            // Not worth splitting.
+            encoder.encode(multimediaObject, target, attributes, listener);
+            return;
+        }
+        target = target.getAbsoluteFile();
+        File directory = workDirectory != null ? workDirectory
+                : target.getParentFile();
+        directory.mkdirs();
+        File segmentDirectory;
+        try {
+            segmentDirectory = Files.createTempDirectory(directory.toPath(),
+                    ".jave-segments-").toFile();
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        }
+        try {
+            File[] segments = encodeSegments(multimediaObject, target,
+                    attributes, listener, cuts, segmentDirectory, info);
+            concat(segments, target, attributes.getFormat(), segmentDirectory,
+                    attributes.getPriority(), attributes.getTenant());
+            if (listener != null) {
+                listener.progress(1000);
+            }
+        } finally {
+            File[] files = segmentDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            segmentDirectory.delete();
+        }
+    }
+
+    /**
+     * Private utility. It chooses the cut points, as close as possible to an
+     * even split of the given range, moving them to the nearest key frame.
+     *
+     * @param start The start of the range, in millis.
+     * @param end The end of the range, in millis.
+     * @param count The wanted number of segments.
+     * @param keyframes The key frames timestamps, in millis. If null the range
+     * is split evenly.
+     * @return The cut points, including start and end, in ascending order.
+     */
+    private long[] cuts(long start, long end, int count, List<Long> keyframes) {
+        List<Long> cuts = new ArrayList<Long>();
+        cuts.add(start);
+        long minimum = minSegmentDuration > 0 ? minSegmentDuration / 2 : 1;
+        int next = 0;
+        for (int i = 1; i < count; i++) {
+            long ideal = start + (end - start) * i / count;
+            long cut = ideal;
+            if (keyframes != null) {
+                while (next < keyframes.size() - 1
+                        && Math.abs(keyframes.get(next + 1) - ideal)
+                        <= Math.abs(keyframes.get(next) - ideal)) {
+                    next++;
+                }
+                if (next >= keyframes.size()) {
+                    break;
+                }
+                cut = keyframes.get(next);
+            }
+            long previous = cuts.get(cuts.size() - 1);
+            if (cut - previous >= minimum && end - cut >= minimum) {
+                cuts.add(cut);
+            }
+        }
+        cuts.add(end);
+        long[] result = new long[cuts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cuts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Private utility. It encodes the segments between the given cut points
+     * on a pool of worker threads. If a segment fails all its retries, the
+     * other segments are cancelled.
+     */
+    private File[] encodeSegments(final MultimediaObject multimediaObject,
+            File target, final EncodingAttributes attributes,
+            final EncoderProgressListener listener, long[] cuts,
+            File segmentDirectory, MultimediaInfo info)
+            throws InputFormatException, EncoderException {
+        int count = cuts.length - 1;
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot) : "";
+        final File[] segments = new File[count];
+        final EncodeJob[] jobs = new EncodeJob[count];
+        final SegmentProgress progress = new SegmentProgress(listener, cuts);
+        if (listener != null) {
+            listener.sourceInfo(info);
+        }
+        int threads = parallelism > 0 ? parallelism
+                : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(threads, count), new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "jave-segment-"
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(pool);
+        try {
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final EncodingAttributes segmentAttributes = attributes.copy();
+                // Exact millis: the float seconds of long sources would not
+                // join the segments on the same frame.
+                segmentAttributes.setExactRange(cuts[i], cuts[i + 1] - cuts[i]);
+                segments[i] = new File(segmentDirectory, "segment-"
+                        + (i + 1) + extension);
+                jobs[i] = new EncodeJob();
+                completion.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        encodeSegment(jobs[index], multimediaObject,
+                                segments[index], segmentAttributes,
+                                progress.listener(index));
+                        return null;
+                    }
+                });
+            }
+            // Wait in completion order, so a failure cancels the others soon.
+            for (int i = 0; i < count; i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    for (EncodeJob job : jobs) {
+                        job.cancel();
+                    }
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InputFormatException) {
+                        throw (InputFormatException) cause;
+                    } else if (cause instanceof EncoderException) {
+                        throw (EncoderException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new EncoderException(cause);
+                } catch (InterruptedException e) {
+                    for (EncodeJob job : jobs) {
+                        job.cancel();
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new EncoderException("Encoding cancelled", e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return segments;
+    }
+
+    /**
+     * Private utility. It encodes a single segment, trying again if the
+     * ffmpeg process fails.
+     */
+    private void encodeSegment(EncodeJob job, MultimediaObject multimediaObject,
+            File segment, EncodingAttributes attributes,
+            EncoderProgressListener listener) throws InputFormatException,
+            EncoderException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                encoder.encode(job, multimediaObject, segment, attributes,
+                        listener, null);
+                return;
+            } catch (InputFormatException e) {
+                throw e;
+            } catch (EncoderException e) {
+                if (job.isCancelled() || attempt >= maxRetries) {
+                    throw e;
+                }
+                listener.message("Segment " + segment.getName()
+                        + " failed, retrying: " + e.getMessage());
+                listener.progress(0);
+            }
+        }
+    }
+
+    /**
+     * Private utility. It joins the encoded segments into the target file,
+     * copying the streams.
+     */
+    private void concat(File[] segments, File target, String format,
+            File segmentDirectory, FFMPEGScheduler.Priority priority,
+            String tenant) throws EncoderException {
+        File list = new File(segmentDirectory, "segments.txt");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(list),
+                    "UTF-8");
+            try {
+                for (File segment : segments) {
+                    writer.write("file '"
+                            + segment.getAbsolutePath().replace("'", "'\\''")
+                            + "'\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        }
+        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        ffmpeg.addArgument("-f");
+        ffmpeg.addArgument("concat");
+        ffmpeg.addArgument("-safe");
+        ffmpeg.addArgument("0");
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(list.getAbsolutePath());
+        ffmpeg.addArgument("-map");
+        ffmpeg.addArgument("0");
+        ffmpeg.addArgument("-c");
+        ffmpeg.addArgument("copy");
+        if (format != null) {
+            ffmpeg.addArgument("-f");
+            ffmpeg.addArgument(format);
+        }
+        ffmpeg.addArgument("-y");
+        ffmpeg.addArgument(target.getAbsolutePath());
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffmpeg.setTailSize(4);
+        ffmpeg.setSchedule(FFMPEGScheduler.PROBE_WEIGHT, priority, tenant);
+        try {
+            ffmpeg.execute();
+            int exitCode = ffmpeg.waitFor();
+            if (exitCode != 0 || !target.isFile()) {
+                throw new EncoderException("Cannot join the segments: "
+                        + ffmpeg.getTailMessage());
+            }
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Encoding cancelled", e);
+        } finally {
+            ffmpeg.destroy();
+        }
+    }
+
+    /**
+     * Private utility. It sums the progress of the segments, weighted by
+     * their duration, into a single permil progress.
+     */
+    private static class SegmentProgress {
+
+        private final EncoderProgressListener listener;
+
+        private final long[] weights;
+
+        private final int[] permils;
+
+        private final long total;
+
+        private int last = -1;
+
+        SegmentProgress(EncoderProgressListener listener, long[] cuts) {
+            this.listener = listener;
+            this.weights = new long[cuts.length - 1];
+            this.permils = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = cuts[i + 1] - cuts[i];
+            }
+            this.total = cuts[cuts.length - 1] - cuts[0];
+        }
+
+        EncoderProgressListener listener(final int index) {
+            return new EncoderProgressListener() {
+                public void sourceInfo(MultimediaInfo info) {
+                    // Already notified for the whole source.
+                }
+
+                public void progress(int permil) {
+                    update(index, permil);
+                }
+
+                public void message(String message) {
+                    if (listener != null) {
+                        listener.message(message);
+                    }
+                }
+            };
+        }
+
+        private synchronized void update(int index, int permil) {
+            permils[index] = Math.max(0, Math.min(1000, permil));
+            long sum = 0;
+            for (int i = 0; i < permils.length; i++) {
+                sum += permils[i] * weights[i];
+            }
+            // The last permil is left for the join.
+            int progress = (int) Math.min(999, sum / total);
+            if (progress != last && listener != null) {
+                last = progress;
+                listener.progress(progress);
+            }
+        }
+
+    }
+
+}
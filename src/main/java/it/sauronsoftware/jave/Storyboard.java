@@ -0,0 +1,182 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Instances of this class describe a storyboard produced by a
+ * {@link StoryboardExtractor}: the sprite sheets and their indexes.
+ */
+public class Storyboard {
+
+    /**
+     * The sprite sheets.
+     */
+    private final List<File> sheets;
+
+    /**
+     * The WebVTT index.
+     */
+    private final File vttIndex;
+
+    /**
+     * The JSON index.
+     */
+    private final File jsonIndex;
+
+    /**
+     * The number of thumbnails.
+     */
+    private final int count;
+
+    /**
+     * The interval between two thumbnails, in millis.
+     */
+    private final long interval;
+
+    /**
+     * The thumbnail width.
+     */
+    private final int tileWidth;
+
+    /**
+     * The thumbnail height.
+     */
+    private final int tileHeight;
+
+    /**
+     * The number of columns of a sheet.
+     */
+    private final int columns;
+
+    /**
+     * The number of rows of a sheet.
+     */
+    private final int rows;
+
+    /**
+     * It builds the bean.
+     */
+    Storyboard(List<File> sheets, File vttIndex, File jsonIndex, int count,
+            long interval, int tileWidth, int tileHeight, int columns, int rows) {
+        this.sheets = Collections.unmodifiableList(sheets);
+        this.vttIndex = vttIndex;
+        this.jsonIndex = jsonIndex;
+        this.count = count;
+        this.interval = interval;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Returns the sprite sheets, in time order.
+     *
+     * @return The sprite sheets.
+     */
+    public List<File> getSheets() {
+        return sheets;
+    }
+
+    /**
+     * Returns the WebVTT index, mapping time ranges to sheet regions
+     * (<em>sheet.jpg#xywh=x,y,w,h</em>).
+     *
+     * @return The WebVTT index.
+     */
+    public File getVttIndex() {
+        return vttIndex;
+    }
+
+    /**
+     * Returns the JSON index, describing the grid and the time range and
+     * region of every thumbnail.
+     *
+     * @return The JSON index.
+     */
+    public File getJsonIndex() {
+        return jsonIndex;
+    }
+
+    /**
+     * Returns the number of thumbnails.
+     *
+     * @return The number of thumbnails.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the interval between two thumbnails, in millis.
+     *
+     * @return The interval between two thumbnails.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the thumbnail width, in pixels.
+     *
+     * @return The thumbnail width.
+     */
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    /**
+     * Returns the thumbnail height, in pixels.
+     *
+     * @return The thumbnail height.
+     */
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Returns the number of columns of a sheet.
+     *
+     * @return The number of columns of a sheet.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of rows of a sheet.
+     *
+     * @return The number of rows of a sheet.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (sheets=" + sheets.size() + ", count="
+                + count + ", interval=" + interval + ", tile=" + tileWidth
+                + "x" + tileHeight + ", grid=" + columns + "x" + rows + ")";
+    }
+
+}
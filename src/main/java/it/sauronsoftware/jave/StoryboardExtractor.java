@@ -0,0 +1,369 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts storyboards for player scrub previews: sprite sheets tiling a
+ * thumbnail every few seconds, produced by ffmpeg in a single pass with the
+ * <em>fps</em>, <em>scale</em> and <em>tile</em> filters, plus a WebVTT and
+ * a JSON index mapping each time range to its region of a sheet.
+ */
+public class StoryboardExtractor {
+
+    /**
+     * The locator of the ffmpeg executable used by this extractor.
+     */
+    private final FFMPEGLocator locator;
+
+    /**
+     * The interval between two thumbnails, in millis.
+     */
+    private long interval = 5000;
+
+    /**
+     * The thumbnail width.
+     */
+    private int tileWidth = 160;
+
+    /**
+     * The number of columns of a sheet.
+     */
+    private int columns = 10;
+
+    /**
+     * The number of rows of a sheet.
+     */
+    private int rows = 10;
+
+    /**
+     * The maximum width of a sheet, 0 for no limit.
+     */
+    private int maxSheetWidth = 0;
+
+    /**
+     * The maximum height of a sheet, 0 for no limit.
+     */
+    private int maxSheetHeight = 0;
+
+    /**
+     * The JPEG quality, between 1 (best) and 31.
+     */
+    private int quality = 5;
+
+    /**
+     * It builds an extractor using a {@link DefaultFFMPEGLocator} instance to
+     * locate the ffmpeg executable to use.
+     */
+    public StoryboardExtractor() {
+        this(DefaultFFMPEGLocator.getInstance());
+    }
+
+    /**
+     * It builds an extractor with a custom {@link FFMPEGLocator}.
+     *
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * extractor.
+     */
+    public StoryboardExtractor(FFMPEGLocator locator) {
+        this.locator = locator;
+    }
+
+    /**
+     * Sets the interval between two thumbnails. The default is 5 seconds.
+     *
+     * @param interval The interval, in millis.
+     */
+    public void setInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * Sets the thumbnail width. The height follows the aspect ratio of the
+     * video. The default is 160 pixels.
+     *
+     * @param tileWidth The thumbnail width, in pixels.
+     */
+    public void setTileWidth(int tileWidth) {
+        if (tileWidth <= 0) {
+            throw new IllegalArgumentException("tileWidth must be positive");
+        }
+        this.tileWidth = tileWidth;
+    }
+
+    /**
+     * Sets the grid of a sheet. The default is 10x10.
+     *
+     * @param columns The number of columns.
+     * @param rows The number of rows.
+     */
+    public void setGrid(int columns, int rows) {
+        if (columns <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("the grid must not be empty");
+        }
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Sets the maximum size of a sheet. The grid is reduced if needed to fit
+     * it, down to a single thumbnail.
+     *
+     * @param maxSheetWidth The maximum width, in pixels, 0 for no limit.
+     * @param maxSheetHeight The maximum height, in pixels, 0 for no limit.
+     */
+    public void setMaxSheetSize(int maxSheetWidth, int maxSheetHeight) {
+        this.maxSheetWidth = maxSheetWidth;
+        this.maxSheetHeight = maxSheetHeight;
+    }
+
+    /**
+     * Sets the JPEG quality of the sheets.
+     *
+     * @param quality The range is between 1-31 with 31 being the worst
+     * quality. The default is 5.
+     */
+    public void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Extracts the storyboard of a video. The sheets are named
+     * <em>name-001.jpg</em>, <em>name-002.jpg</em> and so on, the indexes
+     * <em>name.vtt</em> and <em>name.json</em>.
+     *
+     * @param multimediaObject The source video.
+     * @param outputDir The destination directory.
+     * @param name The base name of the files.
+     * @return The storyboard.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs during the encoding
+     * process.
+     */
+    public Storyboard extract(MultimediaObject multimediaObject, File outputDir,
+            String name) throws InputFormatException, EncoderException {
+        MultimediaInfo info = multimediaObject.getInfo();
+        VideoInfo video = info.getVideo();
+        if (video == null) {
+            throw new EncoderException("The source has no video stream");
+        }
+        if (info.getDuration() <= 0) {
+            throw new EncoderException("The source duration is unknown");
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new EncoderException("Cannot create directory " + outputDir);
+        }
+        // The even thumbnail height following the aspect ratio.
+        int tileHeight = tileWidth * 9 / 16;
+        VideoSize size = video.getSize();
+        if (size != null && size.getWidth() > 0 && size.getHeight() > 0) {
+            tileHeight = (int) Math.round(tileWidth * size.getHeight()
+                    / (double) size.getWidth());
+        }
+        tileHeight = Math.max(2, tileHeight + (tileHeight & 1));
+        int sheetColumns = columns;
+        int sheetRows = rows;
+        if (maxSheetWidth > 0) {
+            sheetColumns = Math.max(1, Math.min(sheetColumns, maxSheetWidth / tileWidth));
+        }
+        if (maxSheetHeight > 0) {
+            sheetRows = Math.max(1, Math.min(sheetRows, maxSheetHeight / tileHeight));
+        }
+        int count = (int) ((info.getDuration() + interval - 1) / interval);
+        int perSheet = sheetColumns * sheetRows;
+        int sheetCount = (count + perSheet - 1) / perSheet;
+        List<File> sheets = new ArrayList<File>(sheetCount);
+        for (int i = 0; i < sheetCount; i++) {
+            sheets.add(new File(outputDir, String.format("%s-%03d.jpg", name,
+                    Integer.valueOf(i + 1))));
+        }
+        FFMPEGExecutor ffmpeg = locator.createExecutor();
+        ffmpeg.setOutputHandling(FFMPEGExecutor.StreamHandling.DISCARD);
+        ffmpeg.setErrorHandling(FFMPEGExecutor.StreamHandling.DRAIN);
+        ffmpeg.setTailSize(4);
+        ffmpeg.setSchedule(1, FFMPEGScheduler.Priority.NORMAL, null);
+        ffmpeg.addArgument("-i");
+        ffmpeg.addArgument(multimediaObject.getFile().getAbsolutePath());
+        ffmpeg.addArgument("-an");
+        ffmpeg.addArgument("-sn");
+        ffmpeg.addArgument("-vf");
+        ffmpeg.addArgument("fps=1000/" + interval + ",scale=" + tileWidth + ":"
+                + tileHeight + ",tile=" + sheetColumns + "x" + sheetRows);
+        ffmpeg.addArgument("-vsync");
+        ffmpeg.addArgument("0");
+        ffmpeg.addArgument("-qscale");
+        ffmpeg.addArgument(String.valueOf(quality));
+        ffmpeg.addArgument("-f");
+        ffmpeg.addArgument("image2");
+        ffmpeg.addThreadsArgument();
+        ffmpeg.addArgument("-y");
+        ffmpeg.addArgument(new File(outputDir, name.replace("%", "%%") + "-%03d.jpg")
+                .getAbsolutePath());
+        try {
+            ffmpeg.execute();
+            int exitCode = ffmpeg.waitFor();
+            if (exitCode != 0 || !sheets.get(0).isFile()) {
+                throw new EncoderException("Cannot extract the storyboard: "
+                        + ffmpeg.getTailMessage());
+            }
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncoderException("Encoding cancelled", e);
+        } finally {
+            ffmpeg.destroy();
+        }
+        // The duration may be slightly off: trust the written sheets.
+        while (sheets.size() > 1 && !sheets.get(sheets.size() - 1).isFile()) {
+            sheets.remove(sheets.size() - 1);
+            count = Math.min(count, sheets.size() * perSheet);
+        }
+        Storyboard storyboard = new Storyboard(sheets, new File(outputDir, name + ".vtt"),
+                new File(outputDir, name + ".json"), count, interval, tileWidth,
+                tileHeight, sheetColumns, sheetRows);
+        try {
+            writeVtt(storyboard, info.getDuration());
+            writeJson(storyboard, info.getDuration());
+        } catch (IOException e) {
+            throw new EncoderException(e);
+        }
+        return storyboard;
+    }
+
+    /**
+     * Private utility. It writes the WebVTT index.
+     */
+    private static void writeVtt(Storyboard storyboard, long duration)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(
+                storyboard.getVttIndex()), "UTF-8");
+        try {
+            writer.write("WEBVTT\n");
+            for (int i = 0; i < storyboard.getCount(); i++) {
+                long start = i * storyboard.getInterval();
+                long end = Math.min(start + storyboard.getInterval(), duration);
+                writer.write("\n" + vttTime(start) + " --> " + vttTime(end) + "\n");
+                writer.write(sheetOf(storyboard, i).getName() + "#xywh="
+                        + xOf(storyboard, i) + "," + yOf(storyboard, i) + ","
+                        + storyboard.getTileWidth() + ","
+                        + storyboard.getTileHeight() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Private utility. It writes the JSON index.
+     */
+    private static void writeJson(Storyboard storyboard, long duration)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(
+                storyboard.getJsonIndex()), "UTF-8");
+        try {
+            writer.write("{\"interval\":" + storyboard.getInterval()
+                    + ",\"tileWidth\":" + storyboard.getTileWidth()
+                    + ",\"tileHeight\":" + storyboard.getTileHeight()
+                    + ",\"columns\":" + storyboard.getColumns()
+                    + ",\"rows\":" + storyboard.getRows()
+                    + ",\"count\":" + storyboard.getCount()
+                    + ",\"sheets\":[");
+            List<File> sheets = storyboard.getSheets();
+            for (int i = 0; i < sheets.size(); i++) {
+                writer.write((i > 0 ? "," : "") + jsonString(sheets.get(i).getName()));
+            }
+            writer.write("],\"tiles\":[");
+            int perSheet = storyboard.getColumns() * storyboard.getRows();
+            for (int i = 0; i < storyboard.getCount(); i++) {
+                long start = i * storyboard.getInterval();
+                long end = Math.min(start + storyboard.getInterval(), duration);
+                writer.write((i > 0 ? "," : "") + "{\"start\":" + start
+                        + ",\"end\":" + end + ",\"sheet\":" + (i / perSheet)
+                        + ",\"x\":" + xOf(storyboard, i) + ",\"y\":"
+                        + yOf(storyboard, i) + "}");
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Private utility. It returns the sheet of a thumbnail.
+     */
+    private static File sheetOf(Storyboard storyboard, int index) {
+        return storyboard.getSheets().get(
+                index / (storyboard.getColumns() * storyboard.getRows()));
+    }
+
+    /**
+     * Private utility. It returns the horizontal offset of a thumbnail.
+     */
+    private static int xOf(Storyboard storyboard, int index) {
+        return (index % storyboard.getColumns()) * storyboard.getTileWidth();
+    }
+
+    /**
+     * Private utility. It returns the vertical offset of a thumbnail.
+     */
+    private static int yOf(Storyboard storyboard, int index) {
+        int cell = index % (storyboard.getColumns() * storyboard.getRows());
+        return (cell / storyboard.getColumns()) * storyboard.getTileHeight();
+    }
+
+    /**
+     * Private utility. It formats a time as hh:mm:ss.ttt.
+     */
+    private static String vttTime(long millis) {
+        return String.format("%02d:%02d:%02d.%03d", Long.valueOf(millis / 3600000),
+                Long.valueOf(millis / 60000 % 60), Long.valueOf(millis / 1000 % 60),
+                Long.valueOf(millis % 1000));
+    }
+
+    /**
+     * Private utility. It quotes a JSON string.
+     */
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+}
@@ -0,0 +1,413 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Instances of this class report informations about a single stream of a
+ * multimedia file, as reported by ffprobe. Fields not applicable to the
+ * stream type, or not reported, are null or less than 0.
+ */
+public class StreamInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The stream type for video streams.
+     */
+    public static final String TYPE_VIDEO = "video";
+
+    /**
+     * The stream type for audio streams.
+     */
+    public static final String TYPE_AUDIO = "audio";
+
+    /**
+     * The stream type for subtitle streams.
+     */
+    public static final String TYPE_SUBTITLE = "subtitle";
+
+    private int index = -1;
+    private String type = null;
+    private String codecName = null;
+    private String codecLongName = null;
+    private String profile = null;
+    private String codecTag = null;
+    private int width = -1;
+    private int height = -1;
+    private String pixelFormat = null;
+    private String colorRange = null;
+    private String colorSpace = null;
+    private String colorTransfer = null;
+    private String colorPrimaries = null;
+    private int rotation = 0;
+    private float frameRate = -1;
+    private int samplingRate = -1;
+    private int channels = -1;
+    private String channelLayout = null;
+    private long bitRate = -1;
+    private long duration = -1;
+    private long frameCount = -1;
+    private boolean defaultStream = false;
+    private final LinkedHashMap<String, String> tags = new LinkedHashMap<String, String>();
+
+    /**
+     * Returns the index of the stream in the multimedia file.
+     *
+     * @return The index of the stream.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns the stream type, for example {@link StreamInfo#TYPE_VIDEO},
+     * {@link StreamInfo#TYPE_AUDIO} or {@link StreamInfo#TYPE_SUBTITLE}.
+     *
+     * @return The stream type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    void setType(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Returns true if this is a video stream.
+     *
+     * @return true if this is a video stream.
+     */
+    public boolean isVideo() {
+        return TYPE_VIDEO.equals(type);
+    }
+
+    /**
+     * Returns true if this is an audio stream.
+     *
+     * @return true if this is an audio stream.
+     */
+    public boolean isAudio() {
+        return TYPE_AUDIO.equals(type);
+    }
+
+    /**
+     * Returns the codec name, for example <em>h264</em> or <em>aac</em>.
+     *
+     * @return The codec name.
+     */
+    public String getCodecName() {
+        return codecName;
+    }
+
+    void setCodecName(String codecName) {
+        this.codecName = codecName;
+    }
+
+    /**
+     * Returns the descriptive codec name.
+     *
+     * @return The descriptive codec name.
+     */
+    public String getCodecLongName() {
+        return codecLongName;
+    }
+
+    void setCodecLongName(String codecLongName) {
+        this.codecLongName = codecLongName;
+    }
+
+    /**
+     * Returns the codec profile, for example <em>High</em>.
+     *
+     * @return The codec profile.
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the codec tag/fourcc, for example <em>avc1</em>.
+     *
+     * @return The codec tag.
+     */
+    public String getCodecTag() {
+        return codecTag;
+    }
+
+    void setCodecTag(String codecTag) {
+        this.codecTag = codecTag;
+    }
+
+    /**
+     * Returns the video width, or -1.
+     *
+     * @return The video width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    void setWidth(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Returns the video height, or -1.
+     *
+     * @return The video height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    void setHeight(int height) {
+        this.height = height;
+    }
+
+    /**
+     * Returns the pixel format, for example <em>yuv420p</em>.
+     *
+     * @return The pixel format.
+     */
+    public String getPixelFormat() {
+        return pixelFormat;
+    }
+
+    void setPixelFormat(String pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+    /**
+     * Returns the color range, for example <em>tv</em>.
+     *
+     * @return The color range.
+     */
+    public String getColorRange() {
+        return colorRange;
+    }
+
+    void setColorRange(String colorRange) {
+        this.colorRange = colorRange;
+    }
+
+    /**
+     * Returns the color space, for example <em>bt709</em>.
+     *
+     * @return The color space.
+     */
+    public String getColorSpace() {
+        return colorSpace;
+    }
+
+    void setColorSpace(String colorSpace) {
+        this.colorSpace = colorSpace;
+    }
+
+    /**
+     * Returns the color transfer characteristics.
+     *
+     * @return The color transfer characteristics.
+     */
+    public String getColorTransfer() {
+        return colorTransfer;
+    }
+
+    void setColorTransfer(String colorTransfer) {
+        this.colorTransfer = colorTransfer;
+    }
+
+    /**
+     * Returns the color primaries.
+     *
+     * @return The color primaries.
+     */
+    public String getColorPrimaries() {
+        return colorPrimaries;
+    }
+
+    void setColorPrimaries(String colorPrimaries) {
+        this.colorPrimaries = colorPrimaries;
+    }
+
+    /**
+     * Returns the clockwise display rotation in degrees (0, 90, 180 or 270
+     * for the usual phone recordings), or 0.
+     *
+     * @return The display rotation in degrees.
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    void setRotation(int rotation) {
+        this.rotation = rotation;
+    }
+
+    /**
+     * Returns the average frame rate, or -1.
+     *
+     * @return The average frame rate.
+     */
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    void setFrameRate(float frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Returns the audio sampling rate, or -1.
+     *
+     * @return The audio sampling rate.
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    void setSamplingRate(int samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Returns the audio channels number, or -1.
+     *
+     * @return The audio channels number.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    void setChannels(int channels) {
+        this.channels = channels;
+    }
+
+    /**
+     * Returns the audio channel layout, for example <em>5.1</em>.
+     *
+     * @return The audio channel layout.
+     */
+    public String getChannelLayout() {
+        return channelLayout;
+    }
+
+    void setChannelLayout(String channelLayout) {
+        this.channelLayout = channelLayout;
+    }
+
+    /**
+     * Returns the stream bit rate in bits per second, or -1.
+     *
+     * @return The stream bit rate in bits per second.
+     */
+    public long getBitRate() {
+        return bitRate;
+    }
+
+    void setBitRate(long bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * Returns the stream duration in millis, or -1.
+     *
+     * @return The stream duration in millis.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the number of frames in the stream, or -1.
+     *
+     * @return The number of frames in the stream.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    void setFrameCount(long frameCount) {
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Returns true if the stream is flagged as the default one of its type.
+     *
+     * @return true if the stream is flagged as default.
+     */
+    public boolean isDefaultStream() {
+        return defaultStream;
+    }
+
+    void setDefaultStream(boolean defaultStream) {
+        this.defaultStream = defaultStream;
+    }
+
+    /**
+     * Returns the language of the stream, from its tags, or null.
+     *
+     * @return The language of the stream.
+     */
+    public String getLanguage() {
+        return tags.get("language");
+    }
+
+    /**
+     * Returns the stream metadata tags.
+     *
+     * @return An unmodifiable map with the stream metadata tags.
+     */
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(tags);
+    }
+
+    void putTag(String key, String value) {
+        tags.put(key, value);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (index=" + index + ", type=" + type
+                + ", codecName=" + codecName + ", profile=" + profile
+                + ", width=" + width + ", height=" + height + ", pixelFormat="
+                + pixelFormat + ", rotation=" + rotation + ", frameRate="
+                + frameRate + ", samplingRate=" + samplingRate + ", channels="
+                + channels + ", channelLayout=" + channelLayout + ", bitRate="
+                + bitRate + ", duration=" + duration + ", tags=" + tags + ")";
+    }
+
+}
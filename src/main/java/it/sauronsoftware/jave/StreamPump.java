@@ -0,0 +1,196 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A package-private pump, copying a channel into another one on a dedicated
+ * daemon thread, through a large direct buffer. It feeds a streaming source
+ * to the ffmpeg standard input, or copies the ffmpeg standard output to a
+ * streaming target.
+ *
+ * Read and write failures are recorded separately: a write failure on the
+ * ffmpeg standard input usually means that ffmpeg has stopped reading (for
+ * example because of a duration limit), while a read failure means that the
+ * source is broken.
+ */
+class StreamPump implements Runnable {
+
+    /**
+     * The size of the buffer.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The source channel.
+     */
+    private final ReadableByteChannel in;
+
+    /**
+     * The target channel.
+     */
+    private final WritableByteChannel out;
+
+    /**
+     * Whether the target channel is closed at the end of the source.
+     */
+    private final boolean closeOut;
+
+    /**
+     * The failure reading the source, if any.
+     */
+    private volatile IOException readFailure = null;
+
+    /**
+     * The failure writing the target, if any.
+     */
+    private volatile IOException writeFailure = null;
+
+    /**
+     * The action run when writing the target fails, if any.
+     */
+    private volatile Runnable writeFailureAction = null;
+
+    /**
+     * The pumping thread.
+     */
+    private Thread thread = null;
+
+    /**
+     * It builds the pump.
+     *
+     * @param in The source channel.
+     * @param out The target channel.
+     * @param closeOut Whether the target channel is closed at the end of the
+     * source (to signal the end of the input to ffmpeg).
+     */
+    StreamPump(ReadableByteChannel in, WritableByteChannel out, boolean closeOut) {
+        this.in = in;
+        this.out = out;
+        this.closeOut = closeOut;
+    }
+
+    /**
+     * Sets the action run, on the pumping thread, when writing the target
+     * fails. When the source is the ffmpeg standard output, the action should
+     * stop the process: once the pump stops reading, ffmpeg blocks on the
+     * full pipe and never ends.
+     *
+     * @param writeFailureAction The action. It can be null.
+     */
+    void setWriteFailureAction(Runnable writeFailureAction) {
+        this.writeFailureAction = writeFailureAction;
+    }
+
+    /**
+     * Starts pumping on a new daemon thread.
+     *
+     * @param name The name of the thread.
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the pump to end.
+     *
+     * @throws InterruptedException If the current thread is interrupted while
+     * waiting.
+     */
+    void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Returns the failure reading the source.
+     *
+     * @return The failure reading the source, or null.
+     */
+    IOException getReadFailure() {
+        return readFailure;
+    }
+
+    /**
+     * Returns the failure writing the target.
+     *
+     * @return The failure writing the target, or null.
+     */
+    IOException getWriteFailure() {
+        return writeFailure;
+    }
+
+    /**
+     * Returns the first failure of the pump, reading or writing.
+     *
+     * @return The failure, or null.
+     */
+    IOException getFailure() {
+        return readFailure != null ? readFailure : writeFailure;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (true) {
+                int read;
+                try {
+                    read = in.read(buffer);
+                } catch (IOException e) {
+                    readFailure = e;
+                    break;
+                }
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                } catch (IOException e) {
+                    writeFailure = e;
+                    Runnable action = writeFailureAction;
+                    if (action != null) {
+                        action.run();
+                    }
+                    break;
+                }
+                buffer.clear();
+            }
+        } finally {
+            if (closeOut) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ; // Silent ignore
+                }
+            }
+        }
+    }
+
+}
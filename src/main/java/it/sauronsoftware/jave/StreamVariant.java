@@ -0,0 +1,86 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.Serializable;
+
+/**
+ * A variant (rendition) of a multi-variant HLS or DASH encoding process: the
+ * attributes of a video stream and of an audio stream, encoded from the same
+ * decoded source and listed together in the master playlist or manifest.
+ */
+public class StreamVariant implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The attributes of the video stream. It can be null.
+     */
+    private final VideoAttributes videoAttributes;
+
+    /**
+     * The attributes of the audio stream. It can be null.
+     */
+    private final AudioAttributes audioAttributes;
+
+    /**
+     * It builds a variant.
+     *
+     * @param videoAttributes The attributes of the video stream. It can be
+     * null for an audio-only variant. Its size and filters are applied to
+     * this variant only.
+     * @param audioAttributes The attributes of the audio stream. It can be
+     * null for a video-only variant. The volume is not supported in
+     * variants.
+     */
+    public StreamVariant(VideoAttributes videoAttributes,
+            AudioAttributes audioAttributes) {
+        if (videoAttributes == null && audioAttributes == null) {
+            throw new IllegalArgumentException(
+                    "Both audio and video attributes are null");
+        }
+        this.videoAttributes = videoAttributes;
+        this.audioAttributes = audioAttributes;
+    }
+
+    /**
+     * Returns the attributes of the video stream.
+     *
+     * @return The attributes of the video stream, or null.
+     */
+    public VideoAttributes getVideoAttributes() {
+        return videoAttributes;
+    }
+
+    /**
+     * Returns the attributes of the audio stream.
+     *
+     * @return The attributes of the audio stream, or null.
+     */
+    public AudioAttributes getAudioAttributes() {
+        return audioAttributes;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (videoAttributes=" + videoAttributes
+                + ", audioAttributes=" + audioAttributes + ")";
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Attributes controlling an encoding process for segmented delivery (see
+ * {@link HlsAttributes} and {@link DashAttributes}). The target file given to
+ * the encoder is the playlist or the manifest: the segments are written in
+ * the same directory, named after it.
+ *
+ * The encoded streams are described either by the audio and video attributes
+ * inherited from {@link EncodingAttributes}, or by a list of
+ * {@link StreamVariant}, encoded from a single decoding of the source and
+ * listed in a multi-variant playlist or manifest.
+ */
+public abstract class StreamingAttributes extends EncodingAttributes {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The target duration of a segment, in seconds.
+     */
+    private float segmentDuration = 6;
+
+    /**
+     * The variants of a multi-variant encoding process.
+     */
+    private final List<StreamVariant> variants = new ArrayList<StreamVariant>();
+
+    /**
+     * The listener notified as each segment is finished. It is not copied
+     * with the attributes.
+     */
+    private transient SegmentListener segmentListener = null;
+
+    /**
+     * Returns the target duration of a segment.
+     *
+     * @return The target duration of a segment, in seconds.
+     */
+    public float getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    /**
+     * Sets the target duration of a segment. Key frames are forced at this
+     * interval, so all the segments (and all the variants) are aligned.
+     *
+     * @param segmentDuration The target duration of a segment, in seconds.
+     */
+    public void setSegmentDuration(float segmentDuration) {
+        if (segmentDuration <= 0) {
+            throw new IllegalArgumentException("segmentDuration <= 0");
+        }
+        this.segmentDuration = segmentDuration;
+    }
+
+    /**
+     * Returns the variants of a multi-variant encoding process.
+     *
+     * @return The variants, in the order they were added. The list is empty
+     * if the inherited audio and video attributes are used.
+     */
+    public List<StreamVariant> getVariants() {
+        return Collections.unmodifiableList(variants);
+    }
+
+    /**
+     * Adds a variant. When at least one variant is added, the inherited audio
+     * and video attributes are ignored.
+     *
+     * @param variant The variant.
+     */
+    public void addVariant(StreamVariant variant) {
+        if (variant == null) {
+            throw new IllegalArgumentException("variant is null");
+        }
+        variants.add(variant);
+    }
+
+    /**
+     * Returns the listener notified as each segment is finished.
+     *
+     * @return The segment listener, or null.
+     */
+    public SegmentListener getSegmentListener() {
+        return segmentListener;
+    }
+
+    /**
+     * Sets the listener notified as each segment is finished.
+     *
+     * @param segmentListener The segment listener. It can be null.
+     */
+    public void setSegmentListener(SegmentListener segmentListener) {
+        this.segmentListener = segmentListener;
+    }
+
+    /**
+     * Adds the muxer arguments to the ffmpeg command line.
+     *
+     * @param ffmpeg The ffmpeg command line.
+     * @param target The target playlist or manifest.
+     * @param video true if at least one video stream is encoded.
+     */
+    abstract void addMuxerArguments(FFMPEGExecutor ffmpeg, File target,
+            boolean video);
+
+    /**
+     * Returns the output path given to ffmpeg for the target file.
+     *
+     * @param target The target playlist or manifest.
+     * @return The output path.
+     */
+    String getOutputPath(File target) {
+        return target.getAbsolutePath();
+    }
+
+    /**
+     * Adds the arguments forcing a key frame at every segment boundary.
+     *
+     * @param ffmpeg The ffmpeg command line.
+     */
+    void addKeyFrameArguments(FFMPEGExecutor ffmpeg) {
+        ffmpeg.addArgument("-force_key_frames");
+        ffmpeg.addArgument("expr:gte(t,n_forced*" + segmentDuration + ")");
+    }
+
+    /**
+     * Returns the name of the target file, without extension. It is used to
+     * name the segments.
+     *
+     * @param target The target playlist or manifest.
+     * @return The base name.
+     */
+    static String getBaseName(File target) {
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "(segmentDuration=" + segmentDuration
+                + ", variants=" + variants + ")";
+    }
+
+}
@@ -0,0 +1,835 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of batch transcoding jobs, run by an {@link Encoder} on a
+ * fixed number of worker threads.
+ *
+ * Every job and every state transition is recorded in an append-only journal
+ * file, synced to disk before the transition takes effect, so that a JVM
+ * restart loses no work: when the queue is built again on the same journal,
+ * the jobs not completed yet are resumed (a job interrupted while running is
+ * encoded again from the start). The journal is compacted when it is opened.
+ *
+ * Jobs are identified by the SHA-256 of the source content and of the
+ * serialized attributes. Submitting a job identical to a pending, running or
+ * completed one, for the same target, returns the future of that job; for
+ * another target, the output of the completed job is copied instead of being
+ * encoded again. So a batch driver can simply submit its whole input list
+ * again after a restart.
+ *
+ * Jobs are encoded to a temporary file next to the target, which is renamed
+ * atomically to the target when the encoding succeeds: the target is never
+ * seen partially written.
+ */
+public class TranscodeQueue {
+
+    /**
+     * Journal record: a job has been submitted.
+     */
+    private static final byte SUBMITTED = 'S';
+
+    /**
+     * Journal record: a job has been started.
+     */
+    private static final byte STARTED = 'R';
+
+    /**
+     * Journal record: a job has been completed.
+     */
+    private static final byte COMPLETED = 'D';
+
+    /**
+     * Journal record: a job has failed.
+     */
+    private static final byte FAILED = 'F';
+
+    /**
+     * The prefix of the temporary files.
+     */
+    private static final String TEMP_PREFIX = ".jave-";
+
+    /**
+     * Counter used to name the worker threads.
+     */
+    private static final AtomicLong THREAD_COUNTER = new AtomicLong();
+
+    /**
+     * The encoder running the jobs.
+     */
+    private final Encoder encoder;
+
+    /**
+     * The journal file.
+     */
+    private final File journal;
+
+    /**
+     * The journal channel, open in append mode. Guarded by this.
+     */
+    private FileChannel channel;
+
+    /**
+     * The jobs recorded in the journal, by id. Guarded by this.
+     */
+    private final LinkedHashMap<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+
+    /**
+     * The jobs by key. Guarded by this.
+     */
+    private final HashMap<String, List<Job>> jobsByKey = new HashMap<String, List<Job>>();
+
+    /**
+     * The jobs waiting for a worker. Guarded by this.
+     */
+    private final ArrayDeque<Job> pending = new ArrayDeque<Job>();
+
+    /**
+     * The number of running jobs. Guarded by this.
+     */
+    private int running = 0;
+
+    /**
+     * The id of the next job. Guarded by this.
+     */
+    private long nextId = 1;
+
+    /**
+     * Whether the queue has been closed. Guarded by this.
+     */
+    private boolean closed = false;
+
+    /**
+     * The worker threads.
+     */
+    private final Thread[] workers;
+
+    /**
+     * The time the queue has been opened.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * The number of submitted jobs.
+     */
+    private final AtomicLong submittedCount = new AtomicLong();
+
+    /**
+     * The number of completed jobs.
+     */
+    private final AtomicLong completedCount = new AtomicLong();
+
+    /**
+     * The number of failed jobs.
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * The number of jobs resolved without encoding.
+     */
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    /**
+     * The number of jobs resumed from the journal.
+     */
+    private final AtomicLong resumedCount = new AtomicLong();
+
+    /**
+     * The bytes read from the sources of the completed jobs.
+     */
+    private final AtomicLong inputBytes = new AtomicLong();
+
+    /**
+     * The bytes written to the targets of the completed jobs.
+     */
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    /**
+     * The duration of the media encoded by the completed jobs, in millis.
+     */
+    private final AtomicLong mediaDuration = new AtomicLong();
+
+    /**
+     * It builds the queue, replaying and compacting the journal, and starts
+     * the workers, which resume the jobs not completed yet.
+     *
+     * @param encoder The encoder running the jobs.
+     * @param journal The journal file. It is created if it does not exist.
+     * @param workers The number of jobs running at the same time.
+     * @throws IOException If the journal cannot be read or written.
+     */
+    public TranscodeQueue(Encoder encoder, File journal, int workers)
+            throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.encoder = encoder;
+        this.journal = journal.getAbsoluteFile();
+        File directory = this.journal.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory "
+                    + directory.getAbsolutePath());
+        }
+        replay();
+        compact();
+        for (Job job : jobs.values()) {
+            if (job.state == STARTED) {
+                // Interrupted by a crash: its partial output is dropped.
+                job.getTemp().delete();
+                job.state = SUBMITTED;
+            }
+            if (job.state == SUBMITTED) {
+                pending.add(job);
+                resumedCount.incrementAndGet();
+            }
+        }
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "jave-queue-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            this.workers[i] = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Submits a job. The source is hashed by the calling thread.
+     *
+     * @param source The source file.
+     * @param target The target file. If it already exists, it will be
+     * overwrited when the job completes.
+     * @param attributes A set of attributes for the encoding process.
+     * @return A future completed when the job ends.
+     * @throws IOException If the source cannot be read, or the journal
+     * cannot be written.
+     */
+    public CompletableFuture<EncodeResult> submit(File source, File target,
+            EncodingAttributes attributes) throws IOException {
+        if (attributes.getAudioAttributes() == null
+                && attributes.getVideoAttributes() == null) {
+            throw new IllegalArgumentException(
+                    "Both audio and video attributes are null");
+        }
+        source = source.getAbsoluteFile();
+        target = target.getAbsoluteFile();
+        byte[] serialized = serialize(attributes);
+        MessageDigest digest = ContentHasher.newDigest();
+        ContentHasher.update(digest, source);
+        digest.update(serialized);
+        String key = ContentHasher.hex(digest.digest());
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The queue is closed");
+            }
+            submittedCount.incrementAndGet();
+            List<Job> same = jobsByKey.get(key);
+            if (same != null) {
+                for (Job job : same) {
+                    if (job.target.equals(target) && job.state != FAILED
+                            && (job.state != COMPLETED || target.isFile())) {
+                        if (job.state == COMPLETED) {
+                            completedCount.incrementAndGet();
+                            deduplicatedCount.incrementAndGet();
+                        }
+                        return job.getFuture();
+                    }
+                }
+            }
+            Job job = new Job(nextId++, key, source, target, serialized);
+            write(record(SUBMITTED, job));
+            add(job);
+            pending.add(job);
+            notifyAll();
+            return job.getFuture();
+        }
+    }
+
+    /**
+     * Waits until no job is pending or running.
+     *
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (!pending.isEmpty() || running > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Closes the queue. Running jobs are completed, but their outcome is not
+     * recorded, so they are encoded again when the queue is built on the same
+     * journal; pending jobs are left in the journal.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the number of jobs waiting for a worker.
+     *
+     * @return The number of pending jobs.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of running jobs.
+     *
+     * @return The number of running jobs.
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Returns the number of jobs submitted since the queue has been built.
+     *
+     * @return The number of submitted jobs.
+     */
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs completed since the queue has been built,
+     * including the deduplicated ones.
+     *
+     * @return The number of completed jobs.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs failed since the queue has been built.
+     *
+     * @return The number of failed jobs.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs resolved without encoding, because an
+     * identical job had already been completed.
+     *
+     * @return The number of deduplicated jobs.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs resumed from the journal.
+     *
+     * @return The number of resumed jobs.
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Returns the bytes read from the sources of the encoded jobs.
+     *
+     * @return The input bytes.
+     */
+    public long getInputBytes() {
+        return inputBytes.get();
+    }
+
+    /**
+     * Returns the bytes written to the targets of the completed jobs.
+     *
+     * @return The output bytes.
+     */
+    public long getOutputBytes() {
+        return outputBytes.get();
+    }
+
+    /**
+     * Returns the duration of the media encoded by the completed jobs, in
+     * millis.
+     *
+     * @return The encoded media duration.
+     */
+    public long getMediaDuration() {
+        return mediaDuration.get();
+    }
+
+    /**
+     * Returns the throughput of the queue since it has been built, as the
+     * ratio between the duration of the encoded media and the elapsed time
+     * (a value of 10 means ten seconds of media per second).
+     *
+     * @return The throughput.
+     */
+    public double getThroughput() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed > 0 ? mediaDuration.get() / (double) elapsed : 0;
+    }
+
+    /**
+     * Private utility. It is the loop of a worker thread.
+     */
+    private void work() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                while (!closed && pending.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                job = pending.poll();
+                running++;
+            }
+            try {
+                run(job);
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Private utility. It runs a job, recording its state transitions.
+     */
+    private void run(Job job) {
+        File temp = job.getTemp();
+        CompletableFuture<EncodeResult> future;
+        synchronized (this) {
+            future = job.getFuture();
+        }
+        try {
+            transition(job, STARTED);
+            long start = System.currentTimeMillis();
+            EncodeResult result;
+            File copy = findOutput(job);
+            if (copy != null) {
+                Files.copy(copy.toPath(), temp.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                result = new EncodeResult(job.target, null, null,
+                        System.currentTimeMillis() - start);
+                deduplicatedCount.incrementAndGet();
+            } else {
+                MultimediaObject multimediaObject = new MultimediaObject(
+                        job.source, encoder.getLocator());
+                EncodeResult encoded = encoder.encode(new EncodeJob(),
+                        multimediaObject, temp, deserialize(job.attributes),
+                        null, null);
+                result = new EncodeResult(job.target, encoded.getSourceInfo(),
+                        encoded.getRemuxPlan(), encoded.getElapsedTime());
+                inputBytes.addAndGet(job.source.length());
+                MultimediaInfo info = encoded.getSourceInfo();
+                if (info != null && info.getDuration() > 0) {
+                    mediaDuration.addAndGet(info.getDuration());
+                }
+            }
+            try {
+                Files.move(temp.toPath(), job.target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), job.target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            outputBytes.addAndGet(job.target.length());
+            completedCount.incrementAndGet();
+            transition(job, COMPLETED);
+            future.complete(result);
+        } catch (Throwable t) {
+            temp.delete();
+            failedCount.incrementAndGet();
+            try {
+                transition(job, FAILED);
+            } catch (IOException e) {
+                ; // The job is encoded again on the next start.
+            }
+            future.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Private utility. It returns the existing output of a completed job
+     * identical to the given one, if any.
+     */
+    private synchronized File findOutput(Job job) {
+        for (Job other : jobsByKey.get(job.key)) {
+            if (other != job && other.state == COMPLETED
+                    && other.target.isFile()) {
+                return other.target;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Private utility. It records a state transition of a job. Transitions of
+     * a closed queue are not recorded.
+     */
+    private synchronized void transition(Job job, byte state)
+            throws IOException {
+        if (!closed) {
+            write(record(state, job.id));
+        }
+        job.state = state;
+        if (state == COMPLETED || state == FAILED) {
+            // Only the key and the target are needed from now on.
+            job.attributes = null;
+            job.future = null;
+        }
+    }
+
+    /**
+     * Private utility. It registers a job in the maps.
+     */
+    private void add(Job job) {
+        jobs.put(job.id, job);
+        List<Job> same = jobsByKey.get(job.key);
+        if (same == null) {
+            same = new ArrayList<Job>(1);
+            jobsByKey.put(job.key, same);
+        }
+        same.add(job);
+        nextId = Math.max(nextId, job.id + 1);
+    }
+
+    /**
+     * Private utility. It reads the journal, stopping at the first truncated
+     * or corrupted record (the one being written during a crash).
+     */
+    private void replay() throws IOException {
+        if (!journal.isFile()) {
+            return;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journal)));
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = input.readInt();
+                    long checksum = input.readInt() & 0xffffffffL;
+                    if (length <= 0 || length > journal.length()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    input.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(payload);
+            }
+        } finally {
+            try {
+                input.close();
+            } catch (Throwable t) {
+                ; // Silent ignore
+            }
+        }
+    }
+
+    /**
+     * Private utility. It applies a journal record.
+     */
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(payload));
+        byte type = input.readByte();
+        long id = input.readLong();
+        if (type == SUBMITTED) {
+            String key = input.readUTF();
+            File source = new File(input.readUTF());
+            File target = new File(input.readUTF());
+            byte[] attributes = new byte[input.readInt()];
+            input.readFully(attributes);
+            add(new Job(id, key, source, target, attributes));
+        } else {
+            Job job = jobs.get(id);
+            if (job != null) {
+                job.state = type;
+            }
+        }
+    }
+
+    /**
+     * Private utility. It rewrites the journal keeping only the pending and
+     * completed jobs, then opens it for appending.
+     */
+    private void compact() throws IOException {
+        ArrayList<Job> kept = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (job.state == FAILED) {
+                jobsByKey.get(job.key).remove(job);
+            } else {
+                kept.add(job);
+            }
+        }
+        jobs.clear();
+        File temp = new File(journal.getParentFile(), journal.getName() + ".tmp");
+        channel = new FileOutputStream(temp).getChannel();
+        try {
+            // Synced once at the end, not per record: the journal is
+            // replaced only after the whole rewrite is on disk.
+            for (Job job : kept) {
+                jobs.put(job.id, job);
+                append(record(SUBMITTED, job));
+                if (job.state == COMPLETED) {
+                    append(record(COMPLETED, job.id));
+                    job.attributes = null;
+                }
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        try {
+            Files.move(temp.toPath(), journal.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), journal.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = new FileOutputStream(journal, true).getChannel();
+    }
+
+    /**
+     * Private utility. It builds the submission record of a job.
+     */
+    private static byte[] record(byte type, Job job) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                job.attributes.length + 256);
+        DataOutputStream output = new DataOutputStream(buffer);
+        output.writeByte(type);
+        output.writeLong(job.id);
+        output.writeUTF(job.key);
+        output.writeUTF(job.source.getPath());
+        output.writeUTF(job.target.getPath());
+        output.writeInt(job.attributes.length);
+        output.write(job.attributes);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Private utility. It builds the state transition record of a job.
+     */
+    private static byte[] record(byte state, long id) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(16);
+        DataOutputStream output = new DataOutputStream(buffer);
+        output.writeByte(state);
+        output.writeLong(id);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Private utility. It appends a record to the journal, and syncs it to
+     * disk.
+     */
+    private void write(byte[] payload) throws IOException {
+        append(payload);
+        channel.force(false);
+    }
+
+    /**
+     * Private utility. It appends a record to the journal, without syncing
+     * it.
+     */
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Private utility. It serializes the attributes of a job.
+     */
+    private static byte[] serialize(EncodingAttributes attributes)
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(buffer);
+        output.writeObject(attributes);
+        output.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Private utility. It deserializes the attributes of a job.
+     */
+    private static EncodingAttributes deserialize(byte[] attributes)
+            throws IOException {
+        ObjectInputStream input = new ObjectInputStream(
+                new ByteArrayInputStream(attributes));
+        try {
+            return (EncodingAttributes) input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (journal=" + journal + ", workers="
+                + workers.length + ")";
+    }
+
+    /**
+     * A job of the queue.
+     */
+    private static class Job {
+
+        /**
+         * The job id.
+         */
+        private final long id;
+
+        /**
+         * The digest of the source content and of the attributes.
+         */
+        private final String key;
+
+        /**
+         * The source file.
+         */
+        private final File source;
+
+        /**
+         * The target file.
+         */
+        private final File target;
+
+        /**
+         * The serialized attributes. It is released when the job ends.
+         */
+        private byte[] attributes;
+
+        /**
+         * The last recorded state.
+         */
+        private byte state = SUBMITTED;
+
+        /**
+         * The future of the job, created on demand. It is released when the
+         * job ends.
+         */
+        private CompletableFuture<EncodeResult> future = null;
+
+        private Job(long id, String key, File source, File target,
+                byte[] attributes) {
+            this.id = id;
+            this.key = key;
+            this.source = source;
+            this.target = target;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Returns the future of the job. For a completed job, a future
+         * completed with the target is returned. Guarded by the queue.
+         */
+        private CompletableFuture<EncodeResult> getFuture() {
+            if (future == null) {
+                future = new CompletableFuture<EncodeResult>();
+                if (state == COMPLETED) {
+                    future.complete(new EncodeResult(target, null, null, 0));
+                }
+            }
+            return future;
+        }
+
+        /**
+         * Returns the temporary file the job is encoded to, next to the
+         * target and with the same extension.
+         */
+        private File getTemp() {
+            return new File(target.getParentFile(), TEMP_PREFIX + id + "-"
+                    + target.getName());
+        }
+
+    }
+
+}
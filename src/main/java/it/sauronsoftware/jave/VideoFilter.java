@@ -1,5 +1,7 @@
 package it.sauronsoftware.jave;
 
+import java.io.Serializable;
+
 /**
  * Created with IntelliJ IDEA.
  * User: jgiotta
@@ -7,7 +9,10 @@ package it.sauronsoftware.jave;
  * Time: 10:56 AM
  * To change this template use File | Settings | File Templates.
  */
-public class VideoFilter {
+public class VideoFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
     private String expression;
     public VideoFilter(String expression) {
         this.expression = expression;
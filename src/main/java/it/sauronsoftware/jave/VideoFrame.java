@@ -0,0 +1,140 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A raw video frame decoded by a {@link FrameGrabber}.
+ *
+ * Frames, and their buffers, are pooled and reused: a frame is valid until
+ * it is released (see {@link VideoFrame#release()}), and must not be used
+ * afterwards. Copy the buffer content to retain it longer.
+ */
+public class VideoFrame {
+
+    /**
+     * The stream the frame belongs to.
+     */
+    private final FrameStream stream;
+
+    /**
+     * The pixel data, a direct buffer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The index of the frame in the stream.
+     */
+    private long index;
+
+    /**
+     * The presentation time of the frame, in millis.
+     */
+    private long timestamp;
+
+    /**
+     * It builds a pooled frame.
+     *
+     * @param stream The stream the frame belongs to.
+     * @param size The size of the pixel data, in bytes.
+     */
+    VideoFrame(FrameStream stream, int size) {
+        this.stream = stream;
+        this.buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns the pixel data, laid out as described by
+     * {@link FrameGrabber.PixelFormat}. The buffer is a direct one, with
+     * position 0 and limit equal to the frame size.
+     *
+     * @return The pixel data.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the index of the frame in the stream, starting from 0.
+     *
+     * @return The index of the frame.
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the presentation time of the frame in the source, in millis.
+     *
+     * @return The presentation time of the frame.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the frame width, in pixels.
+     *
+     * @return The frame width.
+     */
+    public int getWidth() {
+        return stream.getWidth();
+    }
+
+    /**
+     * Returns the frame height, in pixels.
+     *
+     * @return The frame height.
+     */
+    public int getHeight() {
+        return stream.getHeight();
+    }
+
+    /**
+     * Returns the pixel format of the frame.
+     *
+     * @return The pixel format of the frame.
+     */
+    public FrameGrabber.PixelFormat getPixelFormat() {
+        return stream.getPixelFormat();
+    }
+
+    /**
+     * Gives the frame back to its pool.
+     */
+    public void release() {
+        stream.recycle(this);
+    }
+
+    /**
+     * Sets the position of the frame, when it is filled.
+     */
+    void set(long index, long timestamp) {
+        this.index = index;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (index=" + index + ", timestamp="
+                + timestamp + ", size=" + buffer.capacity() + ")";
+    }
+
+}
@@ -18,13 +18,17 @@
  */
 package it.sauronsoftware.jave;
 
+import java.io.Serializable;
+
 /**
  * Instances of this class report informations about a video stream that can be
  * decoded.
  * 
  * @author Carlo Pelliccia
  */
-public class VideoInfo {
+public class VideoInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The video stream decoder name.
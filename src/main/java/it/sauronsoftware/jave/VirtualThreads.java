@@ -0,0 +1,138 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A package-private utility giving access to the virtual threads of JDK 21+
+ * without requiring them at compile time. On older runtimes
+ * {@link VirtualThreads#isSupported()} returns false.
+ */
+class VirtualThreads {
+
+    /**
+     * The Executors.newVirtualThreadPerTaskExecutor() method, or null if the
+     * runtime has no virtual threads.
+     */
+    private static final Method NEW_PER_TASK_EXECUTOR = lookup();
+
+    /**
+     * The Thread.ofVirtual(), Thread.Builder.name(String) and
+     * Thread.Builder.start(Runnable) methods, or null if the runtime has no
+     * virtual threads.
+     */
+    private static final Method[] BUILDER_METHODS = lookupBuilder();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Private utility. It looks up the virtual thread factory method.
+     *
+     * @return The method, or null if it is not available.
+     */
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Private utility. It looks up the virtual thread builder methods.
+     *
+     * @return The methods, or null if they are not available.
+     */
+    private static Method[] lookupBuilder() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            return new Method[] {
+                Thread.class.getMethod("ofVirtual"),
+                builder.getMethod("name", String.class),
+                builder.getMethod("start", Runnable.class)
+            };
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a task on a new virtual thread if the running JVM supports them,
+     * or on a new daemon platform thread otherwise.
+     *
+     * @param task The task.
+     * @param name The name of the thread.
+     * @return The started thread.
+     */
+    static Thread start(Runnable task, String name) {
+        if (BUILDER_METHODS != null) {
+            try {
+                Object builder = BUILDER_METHODS[0].invoke(null);
+                builder = BUILDER_METHODS[1].invoke(builder, name);
+                return (Thread) BUILDER_METHODS[2].invoke(builder, task);
+            } catch (Exception e) {
+                ; // Fall back to a platform thread.
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     *
+     * @return true if the running JVM supports virtual threads.
+     */
+    static boolean isSupported() {
+        return NEW_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Returns a new executor starting a virtual thread for each task.
+     *
+     * @return A new executor starting a virtual thread for each task.
+     * @throws UnsupportedOperationException If the running JVM does not
+     * support virtual threads.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        if (NEW_PER_TASK_EXECUTOR == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require JDK 21 or later");
+        }
+        try {
+            return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                    "Cannot create a virtual thread executor", e);
+        }
+    }
+
+}
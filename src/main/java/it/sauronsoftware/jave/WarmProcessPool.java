@@ -0,0 +1,263 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A package-private pool of pre-forked helper processes, hiding the process
+ * start cost of short ffmpeg and ffprobe calls.
+ *
+ * ffmpeg cannot be started before its arguments are known, so each idle
+ * worker is a tiny <em>/bin/sh</em> wrapper waiting on its standard input
+ * for a command line. When a command is submitted, the wrapper applies the
+ * requested redirections and replaces itself with the executable
+ * (<em>exec</em>): the returned process, its pid and its channels are then
+ * those of ffmpeg. The fork, and the wrapper start, have been paid ahead of
+ * time on a background thread, which refills the pool after every use.
+ *
+ * Idle workers are checked before use: dead ones, and ones idle for longer
+ * than the maximum idle time, are discarded. The pool only works on POSIX
+ * systems.
+ */
+class WarmProcessPool {
+
+    /**
+     * The wrapper script. It reads "count stdout stderr" on a line, then count
+     * argument lines, and executes them. stdout is 1 to discard the channel;
+     * stderr is 1 to discard it, 2 to merge it with stdout. The shell reads
+     * its pipe one byte at a time, so it never consumes input meant for the
+     * executed command.
+     */
+    private static final String SCRIPT =
+            "IFS=' ' read -r n o e || exit 0\n"
+            + "set --\n"
+            + "i=0\n"
+            + "while [ $i -lt $n ]; do IFS= read -r a || exit 0; set -- \"$@\" \"$a\"; i=$((i+1)); done\n"
+            + "[ \"$o\" = 1 ] && exec >/dev/null\n"
+            + "[ \"$e\" = 1 ] && exec 2>/dev/null\n"
+            + "[ \"$e\" = 2 ] && exec 2>&1\n"
+            + "exec \"$@\"\n";
+
+    /**
+     * The encoding of the command lines, the one used by the JVM for
+     * process arguments.
+     */
+    private static final Charset ENCODING = charset();
+
+    /**
+     * An idle worker.
+     */
+    private static class Worker {
+
+        /**
+         * The wrapper process.
+         */
+        final Process process;
+
+        /**
+         * The time the worker has been started.
+         */
+        final long created = System.currentTimeMillis();
+
+        Worker(Process process) {
+            this.process = process;
+        }
+
+    }
+
+    /**
+     * The number of idle workers to keep.
+     */
+    private final int size;
+
+    /**
+     * The maximum idle time of a worker, in millis.
+     */
+    private final long maxIdle;
+
+    /**
+     * The idle workers.
+     */
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+
+    /**
+     * The number of workers being started.
+     */
+    private final AtomicInteger starting = new AtomicInteger();
+
+    /**
+     * Whether the pool has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * It builds the pool and starts filling it in background.
+     *
+     * @param size The number of idle workers to keep.
+     * @param maxIdle The maximum idle time of a worker, in millis.
+     */
+    WarmProcessPool(int size, long maxIdle) {
+        this.size = size;
+        this.maxIdle = maxIdle;
+        refill();
+    }
+
+    /**
+     * Returns true if the running system supports the pool.
+     *
+     * @return true if the running system supports the pool.
+     */
+    static boolean isSupported() {
+        return !System.getProperty("os.name", "").toLowerCase().startsWith("windows")
+                && new File("/bin/sh").canExecute();
+    }
+
+    /**
+     * Returns the number of idle workers to keep.
+     *
+     * @return The number of idle workers to keep.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Starts a command on an idle worker.
+     *
+     * @param command The command line.
+     * @param discardOutput Whether to discard the standard output channel.
+     * @param discardError Whether to discard the standard error channel.
+     * @param redirectError Whether to merge the standard error channel into
+     * the standard output one.
+     * @return The process running the command, or null if no healthy worker
+     * is idle or the command cannot be passed to a worker: the caller should
+     * then start the command itself.
+     */
+    Process start(List<String> command, boolean discardOutput,
+            boolean discardError, boolean redirectError) {
+        StringBuilder request = new StringBuilder();
+        request.append(command.size()).append(' ')
+                .append(discardOutput ? 1 : 0).append(' ')
+                .append(redirectError ? 2 : (discardError ? 1 : 0)).append('\n');
+        for (String arg : command) {
+            if (arg.indexOf('\n') >= 0 || arg.indexOf('\0') >= 0) {
+                return null;
+            }
+            request.append(arg).append('\n');
+        }
+        byte[] bytes = request.toString().getBytes(ENCODING);
+        try {
+            Worker worker;
+            while ((worker = idle.poll()) != null) {
+                if (!worker.process.isAlive()
+                        || System.currentTimeMillis() - worker.created > maxIdle) {
+                    worker.process.destroy();
+                    continue;
+                }
+                try {
+                    OutputStream stdin = worker.process.getOutputStream();
+                    stdin.write(bytes);
+                    stdin.flush();
+                    return worker.process;
+                } catch (IOException e) {
+                    // The worker died meanwhile.
+                    worker.process.destroy();
+                }
+            }
+            return null;
+        } finally {
+            refill();
+        }
+    }
+
+    /**
+     * Closes the pool, stopping the idle workers.
+     */
+    void close() {
+        closed = true;
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.process.destroy();
+        }
+    }
+
+    /**
+     * Private utility. It starts, in background, the workers missing to
+     * reach the pool size.
+     */
+    private void refill() {
+        while (!closed) {
+            int pending = starting.get();
+            if (idle.size() + pending >= size) {
+                return;
+            }
+            if (starting.compareAndSet(pending, pending + 1)) {
+                VirtualThreads.start(new Runnable() {
+                    public void run() {
+                        try {
+                            spawn();
+                        } finally {
+                            starting.decrementAndGet();
+                        }
+                    }
+                }, "jave-warm-worker");
+            }
+        }
+    }
+
+    /**
+     * Private utility. It starts a worker and adds it to the idle ones.
+     */
+    private void spawn() {
+        List<String> cmd = new ArrayList<String>(3);
+        cmd.add("/bin/sh");
+        cmd.add("-c");
+        cmd.add(SCRIPT);
+        try {
+            Process process = new ProcessBuilder(cmd).start();
+            if (closed) {
+                process.destroy();
+            } else {
+                idle.add(new Worker(process));
+            }
+        } catch (IOException e) {
+            ; // Silent ignore: the callers start their processes themselves.
+        }
+    }
+
+    /**
+     * Private utility. It returns the encoding of the process arguments.
+     */
+    private static Charset charset() {
+        try {
+            return Charset.forName(System.getProperty("sun.jnu.encoding"));
+        } catch (RuntimeException e) {
+            return Charset.defaultCharset();
+        }
+    }
+
+}
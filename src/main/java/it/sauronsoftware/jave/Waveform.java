@@ -0,0 +1,251 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The peaks of an audio track at a zoom level, computed by a
+ * {@link WaveformExtractor}: for every bucket of samples, its minimum,
+ * maximum and RMS value, as 16-bit integers. It can be written in the JSON
+ * and binary (<em>.dat</em>) formats of the audiowaveform tool, read by
+ * common waveform players.
+ */
+public class Waveform {
+
+    /**
+     * The sampling rate of the analyzed audio.
+     */
+    private final int samplingRate;
+
+    /**
+     * The number of samples of a bucket.
+     */
+    private final int samplesPerPixel;
+
+    /**
+     * The minimum of every bucket.
+     */
+    private short[] min = new short[1024];
+
+    /**
+     * The maximum of every bucket.
+     */
+    private short[] max = new short[1024];
+
+    /**
+     * The RMS value of every bucket.
+     */
+    private short[] rms = new short[1024];
+
+    /**
+     * The number of buckets.
+     */
+    private int length = 0;
+
+    /**
+     * It builds an empty waveform.
+     *
+     * @param samplingRate The sampling rate of the analyzed audio.
+     * @param samplesPerPixel The number of samples of a bucket.
+     */
+    Waveform(int samplingRate, int samplesPerPixel) {
+        this.samplingRate = samplingRate;
+        this.samplesPerPixel = samplesPerPixel;
+    }
+
+    /**
+     * Appends a bucket.
+     */
+    void add(short bucketMin, short bucketMax, short bucketRms) {
+        if (length == min.length) {
+            int capacity = length * 2;
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            rms = Arrays.copyOf(rms, capacity);
+        }
+        min[length] = bucketMin;
+        max[length] = bucketMax;
+        rms[length] = bucketRms;
+        length++;
+    }
+
+    /**
+     * Returns the sampling rate of the analyzed audio, in Hz.
+     *
+     * @return The sampling rate.
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns the number of samples of a bucket: the zoom level.
+     *
+     * @return The number of samples of a bucket.
+     */
+    public int getSamplesPerPixel() {
+        return samplesPerPixel;
+    }
+
+    /**
+     * Returns the number of buckets.
+     *
+     * @return The number of buckets.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the minimum sample of a bucket.
+     *
+     * @param index The bucket index.
+     * @return The minimum sample of the bucket.
+     */
+    public short getMin(int index) {
+        checkIndex(index);
+        return min[index];
+    }
+
+    /**
+     * Returns the maximum sample of a bucket.
+     *
+     * @param index The bucket index.
+     * @return The maximum sample of the bucket.
+     */
+    public short getMax(int index) {
+        checkIndex(index);
+        return max[index];
+    }
+
+    /**
+     * Returns the RMS value of a bucket.
+     *
+     * @param index The bucket index.
+     * @return The RMS value of the bucket.
+     */
+    public short getRms(int index) {
+        checkIndex(index);
+        return rms[index];
+    }
+
+    /**
+     * Writes the waveform in the audiowaveform JSON format (version 2, one
+     * channel, 16 bits). The RMS values are written too, in an additional
+     * <em>rms</em> array ignored by the players.
+     *
+     * @param file The target file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("{\"version\":2,\"channels\":1,\"sample_rate\":" + samplingRate
+                    + ",\"samples_per_pixel\":" + samplesPerPixel
+                    + ",\"bits\":16,\"length\":" + length + ",\"data\":[");
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(Integer.toString(min[i]));
+                writer.write(',');
+                writer.write(Integer.toString(max[i]));
+            }
+            writer.write("],\"rms\":[");
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(Integer.toString(rms[i]));
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the waveform in the audiowaveform binary format (version 2, one
+     * channel, 16 bits, little-endian).
+     *
+     * @param file The target file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeDat(File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            FileChannel channel = output.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(2); // version
+            buffer.putInt(0); // flags: 16-bit samples
+            buffer.putInt(samplingRate);
+            buffer.putInt(samplesPerPixel);
+            buffer.putInt(length);
+            buffer.putInt(1); // channels
+            for (int i = 0; i < length; i++) {
+                if (buffer.remaining() < 4) {
+                    flush(channel, buffer);
+                }
+                buffer.putShort(min[i]);
+                buffer.putShort(max[i]);
+            }
+            flush(channel, buffer);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Private utility. It writes the content of a buffer and clears it.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Private utility. It checks a bucket index.
+     */
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Bucket " + index + " of " + length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (samplingRate=" + samplingRate
+                + ", samplesPerPixel=" + samplesPerPixel + ", length=" + length + ")";
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * JAVE - A Java Audio/Video Encoder (based on FFMPEG)
+ *
+ * Copyright (C) 2008-2009 Carlo Pelliccia (www.sauronsoftware.it)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.sauronsoftware.jave;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Computes the waveforms of audio tracks, for audio players. The audio is
+ * decoded by ffmpeg, mixed down to a single channel, and streamed through an
+ * {@link AudioSampleStream}: the peaks of every zoom level are computed in a
+ * single pass, without holding the samples in memory.
+ */
+public class WaveformExtractor {
+
+    /**
+     * The locator of the ffmpeg executable used by this extractor.
+     */
+    private final FFMPEGLocator locator;
+
+    /**
+     * The number of samples of a bucket at each zoom level.
+     */
+    private int[] zoomLevels = new int[] { 256 };
+
+    /**
+     * The sampling rate of the analyzed audio, 0 for the source one.
+     */
+    private int samplingRate = 0;
+
+    /**
+     * It builds an extractor using a {@link DefaultFFMPEGLocator} instance to
+     * locate the ffmpeg executable to use.
+     */
+    public WaveformExtractor() {
+        this(DefaultFFMPEGLocator.getInstance());
+    }
+
+    /**
+     * It builds an extractor with a custom {@link FFMPEGLocator}.
+     *
+     * @param locator The locator picking up the ffmpeg executable used by the
+     * extractor.
+     */
+    public WaveformExtractor(FFMPEGLocator locator) {
+        this.locator = locator;
+    }
+
+    /**
+     * Sets the zoom levels, as the number of samples summarized by each
+     * bucket. The default is a single level of 256 samples.
+     *
+     * @param samplesPerPixel The number of samples of a bucket, for each
+     * level.
+     */
+    public void setZoomLevels(int... samplesPerPixel) {
+        if (samplesPerPixel.length == 0) {
+            throw new IllegalArgumentException("At least a zoom level is required");
+        }
+        for (int level : samplesPerPixel) {
+            if (level <= 0) {
+                throw new IllegalArgumentException("Invalid zoom level " + level);
+            }
+        }
+        this.zoomLevels = samplesPerPixel.clone();
+    }
+
+    /**
+     * Sets the sampling rate the audio is resampled to before the analysis.
+     * A lower rate makes the analysis faster.
+     *
+     * @param samplingRate The sampling rate, 0 (the default) for the source
+     * one.
+     */
+    public void setSamplingRate(int samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Computes the waveforms of an audio track.
+     *
+     * @param multimediaObject The source.
+     * @return The waveform of each zoom level, in the order of the levels.
+     * @throws InputFormatException If the source multimedia file cannot be
+     * decoded.
+     * @throws EncoderException If a problems occurs calling ffmpeg.
+     */
+    public Waveform[] extract(MultimediaObject multimediaObject)
+            throws InputFormatException, EncoderException {
+        AudioAttributes attributes = new AudioAttributes();
+        attributes.setChannels(Integer.valueOf(1));
+        if (samplingRate > 0) {
+            attributes.setSamplingRate(Integer.valueOf(samplingRate));
+        }
+        AudioSampleStream samples = AudioSampleStream.open(locator, multimediaObject,
+                attributes, AudioSampleStream.SampleFormat.S16LE);
+        int levels = zoomLevels.length;
+        Waveform[] waveforms = new Waveform[levels];
+        // The running bucket of every level.
+        int[] count = new int[levels];
+        int[] min = new int[levels];
+        int[] max = new int[levels];
+        long[] squares = new long[levels];
+        for (int l = 0; l < levels; l++) {
+            waveforms[l] = new Waveform(samples.getSamplingRate(), zoomLevels[l]);
+            min[l] = Short.MAX_VALUE;
+            max[l] = Short.MIN_VALUE;
+        }
+        try {
+            ShortBuffer block;
+            while ((block = samples.readShorts()) != null) {
+                while (block.hasRemaining()) {
+                    int sample = block.get();
+                    long square = (long) sample * sample;
+                    for (int l = 0; l < levels; l++) {
+                        if (sample < min[l]) {
+                            min[l] = sample;
+                        }
+                        if (sample > max[l]) {
+                            max[l] = sample;
+                        }
+                        squares[l] += square;
+                        if (++count[l] == zoomLevels[l]) {
+                            flush(waveforms[l], min[l], max[l], squares[l], count[l]);
+                            count[l] = 0;
+                            min[l] = Short.MAX_VALUE;
+                            max[l] = Short.MIN_VALUE;
+                            squares[l] = 0;
+                        }
+                    }
+                }
+            }
+        } finally {
+            samples.close();
+        }
+        for (int l = 0; l < levels; l++) {
+            if (count[l] > 0) {
+                flush(waveforms[l], min[l], max[l], squares[l], count[l]);
+            }
+        }
+        return waveforms;
+    }
+
+    /**
+     * Private utility. It appends a complete bucket to a waveform.
+     */
+    private static void flush(Waveform waveform, int min, int max, long squares,
+            int count) {
+        int rms = (int) Math.round(Math.sqrt(squares / (double) count));
+        waveform.add((short) min, (short) max, (short) Math.min(rms, Short.MAX_VALUE));
+    }
+
+}